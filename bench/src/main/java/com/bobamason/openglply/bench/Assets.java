@@ -0,0 +1,121 @@
+package com.bobamason.openglply.bench;
+
+import java.io.*;
+import java.nio.*;
+
+import com.bobamason.openglply.*;
+
+/**
+ * Reads the bundled models, from assets/ or the assets.dir property, and
+ * writes binary copies of them.
+ */
+final class Assets {
+	private Assets() {
+	}
+
+	static byte[] read(String name) throws IOException {
+		return read(new File(System.getProperty("assets.dir", "assets"), name));
+	}
+
+	/** The binary copy of the ascii model name, see writeBinary. */
+	static byte[] readBinary(String name) throws IOException {
+		return read(writeBinary(name));
+	}
+
+	private static byte[] read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					(int) file.length());
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				out.write(buffer, 0, n);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes a binary_little_endian copy of the ascii model name, with the
+	 * same elements and property types, to a temporary directory and returns
+	 * the file.
+	 */
+	static File writeBinary(String name) throws IOException {
+		byte[] data = read(name);
+		ByteArrayInputStream in = new ByteArrayInputStream(data);
+		PLYHeader header = PLYHeader.read(in);
+		if (header.format != PLYHeader.FORMAT_ASCII)
+			throw new IOException(name + " is not ascii");
+		int bodyStart = data.length - in.available();
+
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"openglply-bench");
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("can not make " + dir);
+		File file = new File(dir, name);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(
+				file));
+		try {
+			String text = new String(data, 0, bodyStart, "US-ASCII");
+			text = text.replaceFirst("format ascii",
+					"format binary_little_endian");
+			out.write(text.getBytes("US-ASCII"));
+			PLYTokenizer tokens = new PLYTokenizer(data, bodyStart,
+					data.length);
+			ByteBuffer value = ByteBuffer.allocate(8).order(
+					ByteOrder.LITTLE_ENDIAN);
+			for (PLYHeader.Element e : header.elements) {
+				for (int i = 0; i < e.count; i++) {
+					for (PLYHeader.Property p : e.properties) {
+						int n = 1;
+						if (p.isList()) {
+							n = tokens.nextInt();
+							writeValue(out, value, p.countType, n);
+						}
+						for (int j = 0; j < n; j++)
+							writeValue(out, value, p.type, tokens);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static void writeValue(OutputStream out, ByteBuffer value,
+			int type, PLYTokenizer tokens) throws IOException {
+		if (type == PLYHeader.TYPE_FLOAT || type == PLYHeader.TYPE_DOUBLE) {
+			value.clear();
+			if (type == PLYHeader.TYPE_FLOAT)
+				value.putFloat(tokens.nextFloat());
+			else
+				value.putDouble(tokens.nextFloat());
+			out.write(value.array(), 0, value.position());
+		} else {
+			writeValue(out, value, type, tokens.nextInt());
+		}
+	}
+
+	private static void writeValue(OutputStream out, ByteBuffer value,
+			int type, int n) throws IOException {
+		value.clear();
+		switch (PLYHeader.sizeOf(type)) {
+		case 1:
+			value.put((byte) n);
+			break;
+		case 2:
+			value.putShort((short) n);
+			break;
+		default:
+			value.putInt(n);
+		}
+		out.write(value.array(), 0, value.position());
+	}
+
+	static MeshData load(String name) throws IOException {
+		return new PLYLoader().load(new ByteArrayInputStream(read(name)));
+	}
+}
@@ -0,0 +1,111 @@
+package com.bobamason.openglply.bench;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.bobamason.openglply.*;
+
+/**
+ * Parses every bundled model from memory in both load modes, as shipped in
+ * ascii and converted to binary, so the numbers leave out the disk. Parallel
+ * mode only handles ascii, so on the binary copies both modes stream.
+ *
+ * parseSplit is the String.split and Float.parseFloat parse the app used
+ * before, as the baseline for the ascii numbers of parse.
+ *
+ * parseParallel runs the parallel parser on pools of a given size, over the
+ * models big enough to be split into more than one chunk, to show how it
+ * scales with cores.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+	@State(Scope.Thread)
+	public static class Loader {
+		@Param({ "cube.ply", "eyeball.ply", "planet1.ply",
+				"smooth_sphere.ply", "tree_leaves_test.ply",
+				"tree_trunk_test.ply" })
+		public String asset;
+
+		@Param({ "ascii", "binary_little_endian" })
+		public String format;
+
+		@Param({ "" + PLYLoader.MODE_STREAMING, "" + PLYLoader.MODE_PARALLEL })
+		public int mode;
+
+		byte[] data;
+
+		PLYLoader loader;
+
+		@Setup
+		public void setup() throws IOException {
+			if (format.equals("ascii"))
+				data = Assets.read(asset);
+			else
+				data = Assets.readBinary(asset);
+			loader = new PLYLoader(mode);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Text {
+		@Param({ "cube.ply", "eyeball.ply", "planet1.ply",
+				"smooth_sphere.ply", "tree_leaves_test.ply",
+				"tree_trunk_test.ply" })
+		public String asset;
+
+		byte[] data;
+
+		@Setup
+		public void setup() throws IOException {
+			data = Assets.read(asset);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Pool {
+		@Param({ "tree_leaves_test.ply", "tree_trunk_test.ply" })
+		public String asset;
+
+		@Param({ "1", "2", "4", "8" })
+		public int threads;
+
+		byte[] data;
+
+		PLYParallelParser parser;
+
+		@Setup
+		public void setup() throws IOException {
+			data = Assets.read(asset);
+			parser = new PLYParallelParser(threads);
+		}
+
+		@TearDown
+		public void tearDown() {
+			parser.shutdown();
+		}
+	}
+
+	@Benchmark
+	public MeshData parse(Loader state) throws IOException {
+		return state.loader.load(new ByteArrayInputStream(state.data));
+	}
+
+	@Benchmark
+	public Buffer[] parseSplit(Text state) throws IOException {
+		return SplitParser.parse(new ByteArrayInputStream(state.data));
+	}
+
+	@Benchmark
+	public MeshData parseParallel(Pool state) throws IOException {
+		InputStream in = new ByteArrayInputStream(state.data);
+		PLYHeader header = PLYHeader.read(in);
+		return state.parser.parse(PLYDecoder.forHeader(header), header, in);
+	}
+}
@@ -0,0 +1,173 @@
+package com.bobamason.openglply.bench;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.bobamason.openglply.*;
+
+/**
+ * The steps a mesh goes through between parsing and upload, each on its own,
+ * over every bundled model, and picking against the BVH built by the last of
+ * them. The pick benchmarks cast the same seeded rays through the bounds of
+ * the model, so their rays per second can be compared with the brute force
+ * test of every triangle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PostProcessBenchmark {
+	@Param({ "cube.ply", "eyeball.ply", "planet1.ply", "smooth_sphere.ply",
+			"tree_leaves_test.ply", "tree_trunk_test.ply" })
+	public String asset;
+
+	private MeshData mesh;
+
+	private static final int RAYS = 1024;
+
+	private MeshData[] parts;
+
+	private TriangleBvh bvh;
+
+	private final TriangleBvh.Hit hit = new TriangleBvh.Hit();
+
+	/** Origin and direction of each ray, six floats each. */
+	private final float[] rays = new float[RAYS * 6];
+
+	/** Corners of every triangle, nine floats each. */
+	private float[] corners;
+
+	@Setup
+	public void setup() throws IOException {
+		mesh = Assets.load(asset);
+		parts = MeshSplitter.prepare(mesh, false);
+		bvh = TriangleBvh.build(parts);
+
+		// from a sphere around the model towards points in its box, so most
+		// rays hit
+		Bounds b = mesh.bounds;
+		float[] center = new float[3];
+		float radius = b.getSphere(center) * 2f;
+		Random random = new Random(42);
+		for (int i = 0; i < RAYS; i++) {
+			float x = (float) random.nextGaussian();
+			float y = (float) random.nextGaussian();
+			float z = (float) random.nextGaussian();
+			float scale = radius / (float) Math.sqrt(x * x + y * y + z * z);
+			int r = i * 6;
+			rays[r] = center[0] + x * scale;
+			rays[r + 1] = center[1] + y * scale;
+			rays[r + 2] = center[2] + z * scale;
+			for (int k = 0; k < 3; k++)
+				rays[r + 3 + k] = b.min[k] + random.nextFloat()
+						* (b.max[k] - b.min[k]) - rays[r + k];
+		}
+
+		int position = mesh.layout.get(VertexLayout.POSITION).offset;
+		int stride = mesh.layout.getStride();
+		corners = new float[mesh.indexCount * 3];
+		for (int i = 0; i < mesh.indexCount; i++) {
+			int base = mesh.getIndex(i) * stride + position;
+			for (int k = 0; k < 3; k++)
+				corners[i * 3 + k] = mesh.vertices.getFloat(base + k * 4);
+		}
+	}
+
+	@Benchmark
+	public MeshData optimizeVertexCache() {
+		return VertexCacheOptimizer.optimize(mesh, null);
+	}
+
+	@Benchmark
+	public MeshData quantize() {
+		return VertexQuantizer.quantize(mesh, null);
+	}
+
+	@Benchmark
+	public MeshData[] split() {
+		return MeshSplitter.prepare(mesh, false);
+	}
+
+	@Benchmark
+	public MeshData simplifyHalf() {
+		return MeshSimplifier.simplify(mesh, 0.5f);
+	}
+
+	@Benchmark
+	public MeshData[] buildLodChain() throws IOException {
+		return LodChain.getDefault().build(mesh);
+	}
+
+	@Benchmark
+	public TriangleBvh buildBvh() {
+		return TriangleBvh.build(parts);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(RAYS)
+	public int pickBvh() {
+		int hits = 0;
+		for (int r = 0; r < rays.length; r += 6)
+			if (bvh.intersect(rays[r], rays[r + 1], rays[r + 2], rays[r + 3],
+					rays[r + 4], rays[r + 5], Float.POSITIVE_INFINITY, hit))
+				hits++;
+		return hits;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(RAYS)
+	public int pickBruteForce() {
+		int hits = 0;
+		for (int r = 0; r < rays.length; r += 6)
+			if (intersectAll(rays[r], rays[r + 1], rays[r + 2], rays[r + 3],
+					rays[r + 4], rays[r + 5]) >= 0)
+				hits++;
+		return hits;
+	}
+
+	/**
+	 * The closest triangle the ray hits by testing all of them, the same way
+	 * the BVH tests the triangles of a leaf, or -1.
+	 */
+	private int intersectAll(float ox, float oy, float oz, float dx,
+			float dy, float dz) {
+		float best = Float.POSITIVE_INFINITY;
+		int found = -1;
+		float[] c = corners;
+		for (int i = 0; i < c.length; i += 9) {
+			float ax = c[i], ay = c[i + 1], az = c[i + 2];
+			float e1x = c[i + 3] - ax, e1y = c[i + 4] - ay, e1z = c[i + 5] - az;
+			float e2x = c[i + 6] - ax, e2y = c[i + 7] - ay, e2z = c[i + 8] - az;
+			float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z;
+			float pz = dx * e2y - dy * e2x;
+			float det = e1x * px + e1y * py + e1z * pz;
+			if (det == 0f)
+				continue;
+			float inv = 1f / det;
+			float sx = ox - ax, sy = oy - ay, sz = oz - az;
+			float u = (sx * px + sy * py + sz * pz) * inv;
+			if (u < 0f || u > 1f)
+				continue;
+			float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z;
+			float qz = sx * e1y - sy * e1x;
+			float v = (dx * qx + dy * qy + dz * qz) * inv;
+			if (v < 0f || u + v > 1f)
+				continue;
+			float t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+			if (t >= 0f && t < best) {
+				best = t;
+				found = i / 9;
+			}
+		}
+		return found;
+	}
+}
@@ -0,0 +1,88 @@
+package com.bobamason.openglply.bench;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * The ascii parse PLYModel did before PLYLoader, kept as the baseline that
+ * ParseBenchmark compares against: every line is read into a String, split
+ * on spaces and each value parsed with Float.parseFloat, into heap arrays
+ * that are then copied to direct buffers. It only differs where the old code
+ * would fail on the bundled assets: the vertex columns come from the header
+ * instead of a texture flag, polygons are fanned into triangles and indices
+ * are ints, since the larger models have quads and more than 32767 vertices.
+ */
+final class SplitParser {
+	private SplitParser() {
+	}
+
+	/** Returns the vertex and index buffers. */
+	static Buffer[] parse(InputStream stream) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				stream));
+		ArrayList<String> header = new ArrayList<String>();
+		String line = reader.readLine();
+		while (line != null && !line.contains("end_header")) {
+			header.add(line);
+			line = reader.readLine();
+		}
+
+		int vCount = 0;
+		int fCount = 0;
+		int columns = 0;
+		boolean inVertex = false;
+		for (int i = 0; i < header.size(); i++) {
+			line = header.get(i);
+			if (line.startsWith("element")) {
+				int p = line.lastIndexOf(" ") + 1;
+				inVertex = line.contains("element vertex");
+				if (inVertex)
+					vCount = Integer.parseInt(line.substring(p));
+				else if (line.contains("element face"))
+					fCount = Integer.parseInt(line.substring(p));
+			} else if (inVertex && line.startsWith("property")) {
+				columns++;
+			}
+		}
+
+		float[] vertices = new float[vCount * columns];
+		for (int i = 0; i < vCount; i++) {
+			String[] split = reader.readLine().split(" ");
+			for (int j = 0; j < split.length && j < columns; j++) {
+				// the 9 column models end in uchar colors
+				if (j >= 6 && columns == 9)
+					vertices[i * columns + j] = Float.parseFloat(split[j]) / 255f;
+				else
+					vertices[i * columns + j] = Float.parseFloat(split[j]);
+			}
+		}
+
+		int[] indices = new int[fCount * 3];
+		int count = 0;
+		for (int i = 0; i < fCount; i++) {
+			String[] split = reader.readLine().split(" ");
+			int first = Integer.parseInt(split[1]);
+			for (int j = 3; j < split.length; j++) {
+				if (count + 3 > indices.length)
+					indices = Arrays.copyOf(indices, indices.length * 2);
+				indices[count++] = first;
+				indices[count++] = Integer.parseInt(split[j - 1]);
+				indices[count++] = Integer.parseInt(split[j]);
+			}
+		}
+
+		ByteBuffer bb = ByteBuffer.allocateDirect(vertices.length * 4);
+		bb.order(ByteOrder.nativeOrder());
+		FloatBuffer vertexBuffer = bb.asFloatBuffer();
+		vertexBuffer.put(vertices);
+		vertexBuffer.position(0);
+
+		ByteBuffer ib = ByteBuffer.allocateDirect(count * 4);
+		ib.order(ByteOrder.nativeOrder());
+		IntBuffer indexBuffer = ib.asIntBuffer();
+		indexBuffer.put(indices, 0, count);
+		indexBuffer.position(0);
+		return new Buffer[] { vertexBuffer, indexBuffer };
+	}
+}
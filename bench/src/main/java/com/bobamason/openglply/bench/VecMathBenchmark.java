@@ -0,0 +1,147 @@
+package com.bobamason.openglply.bench;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.bobamason.openglply.*;
+
+/**
+ * Per-object Vector3 operations against the VecMath batch methods over the
+ * same points. The Vector3 cross and subtract benchmarks use the allocating
+ * statics, as callers did before the out overloads existed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VecMathBenchmark {
+	@Param({ "1024", "65536" })
+	public int count;
+
+	private Vector3[] points;
+
+	private Vector3[] others;
+
+	private Vector3[] results;
+
+	private float[] x, y, z, ox, oy, oz, rx, ry, rz;
+
+	private final float[] matrix = new float[16];
+
+	private final float[] box = new float[6];
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		points = new Vector3[count];
+		others = new Vector3[count];
+		results = new Vector3[count];
+		x = new float[count];
+		y = new float[count];
+		z = new float[count];
+		ox = new float[count];
+		oy = new float[count];
+		oz = new float[count];
+		rx = new float[count];
+		ry = new float[count];
+		rz = new float[count];
+		for (int i = 0; i < count; i++) {
+			points[i] = new Vector3(random.nextFloat(), random.nextFloat(),
+					random.nextFloat());
+			others[i] = new Vector3(random.nextFloat(), random.nextFloat(),
+					random.nextFloat());
+			results[i] = new Vector3();
+			x[i] = points[i].x;
+			y[i] = points[i].y;
+			z[i] = points[i].z;
+			ox[i] = others[i].x;
+			oy[i] = others[i].y;
+			oz[i] = others[i].z;
+		}
+		for (int i = 0; i < 16; i++)
+			matrix[i] = random.nextFloat();
+		matrix[3] = matrix[7] = matrix[11] = 0f;
+		matrix[15] = 1f;
+	}
+
+	@Benchmark
+	public Vector3[] transformVector3() {
+		for (int i = 0; i < count; i++)
+			results[i].set(points[i]).multMat4(matrix);
+		return results;
+	}
+
+	@Benchmark
+	public float[] transformBatch() {
+		VecMath.transformPoints(matrix, 0, x, y, z, rx, ry, rz, 0, count);
+		return rx;
+	}
+
+	@Benchmark
+	public Vector3[] normalizeVector3() {
+		for (int i = 0; i < count; i++)
+			results[i].set(points[i]).normalize();
+		return results;
+	}
+
+	@Benchmark
+	public float[] normalizeBatch() {
+		System.arraycopy(x, 0, rx, 0, count);
+		System.arraycopy(y, 0, ry, 0, count);
+		System.arraycopy(z, 0, rz, 0, count);
+		VecMath.normalize(rx, ry, rz, 0, count);
+		return rx;
+	}
+
+	@Benchmark
+	public Vector3[] crossVector3() {
+		for (int i = 0; i < count; i++)
+			results[i] = Vector3.cross(points[i], others[i]);
+		return results;
+	}
+
+	@Benchmark
+	public Vector3[] crossVector3Out() {
+		for (int i = 0; i < count; i++)
+			Vector3.cross(points[i], others[i], results[i]);
+		return results;
+	}
+
+	@Benchmark
+	public float[] crossBatch() {
+		VecMath.cross(x, y, z, ox, oy, oz, rx, ry, rz, 0, count);
+		return rx;
+	}
+
+	@Benchmark
+	public float dotVector3() {
+		float sum = 0f;
+		for (int i = 0; i < count; i++)
+			sum += points[i].dot(others[i]);
+		return sum;
+	}
+
+	@Benchmark
+	public float[] dotBatch() {
+		VecMath.dot(x, y, z, ox, oy, oz, rx, 0, count);
+		return rx;
+	}
+
+	@Benchmark
+	public Bounds boundsVector3() {
+		Bounds bounds = new Bounds();
+		for (int i = 0; i < count; i++)
+			bounds.include(points[i].x, points[i].y, points[i].z);
+		return bounds;
+	}
+
+	@Benchmark
+	public float[] boundsBatch() {
+		VecMath.bounds(x, y, z, 0, count, box);
+		return box;
+	}
+}
@@ -0,0 +1,152 @@
+package com.bobamason.openglply;
+
+import java.nio.*;
+
+/**
+ * An axis aligned box and a bounding sphere of a set of positions. The sphere
+ * grows as positions are included, moving its center towards each position
+ * outside it just far enough to take it in, so it is built in the same single
+ * pass as the box. The parsers then tighten it with fitSphere.
+ */
+public class Bounds {
+	public final float[] min = { Float.POSITIVE_INFINITY,
+			Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY };
+
+	public final float[] max = { Float.NEGATIVE_INFINITY,
+			Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY };
+
+	public final float[] sphereCenter = new float[3];
+
+	/** Negative while no position was included. */
+	public float sphereRadius = -1f;
+
+	public void include(float x, float y, float z) {
+		includeSphere(x, y, z, 0f);
+		if (x < min[0])
+			min[0] = x;
+		if (x > max[0])
+			max[0] = x;
+		if (y < min[1])
+			min[1] = y;
+		if (y > max[1])
+			max[1] = y;
+		if (z < min[2])
+			min[2] = z;
+		if (z > max[2])
+			max[2] = z;
+	}
+
+	public void include(Bounds b) {
+		if (b.isEmpty())
+			return;
+		for (int k = 0; k < 3; k++) {
+			min[k] = Math.min(min[k], b.min[k]);
+			max[k] = Math.max(max[k], b.max[k]);
+		}
+		includeSphere(b.sphereCenter[0], b.sphereCenter[1],
+				b.sphereCenter[2], b.sphereRadius);
+	}
+
+	/** Grows the sphere to hold the sphere at x, y, z of radius r. */
+	private void includeSphere(float x, float y, float z, float r) {
+		if (sphereRadius < 0f) {
+			sphereCenter[0] = x;
+			sphereCenter[1] = y;
+			sphereCenter[2] = z;
+			sphereRadius = r;
+			return;
+		}
+		float dx = x - sphereCenter[0], dy = y - sphereCenter[1], dz = z
+				- sphereCenter[2];
+		float d = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+		if (d + r <= sphereRadius)
+			return;
+		if (d + sphereRadius <= r) {
+			sphereCenter[0] = x;
+			sphereCenter[1] = y;
+			sphereCenter[2] = z;
+			sphereRadius = r;
+			return;
+		}
+		float radius = (sphereRadius + d + r) / 2f;
+		float t = (radius - sphereRadius) / d;
+		sphereCenter[0] += dx * t;
+		sphereCenter[1] += dy * t;
+		sphereCenter[2] += dz * t;
+		sphereRadius = radius;
+	}
+
+	public boolean isEmpty() {
+		return min[0] > max[0];
+	}
+
+	public float getWidth() {
+		return isEmpty() ? 0f : max[0] - min[0];
+	}
+
+	public float getHeight() {
+		return isEmpty() ? 0f : max[1] - min[1];
+	}
+
+	public float getDepth() {
+		return isEmpty() ? 0f : max[2] - min[2];
+	}
+
+	public void getCenter(float[] out) {
+		if (isEmpty()) {
+			out[0] = out[1] = out[2] = 0f;
+			return;
+		}
+		out[0] = (max[0] + min[0]) / 2f;
+		out[1] = (max[1] + min[1]) / 2f;
+		out[2] = (max[2] + min[2]) / 2f;
+	}
+
+	/**
+	 * Replaces the sphere with the one around the center of the box that just
+	 * holds count float positions, when that one is smaller. The grown sphere
+	 * depends on the order of the positions, this one only on the box, so a
+	 * second pass over the decoded vertices tightens it for most meshes.
+	 */
+	public void fitSphere(ByteBuffer vertices, int offset, int stride,
+			int count) {
+		if (isEmpty())
+			return;
+		float[] center = new float[3];
+		getCenter(center);
+		float radius = 0f;
+		for (int i = 0, base = offset; i < count; i++, base += stride) {
+			float dx = vertices.getFloat(base) - center[0];
+			float dy = vertices.getFloat(base + 4) - center[1];
+			float dz = vertices.getFloat(base + 8) - center[2];
+			radius = Math.max(radius, dx * dx + dy * dy + dz * dz);
+		}
+		radius = (float) Math.sqrt(radius);
+		if (radius < sphereRadius) {
+			sphereCenter[0] = center[0];
+			sphereCenter[1] = center[1];
+			sphereCenter[2] = center[2];
+			sphereRadius = radius;
+		}
+	}
+
+	/**
+	 * Writes the center of a sphere holding the positions to center and
+	 * returns its radius. This is the grown sphere or the one around the box,
+	 * whichever is smaller.
+	 */
+	public float getSphere(float[] center) {
+		getCenter(center);
+		if (isEmpty())
+			return 0f;
+		float w = getWidth(), h = getHeight(), d = getDepth();
+		float boxRadius = (float) Math.sqrt(w * w + h * h + d * d) / 2f;
+		if (sphereRadius >= 0f && sphereRadius < boxRadius) {
+			center[0] = sphereCenter[0];
+			center[1] = sphereCenter[1];
+			center[2] = sphereCenter[2];
+			return sphereRadius;
+		}
+		return boxRadius;
+	}
+}
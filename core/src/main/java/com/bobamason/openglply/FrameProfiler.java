@@ -0,0 +1,122 @@
+package com.bobamason.openglply;
+
+/**
+ * Measures the CPU time of each frame and counts its draw calls and
+ * triangles. Frame times go into a histogram for the percentiles. GL calls
+ * return before the GPU is done, so this shows where the render thread
+ * spends its time, not the GPU.
+ *
+ * The frame and draw calls are made on the GL thread; the getters may be
+ * called from any thread and give the values of the last finished frame.
+ */
+public class FrameProfiler {
+	private boolean enabled = true;
+
+	private int frame;
+
+	private long frameStart;
+
+	// counts of the frame being drawn, only touched on the GL thread
+	private int drawCalls;
+
+	private long triangles;
+
+	private long lastFrameNanos;
+
+	private int lastDrawCalls;
+
+	private long lastTriangles;
+
+	private final LatencyHistogram frameTimes = new LatencyHistogram();
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/** Counts the frames begun, so per frame values can tell them apart. */
+	public int getFrame() {
+		return frame;
+	}
+
+	public void beginFrame() {
+		frame++;
+		drawCalls = 0;
+		triangles = 0;
+		if (enabled)
+			frameStart = System.nanoTime();
+	}
+
+	public void endFrame() {
+		if (!enabled)
+			return;
+		long time = System.nanoTime() - frameStart;
+		synchronized (this) {
+			lastFrameNanos = time;
+			lastDrawCalls = drawCalls;
+			lastTriangles = triangles;
+			frameTimes.record(time);
+		}
+	}
+
+	public void countDraw(int triangles) {
+		drawCalls++;
+		this.triangles += triangles;
+	}
+
+	/**
+	 * The time now if profiling is enabled and 0 if not, for timing a piece of
+	 * the frame with elapsed.
+	 */
+	public long start() {
+		return enabled ? System.nanoTime() : 0L;
+	}
+
+	/** Nanoseconds since a start, 0 if it was made while disabled. */
+	public static long elapsed(long start) {
+		return start == 0L ? 0L : System.nanoTime() - start;
+	}
+
+	public synchronized long getLastFrameNanos() {
+		return lastFrameNanos;
+	}
+
+	public synchronized int getDrawCalls() {
+		return lastDrawCalls;
+	}
+
+	public synchronized long getTriangles() {
+		return lastTriangles;
+	}
+
+	public synchronized long getFrameCount() {
+		return frameTimes.getCount();
+	}
+
+	public synchronized long getPercentileNanos(double fraction) {
+		return frameTimes.getPercentileNanos(fraction);
+	}
+
+	public synchronized long getMaxFrameNanos() {
+		return frameTimes.getMaxNanos();
+	}
+
+	/** Forgets the frame times recorded so far. */
+	public synchronized void reset() {
+		frameTimes.reset();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return frameTimes.getCount() + " frames, mean "
+				+ frameTimes.getMeanNanos() / 1000 + " us, p50 "
+				+ frameTimes.getPercentileNanos(0.5) / 1000 + " us, p99 "
+				+ frameTimes.getPercentileNanos(0.99) / 1000 + " us, max "
+				+ frameTimes.getMaxNanos() / 1000 + " us, last frame "
+				+ lastDrawCalls + " draw calls, " + lastTriangles
+				+ " triangles";
+	}
+}
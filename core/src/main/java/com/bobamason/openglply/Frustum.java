@@ -0,0 +1,60 @@
+package com.bobamason.openglply;
+
+/**
+ * View frustum tests. The six planes are read off the rows of a clip matrix
+ * (Gribb and Hartmann), so planes taken from a model-view-projection matrix
+ * are already in model coordinates and bounds are tested without transforming
+ * them. Planes are stored as a, b, c, d with the inside where
+ * ax + by + cz + d >= 0; they are not normalized.
+ */
+public class Frustum {
+	public static final int PLANE_FLOATS = 6 * 4;
+
+	private Frustum() {
+	}
+
+	/**
+	 * Writes the left, right, bottom, top, near and far planes of the column
+	 * major clip matrix m to planes.
+	 */
+	public static void extractPlanes(float[] m, int offset, float[] planes) {
+		for (int p = 0; p < 6; p++) {
+			int row = p / 2;
+			float sign = (p & 1) == 0 ? 1f : -1f;
+			for (int c = 0; c < 4; c++)
+				planes[p * 4 + c] = m[offset + c * 4 + 3] + sign
+						* m[offset + c * 4 + row];
+		}
+	}
+
+	/**
+	 * Whether any of the box with the given center and half extents may be
+	 * inside the planes. A box outside all planes together but not any one of
+	 * them is reported as inside.
+	 */
+	public static boolean intersectsBox(float[] planes, float[] center,
+			float[] halfExtent) {
+		for (int p = 0; p < PLANE_FLOATS; p += 4) {
+			float distance = VecMath.dot(planes, p, center, 0) + planes[p + 3];
+			float reach = Math.abs(planes[p]) * halfExtent[0]
+					+ Math.abs(planes[p + 1]) * halfExtent[1]
+					+ Math.abs(planes[p + 2]) * halfExtent[2];
+			if (distance + reach < 0f)
+				return false;
+		}
+		return true;
+	}
+
+	/** Whether any of the sphere may be inside the planes. */
+	public static boolean intersectsSphere(float[] planes, float[] center,
+			float radius) {
+		for (int p = 0; p < PLANE_FLOATS; p += 4) {
+			float distance = VecMath.dot(planes, p, center, 0) + planes[p + 3];
+			if (distance < 0f
+					&& distance * distance >= radius * radius
+							* VecMath.dot(planes, p, planes, p))
+				return false;
+		}
+		return true;
+	}
+}
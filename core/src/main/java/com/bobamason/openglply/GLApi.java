@@ -0,0 +1,73 @@
+package com.bobamason.openglply;
+
+import java.nio.*;
+
+/**
+ * The GL calls geometry and render state go through. AndroidGL forwards to
+ * GLES20, StateCachingGL skips calls that would not change anything, and
+ * RecordingGL stands in where there is no context, so what a frame does can
+ * be checked without a device. Constants have the GLES20 values.
+ */
+public interface GLApi {
+	int GL_TRIANGLES = 0x0004;
+
+	int GL_CULL_FACE = 0x0B44;
+
+	int GL_DEPTH_TEST = 0x0B71;
+
+	int GL_BLEND = 0x0BE2;
+
+	int GL_TEXTURE_2D = 0x0DE1;
+
+	int GL_TEXTURE0 = 0x84C0;
+
+	int GL_ARRAY_BUFFER = 0x8892;
+
+	int GL_ELEMENT_ARRAY_BUFFER = 0x8893;
+
+	int GL_STREAM_DRAW = 0x88E0;
+
+	int GL_STATIC_DRAW = 0x88E4;
+
+	int GL_DYNAMIC_DRAW = 0x88E8;
+
+	void glUseProgram(int program);
+
+	void glEnable(int cap);
+
+	void glDisable(int cap);
+
+	void glActiveTexture(int unit);
+
+	void glBindTexture(int target, int texture);
+
+	void glDeleteTextures(int n, int[] textures, int offset);
+
+	void glGenBuffers(int n, int[] buffers, int offset);
+
+	void glDeleteBuffers(int n, int[] buffers, int offset);
+
+	void glBindBuffer(int target, int buffer);
+
+	void glBufferData(int target, int size, Buffer data, int usage);
+
+	/** Reads the attribute from the bound array buffer at offset. */
+	void glVertexAttribPointer(int index, int size, int type,
+			boolean normalized, int stride, int offset);
+
+	/** Reads the attribute from client memory, copied on every draw. */
+	void glVertexAttribPointer(int index, int size, int type,
+			boolean normalized, int stride, Buffer data);
+
+	void glEnableVertexAttribArray(int index);
+
+	void glDisableVertexAttribArray(int index);
+
+	void glVertexAttrib4f(int index, float x, float y, float z, float w);
+
+	/** Reads indices from the bound element array buffer at offset. */
+	void glDrawElements(int mode, int count, int type, int offset);
+
+	/** Reads indices from client memory, copied on every draw. */
+	void glDrawElements(int mode, int count, int type, Buffer indices);
+}
@@ -0,0 +1,92 @@
+package com.bobamason.openglply;
+
+/**
+ * The buffer objects a MeshData is drawn from. The vertices and indices are
+ * uploaded once and draws bind them by offset. Buffer names belong to the
+ * context they were made in, so each upload records the context generation
+ * and a mesh from an older generation is uploaded again instead of deleting
+ * names that no longer exist. The MeshData is kept for that.
+ */
+public class GpuMesh {
+	public final MeshData data;
+
+	private final int[] buffers = new int[2];
+
+	private int generation = -1;
+
+	public GpuMesh(MeshData data) {
+		this.data = data;
+	}
+
+	public static GpuMesh[] of(MeshData[] parts) {
+		GpuMesh[] meshes = new GpuMesh[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			meshes[i] = new GpuMesh(parts[i]);
+		return meshes;
+	}
+
+	public boolean isUploaded(int generation) {
+		return this.generation == generation;
+	}
+
+	/** Uploads the mesh unless it already was in this context generation. */
+	public void upload(GLApi gl, int generation, int usage) {
+		if (this.generation == generation)
+			return;
+		gl.glGenBuffers(2, buffers, 0);
+
+		MeshData d = data;
+		d.vertices.position(0);
+		gl.glBindBuffer(GLApi.GL_ARRAY_BUFFER, buffers[0]);
+		gl.glBufferData(GLApi.GL_ARRAY_BUFFER, d.vertexCount
+				* d.layout.getStride(), d.vertices, usage);
+		d.indices.position(0);
+		gl.glBindBuffer(GLApi.GL_ELEMENT_ARRAY_BUFFER, buffers[1]);
+		gl.glBufferData(GLApi.GL_ELEMENT_ARRAY_BUFFER, d.indexCount
+				* d.getIndexSize(), d.indices, usage);
+		this.generation = generation;
+	}
+
+	/** Binds the vertex and index buffers for attribute setup and draw. */
+	public void bind(GLApi gl) {
+		gl.glBindBuffer(GLApi.GL_ARRAY_BUFFER, buffers[0]);
+		gl.glBindBuffer(GLApi.GL_ELEMENT_ARRAY_BUFFER, buffers[1]);
+	}
+
+	/** Points handle at an attribute of the bound vertex buffer. */
+	public void bindAttribute(GLApi gl, int handle, VertexLayout.Attribute a) {
+		gl.glVertexAttribPointer(handle, a.size, a.type, a.normalized,
+				data.layout.getStride(), a.offset);
+		gl.glEnableVertexAttribArray(handle);
+	}
+
+	public void draw(GLApi gl) {
+		draw(gl, data.indexCount);
+	}
+
+	/** Draws only the first indexCount indices. */
+	public void draw(GLApi gl, int indexCount) {
+		gl.glDrawElements(GLApi.GL_TRIANGLES, indexCount, data.indexType, 0);
+	}
+
+	/**
+	 * Deletes the buffers if they were made in this context generation. Names
+	 * from a lost context are just forgotten.
+	 */
+	public void release(GLApi gl, int generation) {
+		if (this.generation == generation)
+			gl.glDeleteBuffers(2, buffers, 0);
+		this.generation = -1;
+	}
+
+	/** Unbinds both buffers so client array draws work again. */
+	public static void unbind(GLApi gl) {
+		gl.glBindBuffer(GLApi.GL_ARRAY_BUFFER, 0);
+		gl.glBindBuffer(GLApi.GL_ELEMENT_ARRAY_BUFFER, 0);
+	}
+
+	public long getBufferBytes() {
+		return (long) data.vertexCount * data.layout.getStride()
+				+ (long) data.indexCount * data.getIndexSize();
+	}
+}
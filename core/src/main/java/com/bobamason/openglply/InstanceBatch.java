@@ -0,0 +1,115 @@
+package com.bobamason.openglply;
+
+import java.nio.*;
+
+/**
+ * Geometry for pseudo instancing on GLES 2.0, which has no instanced draws.
+ * A part is copied a fixed number of times into one vertex and index buffer
+ * and every vertex is tagged with the number of its copy, which the shader
+ * uses to pick that instance's transform out of a uniform array. Drawing the
+ * first n copies' indices then draws n instances in one call.
+ *
+ * The copies are made once per part, so memory does not depend on how many
+ * instances are drawn. Parts are only copied as often as short indices allow;
+ * big parts spend their time on vertices rather than on draw calls anyway.
+ */
+public class InstanceBatch {
+	/**
+	 * Instances per draw call. Each takes four vec4 uniforms, which with the
+	 * projection matrix stays inside the 128 vertex uniform vectors every
+	 * GLES 2.0 implementation has.
+	 */
+	public static final int MAX_INSTANCES = 16;
+
+	private InstanceBatch() {
+	}
+
+	/** How many copies of part one batch holds, at least 1. */
+	public static int copiesFor(MeshData part) {
+		int copies = MeshData.MAX_SHORT_VERTICES / Math.max(1, part.vertexCount);
+		return Math.max(1, Math.min(MAX_INSTANCES, copies));
+	}
+
+	/**
+	 * Returns copies of part one after the other, with an INSTANCE attribute
+	 * holding the number of the copy as an unsigned byte.
+	 */
+	public static MeshData replicate(MeshData part, int copies) {
+		VertexLayout src = part.layout;
+		VertexLayout layout = new VertexLayout();
+		VertexLayout.Attribute[] attributes = src.byOffset();
+		for (int a = 0; a < attributes.length; a++)
+			layout.add(attributes[a].semantic, attributes[a].size,
+					attributes[a].type, attributes[a].normalized);
+		layout.add(VertexLayout.INSTANCE, 1, VertexLayout.GL_UNSIGNED_BYTE,
+				false);
+
+		int srcStride = src.getStride();
+		int stride = layout.getStride();
+		int instanceOffset = layout.get(VertexLayout.INSTANCE).offset;
+		int vertexCount = part.vertexCount * copies;
+		ByteBuffer vertices = ByteBuffer.allocateDirect(vertexCount * stride);
+		vertices.order(ByteOrder.nativeOrder());
+		ByteBuffer in = part.vertices.duplicate();
+		for (int k = 0; k < copies; k++) {
+			for (int v = 0; v < part.vertexCount; v++) {
+				int d = (k * part.vertexCount + v) * stride;
+				in.limit(v * srcStride + srcStride);
+				in.position(v * srcStride);
+				vertices.position(d);
+				vertices.put(in);
+				vertices.put(d + instanceOffset, (byte) k);
+			}
+		}
+		vertices.position(0);
+
+		int indexCount = part.indexCount * copies;
+		Buffer indices;
+		int indexType;
+		if (vertexCount <= MeshData.MAX_SHORT_VERTICES) {
+			ShortBuffer shorts = ByteBuffer.allocateDirect(indexCount * 2)
+					.order(ByteOrder.nativeOrder()).asShortBuffer();
+			for (int k = 0; k < copies; k++) {
+				int base = k * part.vertexCount;
+				for (int i = 0; i < part.indexCount; i++)
+					shorts.put((short) (base + part.getIndex(i)));
+			}
+			indices = shorts;
+			indexType = MeshData.GL_UNSIGNED_SHORT;
+		} else {
+			IntBuffer ints = ByteBuffer.allocateDirect(indexCount * 4)
+					.order(ByteOrder.nativeOrder()).asIntBuffer();
+			for (int k = 0; k < copies; k++) {
+				int base = k * part.vertexCount;
+				for (int i = 0; i < part.indexCount; i++)
+					ints.put(base + part.getIndex(i));
+			}
+			indices = ints;
+			indexType = MeshData.GL_UNSIGNED_INT;
+		}
+		indices.position(0);
+
+		return new MeshData(layout, vertices, vertexCount, indices, indexType,
+				indexCount, part.bounds, part.positionScale,
+				part.positionOffset);
+	}
+
+	/**
+	 * Writes the per instance uniforms for one instance at data[offset]: the
+	 * first three rows of the model-view matrix mv, then the light strength.
+	 * Only affine matrices survive this, which is all a model-view matrix is.
+	 */
+	public static void putInstance(float[] mv, float lightStrength,
+			float[] data, int offset) {
+		for (int r = 0; r < 3; r++) {
+			data[offset + r * 4] = mv[r];
+			data[offset + r * 4 + 1] = mv[4 + r];
+			data[offset + r * 4 + 2] = mv[8 + r];
+			data[offset + r * 4 + 3] = mv[12 + r];
+		}
+		data[offset + 12] = lightStrength;
+		data[offset + 13] = 0f;
+		data[offset + 14] = 0f;
+		data[offset + 15] = 0f;
+	}
+}
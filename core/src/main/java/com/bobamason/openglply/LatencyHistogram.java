@@ -0,0 +1,92 @@
+package com.bobamason.openglply;
+
+import java.util.*;
+
+/**
+ * Counts durations in a fixed number of buckets, exact below 64
+ * microseconds and within about 3% above, up to over an hour. Recording
+ * never allocates, so it can run every frame. Not thread safe.
+ */
+public class LatencyHistogram {
+	/** Buckets per power of two, which sets the resolution. */
+	private static final int SUB_BITS = 5;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private static final int MAX_SHIFT = 26;
+
+	private static final int BUCKETS = (MAX_SHIFT + 2) * SUB_BUCKETS;
+
+	private static final long MAX_MICROS = ((2L * SUB_BUCKETS) << MAX_SHIFT) - 1;
+
+	private final int[] counts = new int[BUCKETS];
+
+	private long count;
+
+	private long totalNanos;
+
+	private long maxNanos;
+
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts[index(Math.min(nanos / 1000, MAX_MICROS))]++;
+		count++;
+		totalNanos += nanos;
+		if (nanos > maxNanos)
+			maxNanos = nanos;
+	}
+
+	private static int index(long micros) {
+		if (micros < 2 * SUB_BUCKETS)
+			return (int) micros;
+		int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS
+				+ (int) ((micros >> shift) - SUB_BUCKETS);
+	}
+
+	/** The largest duration, in microseconds, that falls in bucket index. */
+	private static long upperBound(int index) {
+		if (index < 2 * SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	public long getMeanNanos() {
+		return count == 0 ? 0 : totalNanos / count;
+	}
+
+	/**
+	 * The duration that the given fraction of the recorded ones do not
+	 * exceed, rounded up to its bucket and capped at the largest recorded.
+	 */
+	public long getPercentileNanos(double fraction) {
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(fraction * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(upperBound(i) * 1000 + 999, maxNanos);
+		}
+		return maxNanos;
+	}
+
+	public void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		totalNanos = 0;
+		maxNanos = 0;
+	}
+}
@@ -0,0 +1,287 @@
+package com.bobamason.openglply;
+
+import java.io.*;
+
+/**
+ * Timings and sizes of one model load, in nanoseconds and bytes. The loader
+ * fills it in phase by phase from its own thread, and other threads may poll
+ * it through LoadMetricsRegistry while the load runs. Progress is only
+ * computed and reported when a ProgressListener is set.
+ */
+public class LoadMetrics {
+	public static final int PHASE_HEADER = 0;
+
+	public static final int PHASE_VERTICES = 1;
+
+	public static final int PHASE_FACES = 2;
+
+	public static final int PHASE_POST_PROCESS = 3;
+
+	/**
+	 * Making the buffer objects of the mesh and uploading them, which happens
+	 * on the GL thread when a level is first drawn, so it keeps growing after
+	 * the load completed.
+	 */
+	public static final int PHASE_UPLOAD = 4;
+
+	public static final int PHASE_COUNT = 5;
+
+	private static final String[] PHASE_NAMES = { "header", "vertices",
+			"faces", "post", "upload" };
+
+	/** Share of the progress taken by reading the file. */
+	public static final float READ_SHARE = 0.7f;
+
+	/** Progress is reported in steps of at least this much, */
+	private static final float PROGRESS_STEP = 0.01f;
+
+	/** and at most this often. */
+	private static final long PROGRESS_INTERVAL = 50000000L;
+
+	public interface ProgressListener {
+		/** Called on the loading thread. */
+		void progress(LoadMetrics metrics, float fraction);
+	}
+
+	public final String name;
+
+	private final long[] nanos = new long[PHASE_COUNT];
+
+	private long startTime;
+
+	private long endTime;
+
+	private long bytesRead;
+
+	private long totalBytes;
+
+	private int vertices;
+
+	private int faces;
+
+	private long bufferBytes;
+
+	private long peakBufferBytes;
+
+	private boolean fromCache;
+
+	private boolean failed;
+
+	private Throwable failure;
+
+	private volatile ProgressListener progressListener;
+
+	private float progress;
+
+	private float reportedProgress;
+
+	private long reportedTime;
+
+	public LoadMetrics(String name) {
+		this.name = name;
+	}
+
+	synchronized void start() {
+		startTime = System.nanoTime();
+	}
+
+	synchronized void finish(boolean failed) {
+		endTime = System.nanoTime();
+		this.failed = failed;
+	}
+
+	public synchronized void addNanos(int phase, long time) {
+		nanos[phase] += time;
+	}
+
+	public synchronized long getNanos(int phase) {
+		return nanos[phase];
+	}
+
+	/** Time from the start of the load until it completed, or until now. */
+	public synchronized long getTotalNanos() {
+		if (startTime == 0)
+			return 0;
+		return (endTime != 0 ? endTime : System.nanoTime()) - startTime;
+	}
+
+	public synchronized boolean isFinished() {
+		return endTime != 0;
+	}
+
+	public synchronized boolean isFailed() {
+		return failed;
+	}
+
+	/** Records why the load failed, for the dump. */
+	public synchronized void setFailure(Throwable failure) {
+		this.failure = failure;
+	}
+
+	/** Why the load failed, or null if it did not or the cause is unknown. */
+	public synchronized Throwable getFailure() {
+		return failure;
+	}
+
+	/** Size of the file, which progress through it is measured against. */
+	public synchronized void setTotalBytes(long bytes) {
+		totalBytes = bytes;
+	}
+
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public void addBytesRead(long bytes) {
+		float fraction;
+		synchronized (this) {
+			bytesRead += bytes;
+			if (progressListener == null || totalBytes <= 0)
+				return;
+			fraction = READ_SHARE * Math.min(1f, (float) bytesRead / totalBytes);
+		}
+		setProgress(fraction);
+	}
+
+	public synchronized long getBytesRead() {
+		return bytesRead;
+	}
+
+	public synchronized void setCounts(int vertices, int faces) {
+		this.vertices = vertices;
+		this.faces = faces;
+	}
+
+	public synchronized int getVertices() {
+		return vertices;
+	}
+
+	public synchronized int getFaces() {
+		return faces;
+	}
+
+	/** Vertices decoded per second of the vertex phase. */
+	public synchronized float getVerticesPerSecond() {
+		return perSecond(vertices, nanos[PHASE_VERTICES]);
+	}
+
+	/** Faces decoded per second of the face phase. */
+	public synchronized float getFacesPerSecond() {
+		return perSecond(faces, nanos[PHASE_FACES]);
+	}
+
+	private static float perSecond(int count, long time) {
+		return time > 0 ? count * 1e9f / time : 0f;
+	}
+
+	/**
+	 * Records the bytes of the direct buffers the load holds right now, which
+	 * the peak is taken from.
+	 */
+	public synchronized void setBufferBytes(long bytes) {
+		bufferBytes = bytes;
+		peakBufferBytes = Math.max(peakBufferBytes, bytes);
+	}
+
+	public synchronized long getBufferBytes() {
+		return bufferBytes;
+	}
+
+	public synchronized long getPeakBufferBytes() {
+		return peakBufferBytes;
+	}
+
+	public synchronized void setFromCache(boolean fromCache) {
+		this.fromCache = fromCache;
+	}
+
+	/** Whether the mesh was mapped from MeshDiskCache instead of parsed. */
+	public synchronized boolean isFromCache() {
+		return fromCache;
+	}
+
+	public void setProgressListener(ProgressListener listener) {
+		progressListener = listener;
+	}
+
+	/**
+	 * Moves the load to fraction of the way through and tells the progress
+	 * listener, unless it was told too recently or too little has changed.
+	 * The last step is always reported.
+	 */
+	public void setProgress(float fraction) {
+		ProgressListener listener = progressListener;
+		synchronized (this) {
+			if (fraction <= progress)
+				return;
+			progress = fraction;
+			if (listener == null)
+				return;
+			long now = System.nanoTime();
+			if (fraction < 1f
+					&& (fraction - reportedProgress < PROGRESS_STEP || now
+							- reportedTime < PROGRESS_INTERVAL))
+				return;
+			reportedProgress = fraction;
+			reportedTime = now;
+		}
+		listener.progress(this, fraction);
+	}
+
+	public synchronized float getProgress() {
+		return progress;
+	}
+
+	/** Wraps in so that everything read from it is counted. */
+	public InputStream count(InputStream in) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b != -1)
+					addBytesRead(1);
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0)
+					addBytesRead(n);
+				return n;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				long skipped = super.skip(n);
+				addBytesRead(skipped);
+				return skipped;
+			}
+		};
+	}
+
+	public static String phaseName(int phase) {
+		return PHASE_NAMES[phase];
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder(name);
+		sb.append(fromCache ? " (cached)" : "");
+		sb.append(failed ? " failed" : "");
+		sb.append(failure != null ? " (" + failure + ")" : "");
+		sb.append(endTime == 0 ? " loading " + (int) (progress * 100f) + "%"
+				: "");
+		sb.append(": ").append(getTotalNanos() / 1000000).append(" ms");
+		for (int i = 0; i < PHASE_COUNT; i++)
+			sb.append(", ").append(PHASE_NAMES[i]).append(' ')
+					.append(nanos[i] / 1000).append(" us");
+		sb.append(", ").append(bytesRead).append(" bytes read, ")
+				.append(vertices).append(" vertices (")
+				.append((int) getVerticesPerSecond()).append("/s), ")
+				.append(faces).append(" faces (")
+				.append((int) getFacesPerSecond()).append("/s), peak buffers ")
+				.append(peakBufferBytes).append(" bytes");
+		return sb.toString();
+	}
+}
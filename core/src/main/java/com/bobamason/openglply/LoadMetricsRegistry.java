@@ -0,0 +1,122 @@
+package com.bobamason.openglply;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Keeps the metrics of the loads that are running and of the last few that
+ * finished, with totals over every load since the last reset. Poll it from
+ * any thread, or dump it to the log.
+ */
+public class LoadMetricsRegistry {
+	private static final int HISTORY_SIZE = 32;
+
+	private static final ArrayList<LoadMetrics> active = new ArrayList<LoadMetrics>();
+
+	private static final LinkedList<LoadMetrics> finished = new LinkedList<LoadMetrics>();
+
+	private static final long[] totalNanos = new long[LoadMetrics.PHASE_COUNT];
+
+	private static int loads;
+
+	private static int failures;
+
+	private static long totalBytesRead;
+
+	private static long peakBufferBytes;
+
+	private LoadMetricsRegistry() {
+	}
+
+	/** Starts the clock of metrics and lists it as running. */
+	public static void started(LoadMetrics metrics) {
+		metrics.start();
+		synchronized (active) {
+			active.add(metrics);
+		}
+	}
+
+	/**
+	 * Stops the clock of metrics and moves it to the history. The upload time
+	 * it gathers afterwards is left out of the totals.
+	 */
+	public static void finished(LoadMetrics metrics, boolean failed) {
+		metrics.finish(failed);
+		synchronized (active) {
+			if (!active.remove(metrics))
+				return;
+			finished.addLast(metrics);
+			if (finished.size() > HISTORY_SIZE)
+				finished.removeFirst();
+			loads++;
+			if (failed)
+				failures++;
+			for (int i = 0; i < totalNanos.length; i++)
+				totalNanos[i] += metrics.getNanos(i);
+			totalBytesRead += metrics.getBytesRead();
+			peakBufferBytes = Math.max(peakBufferBytes,
+					metrics.getPeakBufferBytes());
+		}
+	}
+
+	public static List<LoadMetrics> getActive() {
+		synchronized (active) {
+			return new ArrayList<LoadMetrics>(active);
+		}
+	}
+
+	/** The most recently finished loads, oldest first. */
+	public static List<LoadMetrics> getFinished() {
+		synchronized (active) {
+			return new ArrayList<LoadMetrics>(finished);
+		}
+	}
+
+	public static int getLoadCount() {
+		synchronized (active) {
+			return loads;
+		}
+	}
+
+	/** Nanoseconds spent in phase over all finished loads. */
+	public static long getTotalNanos(int phase) {
+		synchronized (active) {
+			return totalNanos[phase];
+		}
+	}
+
+	/** Forgets the history and totals; running loads are kept. */
+	public static void reset() {
+		synchronized (active) {
+			finished.clear();
+			Arrays.fill(totalNanos, 0L);
+			loads = 0;
+			failures = 0;
+			totalBytesRead = 0;
+			peakBufferBytes = 0;
+		}
+	}
+
+	public static void dump(PrintWriter out) {
+		synchronized (active) {
+			out.print(loads + " loads, " + failures + " failed, "
+					+ totalBytesRead + " bytes read, peak buffers "
+					+ peakBufferBytes + " bytes");
+			for (int i = 0; i < totalNanos.length; i++)
+				out.print(", " + LoadMetrics.phaseName(i) + " "
+						+ totalNanos[i] / 1000000 + " ms");
+			out.println();
+			for (LoadMetrics m : active)
+				out.println(m);
+			for (LoadMetrics m : finished)
+				out.println(m);
+		}
+		out.flush();
+	}
+
+	public static String dump() {
+		StringWriter s = new StringWriter();
+		dump(new PrintWriter(s));
+		return s.toString();
+	}
+}
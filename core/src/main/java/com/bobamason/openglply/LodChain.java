@@ -0,0 +1,164 @@
+package com.bobamason.openglply;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Builds levels of detail for a mesh and picks one for a draw. Level 0 is the
+ * mesh itself and each further level has about half the triangles of the one
+ * before. Every level is simplified from the full mesh on its own, so the
+ * levels are built in parallel.
+ *
+ * A draw uses level k once the bounding sphere covers less than
+ * LEVEL_0_SIZE / 2^(k - 1) of the screen height. To keep a model that sits
+ * near a threshold from switching every frame, it has to get HYSTERESIS
+ * further past a threshold than the one it crossed last.
+ */
+public class LodChain {
+	/** Triangle fractions of the levels after the first. */
+	private static final float[] RATIOS = { 0.5f, 0.25f, 0.125f };
+
+	/** Meshes with fewer triangles are cheap enough as they are. */
+	public static final int MIN_TRIANGLES = 256;
+
+	/** A level that saves less than this fraction of the last is dropped. */
+	private static final float MIN_SAVING = 0.25f;
+
+	/** Screen height fraction below which level 1 is used. */
+	public static final float LEVEL_0_SIZE = 0.25f;
+
+	public static final float HYSTERESIS = 0.15f;
+
+	private static LodChain defaultChain;
+
+	private final ExecutorService executor;
+
+	public LodChain(int threads) {
+		executor = Executors.newFixedThreadPool(Math.max(1, threads),
+				new ThreadFactory() {
+					private int count = 0;
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "LodChain-" + (count++));
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	public static synchronized LodChain getDefault() {
+		if (defaultChain == null)
+			defaultChain = new LodChain(Math.min(RATIOS.length, Runtime
+					.getRuntime().availableProcessors()));
+		return defaultChain;
+	}
+
+	/**
+	 * Returns mesh followed by its simplified levels, or just mesh if it is
+	 * too small or has positions that are not floats.
+	 */
+	public MeshData[] build(final MeshData mesh) throws IOException {
+		VertexLayout.Attribute position = mesh.layout
+				.get(VertexLayout.POSITION);
+		if (mesh.indexCount / 3 < MIN_TRIANGLES || position == null
+				|| position.type != VertexLayout.GL_FLOAT)
+			return new MeshData[] { mesh };
+
+		List<Callable<MeshData>> tasks = new ArrayList<Callable<MeshData>>();
+		for (int i = 0; i < RATIOS.length; i++) {
+			final float ratio = RATIOS[i];
+			tasks.add(new Callable<MeshData>() {
+				@Override
+				public MeshData call() {
+					return MeshSimplifier.simplify(mesh, ratio);
+				}
+			});
+		}
+
+		List<Future<MeshData>> futures;
+		try {
+			futures = executor.invokeAll(tasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("lod build interrupted");
+		}
+
+		ArrayList<MeshData> levels = new ArrayList<MeshData>();
+		levels.add(mesh);
+		for (int i = 0; i < futures.size(); i++) {
+			MeshData level = get(futures.get(i));
+			MeshData last = levels.get(levels.size() - 1);
+			// open and seamed meshes stop simplifying early
+			if (level.indexCount <= last.indexCount * (1f - MIN_SAVING))
+				levels.add(level);
+		}
+		return levels.toArray(new MeshData[levels.size()]);
+	}
+
+	private static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("lod build interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause.toString());
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * The fraction of the screen height a sphere covers. mv takes the sphere's
+	 * coordinates to eye space and projection is the projection matrix, both
+	 * column major.
+	 */
+	public static float screenSize(float[] mv, float[] projection,
+			float[] center, float radius) {
+		return screenSize(mv, 0, projection, center, radius);
+	}
+
+	public static float screenSize(float[] mv, int offset, float[] projection,
+			float[] center, float radius) {
+		float scale = 0f;
+		for (int c = 0; c < 3; c++) {
+			int i = offset + c * 4;
+			float x = mv[i], y = mv[i + 1], z = mv[i + 2];
+			scale = Math.max(scale, x * x + y * y + z * z);
+		}
+		float r = radius * (float) Math.sqrt(scale);
+		float z = mv[offset + 2] * center[0] + mv[offset + 6] * center[1]
+				+ mv[offset + 10] * center[2] + mv[offset + 14];
+		// clip w of the center; -z for a perspective projection
+		float w = projection[11] * z + projection[15];
+		if (w <= r)
+			return Float.POSITIVE_INFINITY;
+		return r * Math.abs(projection[5]) / w;
+	}
+
+	/**
+	 * Picks the level for screenSize, given the level the model was drawn
+	 * with last and the number of levels.
+	 */
+	public static int select(float screenSize, int current, int levels) {
+		int level = Math.max(0, Math.min(current, levels - 1));
+		while (level + 1 < levels
+				&& screenSize < threshold(level + 1) * (1f - HYSTERESIS))
+			level++;
+		while (level > 0 && screenSize > threshold(level) * (1f + HYSTERESIS))
+			level--;
+		return level;
+	}
+
+	/** The screen size below which level is used. */
+	private static float threshold(int level) {
+		return LEVEL_0_SIZE / (1 << (level - 1));
+	}
+}
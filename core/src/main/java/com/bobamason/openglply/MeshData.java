@@ -0,0 +1,94 @@
+package com.bobamason.openglply;
+
+import java.nio.*;
+
+public class MeshData {
+	public static final int GL_UNSIGNED_SHORT = 0x1403;
+
+	public static final int GL_UNSIGNED_INT = 0x1405;
+
+	/** The most vertices that unsigned short indices can address. */
+	public static final int MAX_SHORT_VERTICES = 65536;
+
+	public final VertexLayout layout;
+
+	/** Interleaved vertices in native byte order, laid out by layout. */
+	public final ByteBuffer vertices;
+
+	public final int vertexCount;
+
+	/** A ShortBuffer or an IntBuffer, depending on indexType. */
+	public final Buffer indices;
+
+	public final int indexType;
+
+	public final int indexCount;
+
+	/** Bounds of the positions, gathered while the vertices were decoded. */
+	public final Bounds bounds;
+
+	/**
+	 * Stored positions p map to model space as p * positionScale +
+	 * positionOffset. Only quantized positions use anything but 1 and 0.
+	 */
+	public final float positionScale;
+
+	public final float[] positionOffset;
+
+	public MeshData(VertexLayout layout, ByteBuffer vertices, int vertexCount,
+			Buffer indices, int indexType, int indexCount, Bounds bounds) {
+		this(layout, vertices, vertexCount, indices, indexType, indexCount,
+				bounds, 1f, new float[3]);
+	}
+
+	public MeshData(VertexLayout layout, ByteBuffer vertices, int vertexCount,
+			Buffer indices, int indexType, int indexCount, Bounds bounds,
+			float positionScale, float[] positionOffset) {
+		this.layout = layout;
+		this.vertices = vertices;
+		this.vertexCount = vertexCount;
+		this.indices = indices;
+		this.indexType = indexType;
+		this.indexCount = indexCount;
+		this.bounds = bounds;
+		this.positionScale = positionScale;
+		this.positionOffset = positionOffset;
+	}
+
+	public boolean hasPositionTransform() {
+		return positionScale != 1f || positionOffset[0] != 0f
+				|| positionOffset[1] != 0f || positionOffset[2] != 0f;
+	}
+
+	/**
+	 * Writes the column major matrix that takes stored positions to model
+	 * space, for multiplying onto the model matrix.
+	 */
+	public void getPositionMatrix(float[] m, int offset) {
+		for (int i = 0; i < 16; i++)
+			m[offset + i] = 0f;
+		m[offset] = positionScale;
+		m[offset + 5] = positionScale;
+		m[offset + 10] = positionScale;
+		m[offset + 12] = positionOffset[0];
+		m[offset + 13] = positionOffset[1];
+		m[offset + 14] = positionOffset[2];
+		m[offset + 15] = 1f;
+	}
+
+	public int getIndex(int i) {
+		if (indexType == GL_UNSIGNED_INT)
+			return ((IntBuffer) indices).get(i);
+		return ((ShortBuffer) indices).get(i) & 0xffff;
+	}
+
+	public int getIndexSize() {
+		return indexType == GL_UNSIGNED_INT ? 4 : 2;
+	}
+
+	/** Bytes held outside the java heap by the vertex and index buffers. */
+	public long getDirectBytes() {
+		return (long) vertices.capacity() + (long) indices.capacity()
+				* getIndexSize();
+	}
+}
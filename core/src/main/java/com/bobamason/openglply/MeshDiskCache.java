@@ -0,0 +1,294 @@
+package com.bobamason.openglply;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Keeps draw-ready meshes on disk so that later runs skip parsing. A cache
+ * file is a small header followed by the vertex and index bytes exactly as
+ * they are handed to GL, so a hit maps the file and slices the mapped region
+ * into the MeshData buffers without copying.
+ *
+ * Files are written in native byte order; a file written with another order,
+ * an older format version or a different key is treated as a miss. Each key
+ * has a file of its own, so meshes of one asset built with different flags
+ * are kept side by side. Every store writes its own temporary file and
+ * renames it, so neither a crash nor two stores of the same key at once can
+ * leave a partial file behind.
+ */
+public class MeshDiskCache {
+	/** Bump whenever the layout of the file or of the cached meshes changes. */
+	public static final int FORMAT_VERSION = 3;
+
+	private static final int MAGIC = 0x504C594D;
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final File dir;
+
+	public MeshDiskCache(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Returns the cached meshes for key, or null if there are none or the file
+	 * does not match.
+	 */
+	public MeshData[] load(Key key) {
+		File file = fileFor(key);
+		if (!file.isFile())
+			return null;
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			// the mapping stays valid after the channel is closed
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, channel.size());
+			mapped.order(ByteOrder.nativeOrder());
+			return read(mapped, key);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (RuntimeException e) {
+			// a truncated or corrupt file reads past its end or declares
+			// impossible sizes, either way it is rebuilt
+			e.printStackTrace();
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		file.delete();
+		return null;
+	}
+
+	public void store(Key key, MeshData[] parts) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("can not create mesh cache dir " + dir);
+		File file = fileFor(key);
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+
+		FileOutputStream out = new FileOutputStream(tmp);
+		boolean ok = false;
+		try {
+			FileChannel channel = out.getChannel();
+			writeFully(channel, header(key, parts));
+			ByteBuffer scratch = ByteBuffer.allocateDirect(CHUNK_SIZE);
+			scratch.order(ByteOrder.nativeOrder());
+			for (int i = 0; i < parts.length; i++) {
+				MeshData part = parts[i];
+				ByteBuffer vertices = part.vertices.duplicate();
+				vertices.clear();
+				vertices.limit(part.vertexCount * part.layout.getStride());
+				writeFully(channel, vertices);
+				writeIndices(channel, part, scratch);
+			}
+			out.getFD().sync();
+			ok = true;
+		} finally {
+			out.close();
+			if (!ok)
+				tmp.delete();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("can not rename mesh cache file " + file);
+		}
+	}
+
+	public void remove(Key key) {
+		fileFor(key).delete();
+	}
+
+	/**
+	 * The name is kept readable; the flags and the hash of the name tell apart
+	 * keys that only differ in those or in characters that are replaced.
+	 */
+	private File fileFor(Key key) {
+		StringBuilder sb = new StringBuilder("ply-");
+		for (int i = 0; i < key.name.length(); i++) {
+			char c = key.name.charAt(i);
+			boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| (c >= '0' && c <= '9') || c == '.' || c == '-';
+			sb.append(safe ? c : '_');
+		}
+		sb.append('-').append(Integer.toHexString(key.flags)).append('-')
+				.append(Integer.toHexString(key.name.hashCode()));
+		return new File(dir, sb.append(".mesh").toString());
+	}
+
+	private static ByteBuffer header(Key key, MeshData[] parts)
+			throws UnsupportedEncodingException {
+		byte[] name = key.name.getBytes("UTF-8");
+		int size = 4 * 4 + 8 * 2 + 4 + align(name.length) + 4;
+		for (int i = 0; i < parts.length; i++)
+			size += 4 + parts[i].layout.count() * 4 * 4 + 3 * 4 + 14 * 4;
+
+		ByteBuffer b = ByteBuffer.allocate(size);
+		b.order(ByteOrder.nativeOrder());
+		b.putInt(MAGIC);
+		b.putInt(FORMAT_VERSION);
+		b.putLong(key.sourceSize);
+		b.putLong(key.sourceStamp);
+		b.putInt(key.flags);
+		b.putInt(name.length);
+		b.put(name);
+		b.position(b.position() + align(name.length) - name.length);
+		b.putInt(parts.length);
+		for (int i = 0; i < parts.length; i++) {
+			MeshData part = parts[i];
+			VertexLayout.Attribute[] attributes = part.layout.byOffset();
+			b.putInt(attributes.length);
+			for (int a = 0; a < attributes.length; a++) {
+				b.putInt(attributes[a].semantic);
+				b.putInt(attributes[a].size);
+				b.putInt(attributes[a].type);
+				b.putInt(attributes[a].normalized ? 1 : 0);
+			}
+			b.putInt(part.vertexCount);
+			b.putInt(part.indexType);
+			b.putInt(part.indexCount);
+			for (int k = 0; k < 3; k++)
+				b.putFloat(part.bounds.min[k]);
+			for (int k = 0; k < 3; k++)
+				b.putFloat(part.bounds.max[k]);
+			for (int k = 0; k < 3; k++)
+				b.putFloat(part.bounds.sphereCenter[k]);
+			b.putFloat(part.bounds.sphereRadius);
+			b.putFloat(part.positionScale);
+			for (int k = 0; k < 3; k++)
+				b.putFloat(part.positionOffset[k]);
+		}
+		b.flip();
+		return b;
+	}
+
+	private static MeshData[] read(ByteBuffer b, Key key) throws IOException {
+		if (b.getInt() != MAGIC || b.getInt() != FORMAT_VERSION
+				|| b.getLong() != key.sourceSize
+				|| b.getLong() != key.sourceStamp || b.getInt() != key.flags)
+			return null;
+		int nameLength = b.getInt();
+		if (nameLength < 0 || nameLength > b.remaining())
+			return null;
+		byte[] name = new byte[nameLength];
+		b.get(name);
+		if (!key.name.equals(new String(name, "UTF-8")))
+			return null;
+		b.position(b.position() + align(name.length) - name.length);
+
+		MeshData[] parts = new MeshData[b.getInt()];
+		VertexLayout[] layouts = new VertexLayout[parts.length];
+		int[][] counts = new int[parts.length][];
+		Bounds[] bounds = new Bounds[parts.length];
+		float[][] transforms = new float[parts.length][];
+		for (int i = 0; i < parts.length; i++) {
+			VertexLayout layout = new VertexLayout();
+			int attributes = b.getInt();
+			for (int a = 0; a < attributes; a++)
+				layout.add(b.getInt(), b.getInt(), b.getInt(), b.getInt() != 0);
+			layouts[i] = layout;
+			counts[i] = new int[] { b.getInt(), b.getInt(), b.getInt() };
+			bounds[i] = new Bounds();
+			for (int k = 0; k < 3; k++)
+				bounds[i].min[k] = b.getFloat();
+			for (int k = 0; k < 3; k++)
+				bounds[i].max[k] = b.getFloat();
+			for (int k = 0; k < 3; k++)
+				bounds[i].sphereCenter[k] = b.getFloat();
+			bounds[i].sphereRadius = b.getFloat();
+			transforms[i] = new float[] { b.getFloat(), b.getFloat(),
+					b.getFloat(), b.getFloat() };
+		}
+
+		for (int i = 0; i < parts.length; i++) {
+			int vertexCount = counts[i][0];
+			int indexType = counts[i][1];
+			int indexCount = counts[i][2];
+			ByteBuffer vertices = slice(b, vertexCount
+					* layouts[i].getStride());
+			ByteBuffer indexBytes = slice(b, indexCount
+					* (indexType == MeshData.GL_UNSIGNED_INT ? 4 : 2));
+			b.position(b.position() + align(indexBytes.capacity())
+					- indexBytes.capacity());
+			Buffer indices = indexType == MeshData.GL_UNSIGNED_INT ? indexBytes
+					.asIntBuffer() : indexBytes.asShortBuffer();
+			float[] t = transforms[i];
+			parts[i] = new MeshData(layouts[i], vertices, vertexCount,
+					indices, indexType, indexCount, bounds[i], t[0],
+					new float[] { t[1], t[2], t[3] });
+		}
+		if (b.hasRemaining())
+			throw new IOException("mesh cache file has trailing bytes");
+		return parts;
+	}
+
+	private static ByteBuffer slice(ByteBuffer b, int length) {
+		int end = b.position() + length;
+		if (length < 0 || end > b.limit())
+			throw new BufferUnderflowException();
+		ByteBuffer window = b.duplicate();
+		window.limit(end);
+		b.position(end);
+		return window.slice().order(ByteOrder.nativeOrder());
+	}
+
+	private static void writeIndices(FileChannel channel, MeshData part,
+			ByteBuffer scratch) throws IOException {
+		boolean ints = part.indexType == MeshData.GL_UNSIGNED_INT;
+		scratch.clear();
+		for (int i = 0; i < part.indexCount; i++) {
+			if (scratch.remaining() < 4) {
+				scratch.flip();
+				writeFully(channel, scratch);
+				scratch.clear();
+			}
+			if (ints)
+				scratch.putInt(part.getIndex(i));
+			else
+				scratch.putShort((short) part.getIndex(i));
+		}
+		if (!ints && (part.indexCount & 1) != 0)
+			scratch.putShort((short) 0);
+		scratch.flip();
+		writeFully(channel, scratch);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer b)
+			throws IOException {
+		while (b.hasRemaining())
+			channel.write(b);
+	}
+
+	private static int align(int bytes) {
+		return (bytes + 3) & ~3;
+	}
+
+	/**
+	 * Identifies the source a cache file was built from. sourceStamp should
+	 * change whenever the source can, and flags covers anything else the
+	 * cached meshes depend on.
+	 */
+	public static class Key {
+		public final String name;
+
+		public final long sourceSize;
+
+		public final long sourceStamp;
+
+		public final int flags;
+
+		public Key(String name, long sourceSize, long sourceStamp, int flags) {
+			this.name = name;
+			this.sourceSize = sourceSize;
+			this.sourceStamp = sourceStamp;
+			this.flags = flags;
+		}
+	}
+}
@@ -0,0 +1,583 @@
+package com.bobamason.openglply;
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Reduces the triangles of a mesh by edge collapses ordered by quadric error
+ * (Garland and Heckbert). Collapses move one vertex onto a neighbour rather
+ * than to a new position, so every vertex left keeps its own normal, color
+ * and texture coordinates, and the result can be drawn from a subset of the
+ * original vertices.
+ *
+ * The decoder gives each side of a texture or normal seam, and each face of
+ * a flat shaded mesh, its own copy of a corner. Collapses therefore work on
+ * positions: every vertex at a position is moved together, each onto the
+ * vertex at the target position whose other attributes are closest. Positions
+ * on open edges are never moved, which keeps holes and silhouettes in place.
+ * A collapse that would flip a triangle is skipped.
+ */
+public class MeshSimplifier {
+	private final MeshData mesh;
+
+	/** Number of distinct positions. */
+	private final int vertexCount;
+
+	private final float[] px;
+
+	private final float[] py;
+
+	private final float[] pz;
+
+	// the vertices at each position, packed
+	private final int[] positionStart;
+
+	private final int[] positionVertices;
+
+	/** The vertices of each triangle, for the result. */
+	private final int[] vertices;
+
+	/** The positions of each triangle, which collapses work on. */
+	private final int[] triangles;
+
+	private final boolean[] triangleAlive;
+
+	private int liveTriangles;
+
+	// live and dead triangles of each vertex; dead ones are dropped lazily
+	private final int[][] vertexTriangles;
+
+	private final int[] vertexTriangleCount;
+
+	private final boolean[] locked;
+
+	private final boolean[] removed;
+
+	private final double[] quadrics;
+
+	private final int[] versions;
+
+	// binary heap of collapse candidates ordered by cost
+	private float[] heapCost = new float[64];
+
+	private int[] heapFrom = new int[64];
+
+	private int[] heapTo = new int[64];
+
+	private int[] heapVersion = new int[64];
+
+	private int heapSize;
+
+	private int[] neighbours = new int[32];
+
+	private int[] ring = new int[32];
+
+	// scratch normals, before and after a collapse
+	private final float[] normalA = new float[3];
+
+	private final float[] normalB = new float[3];
+
+	private MeshSimplifier(MeshData mesh) {
+		this.mesh = mesh;
+		int stride = mesh.layout.getStride();
+		int position = mesh.layout.get(VertexLayout.POSITION).offset;
+		int[] positionOf = new int[mesh.vertexCount];
+		HashMap<PositionKey, Integer> ids = new HashMap<PositionKey, Integer>();
+		for (int v = 0; v < mesh.vertexCount; v++) {
+			int base = v * stride + position;
+			PositionKey key = new PositionKey(mesh.vertices.getFloat(base),
+					mesh.vertices.getFloat(base + 4),
+					mesh.vertices.getFloat(base + 8));
+			Integer id = ids.get(key);
+			if (id == null) {
+				id = ids.size();
+				ids.put(key, id);
+			}
+			positionOf[v] = id;
+		}
+
+		vertexCount = ids.size();
+		px = new float[vertexCount];
+		py = new float[vertexCount];
+		pz = new float[vertexCount];
+		positionStart = new int[vertexCount + 1];
+		positionVertices = new int[mesh.vertexCount];
+		for (int v = 0; v < mesh.vertexCount; v++)
+			positionStart[positionOf[v] + 1]++;
+		for (int p = 0; p < vertexCount; p++)
+			positionStart[p + 1] += positionStart[p];
+		int[] fill = new int[vertexCount];
+		for (int v = 0; v < mesh.vertexCount; v++) {
+			int p = positionOf[v];
+			positionVertices[positionStart[p] + fill[p]++] = v;
+			int base = v * stride + position;
+			px[p] = mesh.vertices.getFloat(base);
+			py[p] = mesh.vertices.getFloat(base + 4);
+			pz[p] = mesh.vertices.getFloat(base + 8);
+		}
+
+		vertices = new int[mesh.indexCount / 3 * 3];
+		triangles = new int[vertices.length];
+		for (int i = 0; i < triangles.length; i++) {
+			vertices[i] = mesh.getIndex(i);
+			triangles[i] = positionOf[vertices[i]];
+		}
+		int count = triangles.length / 3;
+		triangleAlive = new boolean[count];
+		vertexTriangleCount = new int[vertexCount];
+		for (int t = 0; t < count; t++) {
+			int a = triangles[t * 3], b = triangles[t * 3 + 1], c = triangles[t * 3 + 2];
+			if (a == b || b == c || c == a)
+				continue;
+			triangleAlive[t] = true;
+			liveTriangles++;
+			vertexTriangleCount[a]++;
+			vertexTriangleCount[b]++;
+			vertexTriangleCount[c]++;
+		}
+		vertexTriangles = new int[vertexCount][];
+		for (int v = 0; v < vertexCount; v++) {
+			vertexTriangles[v] = new int[Math.max(4, vertexTriangleCount[v])];
+			vertexTriangleCount[v] = 0;
+		}
+		for (int t = 0; t < count; t++) {
+			if (!triangleAlive[t])
+				continue;
+			for (int k = 0; k < 3; k++)
+				addTriangle(triangles[t * 3 + k], t);
+		}
+
+		locked = new boolean[vertexCount];
+		removed = new boolean[vertexCount];
+		versions = new int[vertexCount];
+		quadrics = new double[vertexCount * 10];
+		lockOpenEdges();
+		for (int t = 0; t < count; t++) {
+			if (triangleAlive[t])
+				addPlaneQuadric(t);
+		}
+	}
+
+	/**
+	 * Returns indices into the vertices of mesh for at most targetTriangles
+	 * triangles, or for as few as could be reached. The positions must be
+	 * floats, as the decoder produces them.
+	 */
+	public static int[] simplify(MeshData mesh, int targetTriangles) {
+		MeshSimplifier s = new MeshSimplifier(mesh);
+		s.run(targetTriangles);
+		return s.liveIndices();
+	}
+
+	/**
+	 * Simplifies mesh to about ratio of its triangles and returns the result
+	 * with only the vertices it uses, in the order it uses them. The bounds
+	 * and position transform of mesh are kept so that levels line up.
+	 */
+	public static MeshData simplify(MeshData mesh, float ratio) {
+		int target = (int) (mesh.indexCount / 3 * ratio);
+		return compact(mesh, simplify(mesh, target));
+	}
+
+	/** Copies the vertices indices refer to into a mesh of their own. */
+	public static MeshData compact(MeshData mesh, int[] indices) {
+		int[] remap = new int[mesh.vertexCount];
+		Arrays.fill(remap, -1);
+		int used = 0;
+		for (int i = 0; i < indices.length; i++) {
+			if (remap[indices[i]] < 0)
+				remap[indices[i]] = used++;
+		}
+
+		int stride = mesh.layout.getStride();
+		ByteBuffer vertices = ByteBuffer.allocateDirect(used * stride);
+		vertices.order(ByteOrder.nativeOrder());
+		ByteBuffer in = mesh.vertices.duplicate();
+		for (int v = 0; v < mesh.vertexCount; v++) {
+			if (remap[v] < 0)
+				continue;
+			in.limit(v * stride + stride);
+			in.position(v * stride);
+			vertices.position(remap[v] * stride);
+			vertices.put(in);
+		}
+		vertices.position(0);
+
+		Buffer out;
+		int indexType;
+		if (used > MeshData.MAX_SHORT_VERTICES
+				|| mesh.indexType == MeshData.GL_UNSIGNED_INT) {
+			IntBuffer ints = ByteBuffer.allocateDirect(indices.length * 4)
+					.order(ByteOrder.nativeOrder()).asIntBuffer();
+			for (int i = 0; i < indices.length; i++)
+				ints.put(remap[indices[i]]);
+			out = ints;
+			indexType = MeshData.GL_UNSIGNED_INT;
+		} else {
+			ShortBuffer shorts = ByteBuffer.allocateDirect(indices.length * 2)
+					.order(ByteOrder.nativeOrder()).asShortBuffer();
+			for (int i = 0; i < indices.length; i++)
+				shorts.put((short) remap[indices[i]]);
+			out = shorts;
+			indexType = MeshData.GL_UNSIGNED_SHORT;
+		}
+		out.position(0);
+
+		return new MeshData(mesh.layout, vertices, used, out, indexType,
+				indices.length, mesh.bounds, mesh.positionScale,
+				mesh.positionOffset);
+	}
+
+	private void run(int targetTriangles) {
+		for (int v = 0; v < vertexCount; v++)
+			pushBestCollapse(v);
+
+		while (liveTriangles > targetTriangles && heapSize > 0) {
+			int from = heapFrom[0];
+			int to = heapTo[0];
+			int version = heapVersion[0];
+			popHeap();
+			if (removed[from] || version != versions[from])
+				continue;
+			if (removed[to]) {
+				pushBestCollapse(from);
+				continue;
+			}
+			if (flips(from, to)) {
+				// tried again if a neighbour collapse changes the area
+				versions[from]++;
+				continue;
+			}
+			collapse(from, to);
+		}
+	}
+
+	private void collapse(int from, int to) {
+		int[] list = vertexTriangles[from];
+		int count = vertexTriangleCount[from];
+		for (int i = 0; i < count; i++) {
+			int t = list[i];
+			if (!triangleAlive[t])
+				continue;
+			int base = t * 3;
+			if (triangles[base] == to || triangles[base + 1] == to
+					|| triangles[base + 2] == to) {
+				triangleAlive[t] = false;
+				liveTriangles--;
+				continue;
+			}
+			for (int k = 0; k < 3; k++) {
+				if (triangles[base + k] == from) {
+					triangles[base + k] = to;
+					vertices[base + k] = closestVertex(vertices[base + k], to);
+				}
+			}
+			addTriangle(to, t);
+		}
+		vertexTriangleCount[from] = 0;
+		removed[from] = true;
+		for (int k = 0; k < 10; k++)
+			quadrics[to * 10 + k] += quadrics[from * 10 + k];
+
+		pushBestCollapse(to);
+		// pushBestCollapse gathers neighbours of its own
+		int n = gatherNeighbours(to);
+		if (ring.length < n)
+			ring = new int[neighbours.length];
+		System.arraycopy(neighbours, 0, ring, 0, n);
+		for (int i = 0; i < n; i++)
+			pushBestCollapse(ring[i]);
+	}
+
+	/**
+	 * The vertex at position p whose attributes other than the position are
+	 * closest to those of vertex v.
+	 */
+	private int closestVertex(int v, int p) {
+		int start = positionStart[p];
+		int end = positionStart[p + 1];
+		if (end - start == 1)
+			return positionVertices[start];
+		int best = positionVertices[start];
+		float bestDistance = Float.POSITIVE_INFINITY;
+		for (int i = start; i < end; i++) {
+			int u = positionVertices[i];
+			float d = attributeDistance(v, u);
+			if (d < bestDistance) {
+				bestDistance = d;
+				best = u;
+			}
+		}
+		return best;
+	}
+
+	private float attributeDistance(int a, int b) {
+		VertexLayout layout = mesh.layout;
+		int stride = layout.getStride();
+		float d = 0f;
+		for (int s = 0; s < VertexLayout.SEMANTIC_COUNT; s++) {
+			VertexLayout.Attribute attribute = layout.get(s);
+			if (s == VertexLayout.POSITION || attribute == null
+					|| attribute.type != VertexLayout.GL_FLOAT)
+				continue;
+			for (int k = 0; k < attribute.size; k++) {
+				int offset = attribute.offset + k * 4;
+				d += Math.abs(mesh.vertices.getFloat(a * stride + offset)
+						- mesh.vertices.getFloat(b * stride + offset));
+			}
+		}
+		return d;
+	}
+
+	/** True if moving from onto to turns any remaining triangle over. */
+	private boolean flips(int from, int to) {
+		int[] list = vertexTriangles[from];
+		int count = vertexTriangleCount[from];
+		for (int i = 0; i < count; i++) {
+			int t = list[i];
+			if (!triangleAlive[t])
+				continue;
+			int a = triangles[t * 3], b = triangles[t * 3 + 1], c = triangles[t * 3 + 2];
+			if (a == to || b == to || c == to)
+				continue;
+			float[] before = normal(a, b, c, -1, -1);
+			float[] after = normal(a, b, c, from, to);
+			if (before[0] * after[0] + before[1] * after[1] + before[2]
+					* after[2] <= 0f)
+				return true;
+		}
+		return false;
+	}
+
+	private float[] normal(int a, int b, int c, int from, int to) {
+		if (a == from)
+			a = to;
+		if (b == from)
+			b = to;
+		if (c == from)
+			c = to;
+		float[] n = from < 0 ? normalA : normalB;
+		float ux = px[b] - px[a], uy = py[b] - py[a], uz = pz[b] - pz[a];
+		float vx = px[c] - px[a], vy = py[c] - py[a], vz = pz[c] - pz[a];
+		n[0] = uy * vz - uz * vy;
+		n[1] = uz * vx - ux * vz;
+		n[2] = ux * vy - uy * vx;
+		return n;
+	}
+
+	private void pushBestCollapse(int from) {
+		versions[from]++;
+		if (locked[from] || removed[from])
+			return;
+		int n = gatherNeighbours(from);
+		float best = Float.POSITIVE_INFINITY;
+		int bestTo = -1;
+		for (int i = 0; i < n; i++) {
+			int to = neighbours[i];
+			float cost = cost(from, to);
+			if (cost < best) {
+				best = cost;
+				bestTo = to;
+			}
+		}
+		if (bestTo >= 0)
+			pushHeap(best, from, bestTo, versions[from]);
+	}
+
+	/** Error of the summed quadrics of both vertices at to's position. */
+	private float cost(int from, int to) {
+		double x = px[to], y = py[to], z = pz[to];
+		int a = from * 10, b = to * 10;
+		double[] q = quadrics;
+		double e = (q[a] + q[b]) * x * x + 2 * (q[a + 1] + q[b + 1]) * x * y
+				+ 2 * (q[a + 2] + q[b + 2]) * x * z + 2 * (q[a + 3] + q[b + 3])
+				* x + (q[a + 4] + q[b + 4]) * y * y + 2
+				* (q[a + 5] + q[b + 5]) * y * z + 2 * (q[a + 6] + q[b + 6])
+				* y + (q[a + 7] + q[b + 7]) * z * z + 2
+				* (q[a + 8] + q[b + 8]) * z + (q[a + 9] + q[b + 9]);
+		return (float) Math.max(0.0, e);
+	}
+
+	private int gatherNeighbours(int v) {
+		int n = 0;
+		int[] list = vertexTriangles[v];
+		int count = vertexTriangleCount[v];
+		int live = 0;
+		for (int i = 0; i < count; i++) {
+			int t = list[i];
+			if (!triangleAlive[t])
+				continue;
+			// drop dead triangles while walking the list anyway
+			list[live++] = t;
+			for (int k = 0; k < 3; k++) {
+				int u = triangles[t * 3 + k];
+				if (u == v || contains(neighbours, n, u))
+					continue;
+				if (n == neighbours.length)
+					neighbours = Arrays.copyOf(neighbours, n * 2);
+				neighbours[n++] = u;
+			}
+		}
+		vertexTriangleCount[v] = live;
+		return n;
+	}
+
+	private static boolean contains(int[] a, int n, int value) {
+		for (int i = 0; i < n; i++) {
+			if (a[i] == value)
+				return true;
+		}
+		return false;
+	}
+
+	private void addTriangle(int v, int t) {
+		int count = vertexTriangleCount[v];
+		if (count == vertexTriangles[v].length)
+			vertexTriangles[v] = Arrays.copyOf(vertexTriangles[v], count * 2);
+		vertexTriangles[v][count] = t;
+		vertexTriangleCount[v] = count + 1;
+	}
+
+	/** Locks the vertices of edges that do not have exactly two triangles. */
+	private void lockOpenEdges() {
+		HashMap<Long, Integer> edges = new HashMap<Long, Integer>();
+		int count = triangles.length / 3;
+		for (int t = 0; t < count; t++) {
+			if (!triangleAlive[t])
+				continue;
+			for (int k = 0; k < 3; k++) {
+				Long key = edgeKey(triangles[t * 3 + k], triangles[t * 3
+						+ (k + 1) % 3]);
+				Integer uses = edges.get(key);
+				edges.put(key, uses == null ? 1 : uses + 1);
+			}
+		}
+		for (Map.Entry<Long, Integer> e : edges.entrySet()) {
+			if (e.getValue() != 2) {
+				long key = e.getKey();
+				locked[(int) (key >>> 32)] = true;
+				locked[(int) key] = true;
+			}
+		}
+	}
+
+	private static Long edgeKey(int a, int b) {
+		return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+	}
+
+	/** Adds the area weighted plane of triangle t to its three vertices. */
+	private void addPlaneQuadric(int t) {
+		int a = triangles[t * 3], b = triangles[t * 3 + 1], c = triangles[t * 3 + 2];
+		float[] n = normal(a, b, c, -1, -1);
+		double nx = n[0], ny = n[1], nz = n[2];
+		double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (length == 0.0)
+			return;
+		// the cross product is twice the area
+		double area = length / 2;
+		nx /= length;
+		ny /= length;
+		nz /= length;
+		double d = -(nx * px[a] + ny * py[a] + nz * pz[a]);
+		double[] plane = { nx * nx, nx * ny, nx * nz, nx * d, ny * ny,
+				ny * nz, ny * d, nz * nz, nz * d, d * d };
+		for (int k = 0; k < 3; k++) {
+			int v = triangles[t * 3 + k] * 10;
+			for (int i = 0; i < 10; i++)
+				quadrics[v + i] += plane[i] * area;
+		}
+	}
+
+	private int[] liveIndices() {
+		int[] out = new int[liveTriangles * 3];
+		int n = 0;
+		for (int t = 0; t < triangleAlive.length; t++) {
+			if (!triangleAlive[t])
+				continue;
+			out[n++] = vertices[t * 3];
+			out[n++] = vertices[t * 3 + 1];
+			out[n++] = vertices[t * 3 + 2];
+		}
+		return out;
+	}
+
+	private void pushHeap(float cost, int from, int to, int version) {
+		if (heapSize == heapCost.length) {
+			int size = heapSize * 2;
+			heapCost = Arrays.copyOf(heapCost, size);
+			heapFrom = Arrays.copyOf(heapFrom, size);
+			heapTo = Arrays.copyOf(heapTo, size);
+			heapVersion = Arrays.copyOf(heapVersion, size);
+		}
+		int i = heapSize++;
+		while (i > 0) {
+			int parent = (i - 1) >> 1;
+			if (heapCost[parent] <= cost)
+				break;
+			move(parent, i);
+			i = parent;
+		}
+		set(i, cost, from, to, version);
+	}
+
+	private void popHeap() {
+		int last = --heapSize;
+		if (last == 0)
+			return;
+		float cost = heapCost[last];
+		int from = heapFrom[last], to = heapTo[last], version = heapVersion[last];
+		int i = 0;
+		while (true) {
+			int child = i * 2 + 1;
+			if (child >= last)
+				break;
+			if (child + 1 < last && heapCost[child + 1] < heapCost[child])
+				child++;
+			if (heapCost[child] >= cost)
+				break;
+			move(child, i);
+			i = child;
+		}
+		set(i, cost, from, to, version);
+	}
+
+	private void move(int from, int to) {
+		heapCost[to] = heapCost[from];
+		heapFrom[to] = heapFrom[from];
+		heapTo[to] = heapTo[from];
+		heapVersion[to] = heapVersion[from];
+	}
+
+	private void set(int i, float cost, int from, int to, int version) {
+		heapCost[i] = cost;
+		heapFrom[i] = from;
+		heapTo[i] = to;
+		heapVersion[i] = version;
+	}
+
+	private static class PositionKey {
+		final float x, y, z;
+
+		PositionKey(float x, float y, float z) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof PositionKey))
+				return false;
+			PositionKey k = (PositionKey) o;
+			return Float.floatToIntBits(k.x) == Float.floatToIntBits(x)
+					&& Float.floatToIntBits(k.y) == Float.floatToIntBits(y)
+					&& Float.floatToIntBits(k.z) == Float.floatToIntBits(z);
+		}
+
+		@Override
+		public int hashCode() {
+			return (Float.floatToIntBits(x) * 31 + Float.floatToIntBits(y))
+					* 31 + Float.floatToIntBits(z);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.bobamason.openglply;
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Turns a mesh with 32-bit indices into meshes that can be drawn. Small meshes
+ * get 16-bit indices. Large meshes keep 32-bit indices when
+ * OES_element_index_uint is available, and are otherwise cut into submeshes of
+ * at most 65536 vertices with indices rebased to each submesh.
+ */
+public class MeshSplitter {
+	private MeshSplitter() {
+	}
+
+	public static MeshData[] prepare(MeshData mesh, boolean uintIndices) {
+		return prepare(mesh, uintIndices, MeshData.MAX_SHORT_VERTICES);
+	}
+
+	public static MeshData[] prepare(MeshData mesh, boolean uintIndices,
+			int maxVertices) {
+		if (mesh.indexType == MeshData.GL_UNSIGNED_SHORT)
+			return new MeshData[] { mesh };
+		if (mesh.vertexCount <= maxVertices)
+			return new MeshData[] { toShortIndices(mesh) };
+		if (uintIndices)
+			return new MeshData[] { mesh };
+		return split(mesh, maxVertices);
+	}
+
+	public static MeshData toShortIndices(MeshData mesh) {
+		ByteBuffer ib = ByteBuffer.allocateDirect(mesh.indexCount * 2);
+		ib.order(ByteOrder.nativeOrder());
+		ShortBuffer indices = ib.asShortBuffer();
+		for (int i = 0; i < mesh.indexCount; i++)
+			indices.put(i, (short) mesh.getIndex(i));
+		return new MeshData(mesh.layout, mesh.vertices, mesh.vertexCount,
+				indices, MeshData.GL_UNSIGNED_SHORT, mesh.indexCount,
+				mesh.bounds, mesh.positionScale, mesh.positionOffset);
+	}
+
+	/**
+	 * Walks the triangles in order and starts a new submesh whenever the next
+	 * triangle would bring in more vertices than fit. Exporters write faces
+	 * with good locality, so only vertices used on both sides of a cut are
+	 * copied twice. The first pass finds the cuts so that every buffer can be
+	 * allocated at its final size, the second fills them.
+	 */
+	public static MeshData[] split(MeshData mesh, int maxVertices) {
+		int triangles = mesh.indexCount / 3;
+		int[] stamp = new int[mesh.vertexCount];
+		int[] remap = new int[mesh.vertexCount];
+		int generation = 1;
+
+		ArrayList<int[]> ranges = new ArrayList<int[]>();
+		int first = 0;
+		int used = 0;
+		for (int t = 0; t < triangles; t++) {
+			int added = 0;
+			for (int k = 0; k < 3; k++) {
+				int v = mesh.getIndex(t * 3 + k);
+				if (stamp[v] != generation) {
+					stamp[v] = generation;
+					added++;
+				}
+			}
+			if (used + added > maxVertices) {
+				ranges.add(new int[] { first, t, used });
+				first = t;
+				used = 0;
+				generation++;
+				for (int k = 0; k < 3; k++) {
+					int v = mesh.getIndex(t * 3 + k);
+					if (stamp[v] != generation) {
+						stamp[v] = generation;
+						used++;
+					}
+				}
+			} else {
+				used += added;
+			}
+		}
+		ranges.add(new int[] { first, triangles, used });
+
+		int stride = mesh.layout.getStride();
+		ByteBuffer ib = ByteBuffer.allocateDirect(mesh.indexCount * 2);
+		ib.order(ByteOrder.nativeOrder());
+		ShortBuffer allIndices = ib.asShortBuffer();
+		ByteBuffer src = mesh.vertices.duplicate();
+		src.order(ByteOrder.nativeOrder());
+
+		MeshData[] parts = new MeshData[ranges.size()];
+		for (int r = 0; r < parts.length; r++) {
+			int[] range = ranges.get(r);
+			generation++;
+			ByteBuffer vertices = ByteBuffer.allocateDirect(range[2] * stride);
+			vertices.order(ByteOrder.nativeOrder());
+
+			allIndices.position(range[0] * 3);
+			allIndices.limit(range[1] * 3);
+			ShortBuffer indices = allIndices.slice();
+			allIndices.clear();
+
+			int count = 0;
+			for (int i = range[0] * 3; i < range[1] * 3; i++) {
+				int v = mesh.getIndex(i);
+				if (stamp[v] != generation) {
+					stamp[v] = generation;
+					remap[v] = count++;
+					src.limit(v * stride + stride);
+					src.position(v * stride);
+					vertices.put(src);
+				}
+				indices.put(i - range[0] * 3, (short) remap[v]);
+			}
+			vertices.position(0);
+			parts[r] = new MeshData(mesh.layout, vertices, count, indices,
+					MeshData.GL_UNSIGNED_SHORT, (range[1] - range[0]) * 3,
+					mesh.bounds, mesh.positionScale, mesh.positionOffset);
+		}
+		return parts;
+	}
+
+	public static int countVertices(MeshData[] parts) {
+		int count = 0;
+		for (int i = 0; i < parts.length; i++)
+			count += parts[i].vertexCount;
+		return count;
+	}
+}
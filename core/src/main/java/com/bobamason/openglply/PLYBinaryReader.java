@@ -0,0 +1,67 @@
+package com.bobamason.openglply;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Reads a binary ply body through a reusable chunk buffer in the byte order of
+ * the file. Callers ask for the number of bytes they are about to decode with
+ * require() and then read them from buffer().
+ */
+public class PLYBinaryReader {
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final ReadableByteChannel channel;
+
+	private final ByteBuffer chunk;
+
+	public PLYBinaryReader(InputStream in, ByteOrder order) {
+		channel = Channels.newChannel(in);
+		chunk = ByteBuffer.allocateDirect(CHUNK_SIZE).order(order);
+		chunk.limit(0);
+	}
+
+	/**
+	 * Reads an in-memory body. The buffer is used as the chunk, so it must
+	 * already be in the byte order of the file.
+	 */
+	public PLYBinaryReader(ByteBuffer data) {
+		channel = null;
+		chunk = data;
+	}
+
+	public ByteBuffer buffer() {
+		return chunk;
+	}
+
+	public int capacity() {
+		return chunk.capacity();
+	}
+
+	public void require(int n) throws IOException {
+		if (chunk.remaining() >= n)
+			return;
+		if (n > chunk.capacity())
+			throw new IOException("ply record larger than read buffer: " + n);
+		if (channel == null)
+			throw new EOFException("unexpected end of ply body");
+		chunk.compact();
+		while (chunk.position() < n) {
+			if (channel.read(chunk) == -1) {
+				chunk.flip();
+				throw new EOFException("unexpected end of ply body");
+			}
+		}
+		chunk.flip();
+	}
+
+	public void skip(int n) throws IOException {
+		while (n > 0) {
+			int step = Math.min(n, chunk.capacity());
+			require(step);
+			chunk.position(chunk.position() + step);
+			n -= step;
+		}
+	}
+}
@@ -0,0 +1,707 @@
+package com.bobamason.openglply;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Decodes the body of a ply file into a packed, interleaved float layout
+ * derived from the vertex properties that are present. Everything that
+ * depends on the declared property types is resolved once when the decoder
+ * is built, and decoders are cached by header signature.
+ */
+public class PLYDecoder {
+	private static final HashMap<String, PLYDecoder> cache = new HashMap<String, PLYDecoder>();
+
+	private static final String[][] POSITION_NAMES = { { "x", "y", "z" } };
+
+	private static final String[][] NORMAL_NAMES = { { "nx", "ny", "nz" } };
+
+	private static final String[][] TEXCOORD_NAMES = { { "s", "t" },
+			{ "u", "v" }, { "texture_u", "texture_v" },
+			{ "texture_s", "texture_t" } };
+
+	private static final String[][] COLOR_NAMES = {
+			{ "red", "green", "blue", "alpha" },
+			{ "diffuse_red", "diffuse_green", "diffuse_blue", "diffuse_alpha" } };
+
+	private final VertexLayout layout;
+
+	private final Column[] columns;
+
+	private final int vertexRecordSize;
+
+	private final boolean bulkVertices;
+
+	private final int[] asciiOffsets;
+
+	private final float[] asciiScales;
+
+	private final IntReader[] faceCountReaders;
+
+	private final IntReader[] faceItemReaders;
+
+	private final int faceIndexProperty;
+
+	public static PLYDecoder forHeader(PLYHeader header) throws IOException {
+		String key = header.signature();
+		synchronized (cache) {
+			PLYDecoder decoder = cache.get(key);
+			if (decoder == null) {
+				decoder = new PLYDecoder(header);
+				cache.put(key, decoder);
+			}
+			return decoder;
+		}
+	}
+
+	private PLYDecoder(PLYHeader header) throws IOException {
+		PLYHeader.Element vertex = header.getElement("vertex");
+		if (vertex == null)
+			throw new IOException("ply file has no vertex element");
+		PLYHeader.Element face = header.getElement("face");
+		if (face == null)
+			throw new IOException("ply file has no face element");
+
+		if (header.elements.indexOf(face) < header.elements.indexOf(vertex))
+			throw new IOException("ply faces before vertices not supported");
+
+		vertexRecordSize = vertex.recordSize();
+		if (vertexRecordSize == -1)
+			throw new IOException("list properties on vertices not supported");
+
+		int[] position = find(vertex, POSITION_NAMES, 3);
+		if (position == null)
+			throw new IOException("ply vertices have no x, y, z properties");
+		int[] normal = find(vertex, NORMAL_NAMES, 3);
+		int[] texcoord = find(vertex, TEXCOORD_NAMES, 2);
+		int[] color = find(vertex, COLOR_NAMES, 4);
+		if (color == null)
+			color = find(vertex, COLOR_NAMES, 3);
+
+		layout = new VertexLayout();
+		int[] semantics = new int[vertex.properties.size()];
+		int[] components = new int[semantics.length];
+		Arrays.fill(semantics, -1);
+		mapSemantic(layout, VertexLayout.POSITION, position, semantics,
+				components);
+		mapSemantic(layout, VertexLayout.NORMAL, normal, semantics, components);
+		mapSemantic(layout, VertexLayout.TEXCOORD, texcoord, semantics,
+				components);
+		mapSemantic(layout, VertexLayout.COLOR, color, semantics, components);
+
+		ArrayList<Column> list = new ArrayList<Column>();
+		asciiOffsets = new int[semantics.length];
+		asciiScales = new float[semantics.length];
+		boolean bulk = vertexRecordSize == layout.getStride();
+		int src = 0;
+		for (int i = 0; i < semantics.length; i++) {
+			PLYHeader.Property p = vertex.properties.get(i);
+			asciiOffsets[i] = -1;
+			if (semantics[i] != -1) {
+				int dst = layout.get(semantics[i]).offset + components[i] * 4;
+				float scale = semantics[i] == VertexLayout.COLOR ? colorScale(p.type)
+						: 1f;
+				list.add(Column.create(p.type, src, dst, scale));
+				asciiOffsets[i] = dst;
+				asciiScales[i] = scale;
+				bulk &= p.type == PLYHeader.TYPE_FLOAT && dst == src
+						&& scale == 1f;
+			} else {
+				bulk = false;
+			}
+			src += PLYHeader.sizeOf(p.type);
+		}
+		columns = list.toArray(new Column[list.size()]);
+		bulkVertices = bulk;
+
+		faceCountReaders = new IntReader[face.properties.size()];
+		faceItemReaders = new IntReader[face.properties.size()];
+		int index = face.indexOf("vertex_indices");
+		if (index == -1)
+			index = face.indexOf("vertex_index");
+		if (index == -1 || !face.properties.get(index).isList())
+			throw new IOException("ply faces have no vertex_indices list");
+		faceIndexProperty = index;
+		for (int i = 0; i < faceItemReaders.length; i++) {
+			PLYHeader.Property p = face.properties.get(i);
+			if (p.isList())
+				faceCountReaders[i] = IntReader.create(p.countType);
+			faceItemReaders[i] = IntReader.create(p.type);
+		}
+	}
+
+	public VertexLayout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * Decodes the body that follows the header in the given stream into
+	 * native-order direct buffers. Vertices and faces are read through a
+	 * fixed size window so that they are only ever held once. The index
+	 * buffer is sized from the first face and grown if the polygons turn out
+	 * to make more triangles, then trimmed to the triangles made.
+	 */
+	public MeshData decode(PLYHeader header, InputStream body)
+			throws IOException {
+		return decode(header, body, null);
+	}
+
+	/**
+	 * Decodes while timing the vertex and face sections into metrics, if it is
+	 * not null.
+	 */
+	public MeshData decode(PLYHeader header, InputStream body,
+			LoadMetrics metrics) throws IOException {
+		int vCount = header.getCount("vertex");
+		ByteBuffer vertices = allocateVertices(vCount);
+		Bounds bounds = new Bounds();
+		IntBuffer indices = null;
+		if (metrics != null)
+			metrics.setBufferBytes(vertices.capacity());
+		long start = System.nanoTime();
+
+		if (header.isBinary()) {
+			PLYBinaryReader in = new PLYBinaryReader(body, header.byteOrder());
+			for (int i = 0; i < header.elements.size() && indices == null; i++) {
+				PLYHeader.Element e = header.elements.get(i);
+				if (e.name.equals("vertex")) {
+					decodeBinaryVertices(in, e.count, vertices, bounds);
+					fitSphere(vertices, vCount, bounds);
+					start = endPhase(metrics, LoadMetrics.PHASE_VERTICES, start);
+				} else if (e.name.equals("face")) {
+					Indices out = new Indices(e.count, metrics,
+							vertices.capacity());
+					decodeBinaryFaces(in, e.count, out, new PolygonTriangulator(
+							vertices, layout), vCount);
+					indices = out.trim();
+				} else {
+					skipBinary(in, e);
+				}
+			}
+		} else {
+			PLYTokenizer in = new PLYTokenizer(body);
+			for (int i = 0; i < header.elements.size() && indices == null; i++) {
+				PLYHeader.Element e = header.elements.get(i);
+				if (e.name.equals("vertex")) {
+					decodeAsciiVertices(in, 0, e.count, vertices, bounds);
+					fitSphere(vertices, vCount, bounds);
+					start = endPhase(metrics, LoadMetrics.PHASE_VERTICES, start);
+				} else if (e.name.equals("face")) {
+					Indices out = new Indices(e.count, metrics,
+							vertices.capacity());
+					decodeAsciiFaces(in, e.count, out, new PolygonTriangulator(
+							vertices, layout), vCount);
+					indices = out.trim();
+				} else {
+					skipAscii(in, e);
+				}
+			}
+		}
+
+		endPhase(metrics, LoadMetrics.PHASE_FACES, start);
+		return finish(metrics, header, vertices, vCount, indices, bounds);
+	}
+
+	/**
+	 * Tightens the sphere of bounds over the decoded vertices, which is timed
+	 * with them.
+	 */
+	void fitSphere(ByteBuffer vertices, int vCount, Bounds bounds) {
+		bounds.fitSphere(vertices, layout.get(VertexLayout.POSITION).offset,
+				layout.getStride(), vCount);
+	}
+
+	/** Adds the time since start to phase and returns the time now. */
+	static long endPhase(LoadMetrics metrics, int phase, long start) {
+		long now = System.nanoTime();
+		if (metrics != null)
+			metrics.addNanos(phase, now - start);
+		return now;
+	}
+
+	MeshData finish(LoadMetrics metrics, PLYHeader header,
+			ByteBuffer vertices, int vCount, IntBuffer indices, Bounds bounds) {
+		if (metrics != null) {
+			metrics.setCounts(vCount, header.getCount("face"));
+			metrics.setBufferBytes(vertices.capacity() + indices.capacity()
+					* 4L);
+		}
+		return new MeshData(layout, vertices, vCount, indices,
+				MeshData.GL_UNSIGNED_INT, indices.capacity(), bounds);
+	}
+
+	/**
+	 * The decode methods write straight into buffers from these, allocated at
+	 * their final size.
+	 */
+	ByteBuffer allocateVertices(int vCount) {
+		ByteBuffer vertices = ByteBuffer.allocateDirect(vCount
+				* layout.getStride());
+		vertices.order(ByteOrder.nativeOrder());
+		return vertices;
+	}
+
+	static IntBuffer allocateIndices(int triangles) {
+		ByteBuffer ib = ByteBuffer.allocateDirect(triangles * 3 * 4);
+		ib.order(ByteOrder.nativeOrder());
+		return ib.asIntBuffer();
+	}
+
+	/**
+	 * Where the face decode writes triangles. Made over a buffer it only fills
+	 * that, which must be big enough. Made with a face count it allocates when
+	 * the first face is read, guessing the rest have as many corners, and
+	 * whenever a face does not fit grows to what the faces read so far make
+	 * of all of them, by an eighth at least, so the faces can be decoded in
+	 * one pass over the stream.
+	 */
+	static class Indices {
+		private final int faces;
+
+		private final LoadMetrics metrics;
+
+		private final long otherBytes;
+
+		private IntBuffer buffer;
+
+		private int pos;
+
+		private int added;
+
+		Indices(IntBuffer buffer, int pos) {
+			this(0, null, 0L);
+			this.buffer = buffer;
+			this.pos = pos;
+		}
+
+		/**
+		 * The buffer bytes reported to metrics, if not null, include
+		 * otherBytes already held by the load.
+		 */
+		Indices(int faces, LoadMetrics metrics, long otherBytes) {
+			this.faces = faces;
+			this.metrics = metrics;
+			this.otherBytes = otherBytes;
+		}
+
+		void add(PolygonTriangulator triangulator, int[] poly, int n) {
+			int needed = pos + PolygonTriangulator.countTriangles(n) * 3;
+			added++;
+			if (buffer == null || needed > buffer.capacity()) {
+				long estimate = (long) needed * faces / added;
+				int least = buffer == null ? 0 : buffer.capacity()
+						+ buffer.capacity() / 8;
+				grow((int) Math.max(needed, Math.max(least,
+						Math.min(estimate, Integer.MAX_VALUE))));
+			}
+			pos = triangulator.triangulate(poly, n, buffer, pos);
+		}
+
+		private void grow(int capacity) {
+			IntBuffer grown = allocateIndices(capacity / 3);
+			long held = grown.capacity();
+			if (buffer != null) {
+				held += buffer.capacity();
+				IntBuffer written = buffer.duplicate();
+				written.position(0);
+				written.limit(pos);
+				grown.put(written);
+				grown.position(0);
+			}
+			if (metrics != null)
+				metrics.setBufferBytes(otherBytes + held * 4L);
+			buffer = grown;
+		}
+
+		/** The triangles written, in a buffer of exactly their size. */
+		IntBuffer trim() {
+			if (buffer == null)
+				return allocateIndices(0);
+			if (pos < buffer.capacity())
+				grow(pos);
+			return buffer;
+		}
+	}
+
+	private void decodeBinaryVertices(PLYBinaryReader in, int count,
+			ByteBuffer out, Bounds bounds) throws IOException {
+		int size = vertexRecordSize;
+		int stride = layout.getStride();
+		int perChunk = Math.max(1, in.capacity() / size);
+		int outBase = 0;
+
+		while (count > 0) {
+			int n = Math.min(count, perChunk);
+			in.require(n * size);
+			ByteBuffer b = in.buffer();
+			int base = b.position();
+			int chunkStart = outBase;
+
+			if (bulkVertices) {
+				// the file layout is already the packed float layout, so the
+				// whole run is copied (and byte swapped if needed) by nio
+				int oldLimit = b.limit();
+				b.limit(base + n * size);
+				out.position(outBase);
+				out.asFloatBuffer().put(b.asFloatBuffer());
+				b.limit(oldLimit);
+				outBase += n * stride;
+			} else {
+				Column[] cols = columns;
+				for (int i = 0; i < n; i++) {
+					int inBase = base + i * size;
+					for (int c = 0; c < cols.length; c++)
+						cols[c].decode(b, inBase, out, outBase);
+					outBase += stride;
+				}
+			}
+
+			includePositions(out, chunkStart, outBase, bounds);
+			b.position(base + n * size);
+			count -= n;
+		}
+		out.position(0);
+	}
+
+	private void decodeBinaryFaces(PLYBinaryReader in, int count,
+			Indices out, PolygonTriangulator triangulator, int vCount)
+			throws IOException {
+		IntReader[] counts = faceCountReaders;
+		IntReader[] items = faceItemReaders;
+		int target = faceIndexProperty;
+		int[] poly = new int[16];
+
+		for (int i = 0; i < count; i++) {
+			for (int p = 0; p < items.length; p++) {
+				IntReader item = items[p];
+				if (counts[p] == null) {
+					in.require(item.size);
+					item.read(in.buffer());
+					continue;
+				}
+				in.require(counts[p].size);
+				int n = counts[p].read(in.buffer());
+				if (p != target) {
+					in.skip(n * item.size);
+					continue;
+				}
+				in.require(n * item.size);
+				if (n > poly.length)
+					poly = new int[n];
+				ByteBuffer b = in.buffer();
+				for (int j = 0; j < n; j++)
+					poly[j] = checkIndex(item.read(b), vCount);
+				out.add(triangulator, poly, n);
+			}
+		}
+	}
+
+	private void skipBinary(PLYBinaryReader in, PLYHeader.Element e)
+			throws IOException {
+		IntReader[] counts = new IntReader[e.properties.size()];
+		int[] sizes = new int[counts.length];
+		for (int p = 0; p < counts.length; p++) {
+			PLYHeader.Property prop = e.properties.get(p);
+			if (prop.isList())
+				counts[p] = IntReader.create(prop.countType);
+			sizes[p] = PLYHeader.sizeOf(prop.type);
+		}
+		for (int i = 0; i < e.count; i++) {
+			for (int p = 0; p < counts.length; p++) {
+				int n = 1;
+				if (counts[p] != null) {
+					in.require(counts[p].size);
+					n = counts[p].read(in.buffer());
+				}
+				in.skip(n * sizes[p]);
+			}
+		}
+	}
+
+	void decodeAsciiVertices(PLYTokenizer in, int first, int count,
+			ByteBuffer out, Bounds bounds) throws IOException {
+		int stride = layout.getStride();
+		int[] offsets = asciiOffsets;
+		float[] scales = asciiScales;
+
+		for (int i = first; i < first + count; i++) {
+			int base = i * stride;
+			for (int j = 0; j < offsets.length; j++) {
+				if (offsets[j] != -1)
+					out.putFloat(base + offsets[j], in.nextFloat() * scales[j]);
+				else
+					in.skipToken();
+			}
+			includePositions(out, base, base + stride, bounds);
+		}
+	}
+
+	private void includePositions(ByteBuffer out, int from, int to,
+			Bounds bounds) {
+		int stride = layout.getStride();
+		int position = layout.get(VertexLayout.POSITION).offset;
+		for (int base = from + position; base < to; base += stride)
+			bounds.include(out.getFloat(base), out.getFloat(base + 4),
+					out.getFloat(base + 8));
+	}
+
+	int countAsciiTriangles(PLYTokenizer in, int count) throws IOException {
+		IntReader[] counts = faceCountReaders;
+		int target = faceIndexProperty;
+		int triangles = 0;
+
+		for (int i = 0; i < count; i++) {
+			for (int p = 0; p < counts.length; p++) {
+				int n = 1;
+				if (counts[p] != null) {
+					n = in.nextInt();
+					if (p == target)
+						triangles += PolygonTriangulator.countTriangles(n);
+				}
+				for (int j = 0; j < n; j++)
+					in.skipToken();
+			}
+		}
+		return triangles;
+	}
+
+	void decodeAsciiFaces(PLYTokenizer in, int count, Indices out,
+			PolygonTriangulator triangulator, int vCount) throws IOException {
+		IntReader[] counts = faceCountReaders;
+		int target = faceIndexProperty;
+		int[] poly = new int[16];
+
+		for (int i = 0; i < count; i++) {
+			for (int p = 0; p < counts.length; p++) {
+				if (counts[p] == null) {
+					in.skipToken();
+					continue;
+				}
+				int n = in.nextInt();
+				if (p != target) {
+					for (int j = 0; j < n; j++)
+						in.skipToken();
+					continue;
+				}
+				if (n > poly.length)
+					poly = new int[n];
+				for (int j = 0; j < n; j++)
+					poly[j] = checkIndex(in.nextInt(), vCount);
+				out.add(triangulator, poly, n);
+			}
+		}
+	}
+
+	private static int checkIndex(int index, int vCount) throws IOException {
+		if (index < 0 || index >= vCount)
+			throw new IOException("ply face index out of range: " + index);
+		return index;
+	}
+
+	private static void skipAscii(PLYTokenizer in, PLYHeader.Element e)
+			throws IOException {
+		for (int i = 0; i < e.count; i++) {
+			for (int p = 0; p < e.properties.size(); p++) {
+				int n = e.properties.get(p).isList() ? in.nextInt() : 1;
+				for (int j = 0; j < n; j++)
+					in.skipToken();
+			}
+		}
+	}
+
+	private static int[] find(PLYHeader.Element e, String[][] names, int n) {
+		for (int i = 0; i < names.length; i++) {
+			int[] found = new int[n];
+			boolean all = true;
+			for (int j = 0; j < n && all; j++) {
+				found[j] = e.indexOf(names[i][j]);
+				all = found[j] != -1
+						&& !e.properties.get(found[j]).isList();
+			}
+			if (all)
+				return found;
+		}
+		return null;
+	}
+
+	private static void mapSemantic(VertexLayout layout, int semantic,
+			int[] properties, int[] semantics, int[] components) {
+		if (properties == null)
+			return;
+		layout.add(semantic, properties.length, VertexLayout.GL_FLOAT, false);
+		for (int i = 0; i < properties.length; i++) {
+			semantics[properties[i]] = semantic;
+			components[properties[i]] = i;
+		}
+	}
+
+	private static float colorScale(int type) {
+		switch (type) {
+		case PLYHeader.TYPE_CHAR:
+			return 1f / 127f;
+		case PLYHeader.TYPE_UCHAR:
+			return 1f / 255f;
+		case PLYHeader.TYPE_SHORT:
+			return 1f / 32767f;
+		case PLYHeader.TYPE_USHORT:
+			return 1f / 65535f;
+		default:
+			return 1f;
+		}
+	}
+
+	/** Reads one scalar from a fixed offset in a binary record. */
+	private static abstract class Column {
+		final int src;
+
+		final int dst;
+
+		final float scale;
+
+		Column(int src, int dst, float scale) {
+			this.src = src;
+			this.dst = dst;
+			this.scale = scale;
+		}
+
+		abstract void decode(ByteBuffer in, int inBase, ByteBuffer out,
+				int outBase);
+
+		static Column create(int type, int src, int dst, float scale) {
+			switch (type) {
+			case PLYHeader.TYPE_CHAR:
+				return new Column(src, dst, scale) {
+					void decode(ByteBuffer in, int inBase, ByteBuffer out,
+							int outBase) {
+						out.putFloat(outBase + dst, in.get(inBase + src)
+								* scale);
+					}
+				};
+			case PLYHeader.TYPE_UCHAR:
+				return new Column(src, dst, scale) {
+					void decode(ByteBuffer in, int inBase, ByteBuffer out,
+							int outBase) {
+						out.putFloat(outBase + dst,
+								(in.get(inBase + src) & 0xff) * scale);
+					}
+				};
+			case PLYHeader.TYPE_SHORT:
+				return new Column(src, dst, scale) {
+					void decode(ByteBuffer in, int inBase, ByteBuffer out,
+							int outBase) {
+						out.putFloat(outBase + dst, in.getShort(inBase + src)
+								* scale);
+					}
+				};
+			case PLYHeader.TYPE_USHORT:
+				return new Column(src, dst, scale) {
+					void decode(ByteBuffer in, int inBase, ByteBuffer out,
+							int outBase) {
+						out.putFloat(outBase + dst,
+								(in.getShort(inBase + src) & 0xffff) * scale);
+					}
+				};
+			case PLYHeader.TYPE_INT:
+				return new Column(src, dst, scale) {
+					void decode(ByteBuffer in, int inBase, ByteBuffer out,
+							int outBase) {
+						out.putFloat(outBase + dst, in.getInt(inBase + src)
+								* scale);
+					}
+				};
+			case PLYHeader.TYPE_UINT:
+				return new Column(src, dst, scale) {
+					void decode(ByteBuffer in, int inBase, ByteBuffer out,
+							int outBase) {
+						out.putFloat(outBase + dst,
+								(in.getInt(inBase + src) & 0xffffffffL) * scale);
+					}
+				};
+			case PLYHeader.TYPE_FLOAT:
+				if (scale == 1f)
+					return new Column(src, dst, scale) {
+						void decode(ByteBuffer in, int inBase, ByteBuffer out,
+								int outBase) {
+							out.putFloat(outBase + dst,
+									in.getFloat(inBase + src));
+						}
+					};
+				return new Column(src, dst, scale) {
+					void decode(ByteBuffer in, int inBase, ByteBuffer out,
+							int outBase) {
+						out.putFloat(outBase + dst, in.getFloat(inBase + src)
+								* scale);
+					}
+				};
+			default:
+				return new Column(src, dst, scale) {
+					void decode(ByteBuffer in, int inBase, ByteBuffer out,
+							int outBase) {
+						out.putFloat(outBase + dst,
+								(float) (in.getDouble(inBase + src) * scale));
+					}
+				};
+			}
+		}
+	}
+
+	/** Reads one integer of a fixed type from the current position. */
+	private static abstract class IntReader {
+		final int size;
+
+		IntReader(int size) {
+			this.size = size;
+		}
+
+		abstract int read(ByteBuffer in);
+
+		static IntReader create(int type) {
+			switch (type) {
+			case PLYHeader.TYPE_CHAR:
+				return new IntReader(1) {
+					int read(ByteBuffer in) {
+						return in.get();
+					}
+				};
+			case PLYHeader.TYPE_UCHAR:
+				return new IntReader(1) {
+					int read(ByteBuffer in) {
+						return in.get() & 0xff;
+					}
+				};
+			case PLYHeader.TYPE_SHORT:
+				return new IntReader(2) {
+					int read(ByteBuffer in) {
+						return in.getShort();
+					}
+				};
+			case PLYHeader.TYPE_USHORT:
+				return new IntReader(2) {
+					int read(ByteBuffer in) {
+						return in.getShort() & 0xffff;
+					}
+				};
+			case PLYHeader.TYPE_INT:
+			case PLYHeader.TYPE_UINT:
+				return new IntReader(4) {
+					int read(ByteBuffer in) {
+						return in.getInt();
+					}
+				};
+			case PLYHeader.TYPE_FLOAT:
+				return new IntReader(4) {
+					int read(ByteBuffer in) {
+						return (int) in.getFloat();
+					}
+				};
+			default:
+				return new IntReader(8) {
+					int read(ByteBuffer in) {
+						return (int) in.getDouble();
+					}
+				};
+			}
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package com.bobamason.openglply;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+public class PLYHeader {
+	public static final int FORMAT_ASCII = 0;
+
+	public static final int FORMAT_BINARY_LITTLE_ENDIAN = 1;
+
+	public static final int FORMAT_BINARY_BIG_ENDIAN = 2;
+
+	public static final int TYPE_CHAR = 0;
+
+	public static final int TYPE_UCHAR = 1;
+
+	public static final int TYPE_SHORT = 2;
+
+	public static final int TYPE_USHORT = 3;
+
+	public static final int TYPE_INT = 4;
+
+	public static final int TYPE_UINT = 5;
+
+	public static final int TYPE_FLOAT = 6;
+
+	public static final int TYPE_DOUBLE = 7;
+
+	private static final int[] TYPE_SIZES = { 1, 1, 2, 2, 4, 4, 4, 8 };
+
+	private static final String[] TYPE_NAMES = { "char", "uchar", "short",
+			"ushort", "int", "uint", "float", "double" };
+
+	private static final int MAX_HEADER_LENGTH = 64 * 1024;
+
+	public int format = FORMAT_ASCII;
+
+	public ArrayList<Element> elements = new ArrayList<Element>();
+
+	private String signature;
+
+	public boolean isBinary() {
+		return format != FORMAT_ASCII;
+	}
+
+	public ByteOrder byteOrder() {
+		return format == FORMAT_BINARY_BIG_ENDIAN ? ByteOrder.BIG_ENDIAN
+				: ByteOrder.LITTLE_ENDIAN;
+	}
+
+	public Element getElement(String name) {
+		for (int i = 0; i < elements.size(); i++) {
+			if (elements.get(i).name.equals(name))
+				return elements.get(i);
+		}
+		return null;
+	}
+
+	public int getCount(String element) {
+		Element e = getElement(element);
+		return e == null ? 0 : e.count;
+	}
+
+	/**
+	 * Describes the structure of the file without the element counts, so that
+	 * every file exported with the same properties shares one decoder.
+	 */
+	public String signature() {
+		if (signature == null) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(format);
+			for (int i = 0; i < elements.size(); i++) {
+				Element e = elements.get(i);
+				sb.append('|').append(e.name);
+				for (int j = 0; j < e.properties.size(); j++)
+					sb.append(' ').append(e.properties.get(j));
+			}
+			signature = sb.toString();
+		}
+		return signature;
+	}
+
+	public static int sizeOf(int type) {
+		return TYPE_SIZES[type];
+	}
+
+	public static int parseType(String name) {
+		if (name.equals("char") || name.equals("int8"))
+			return TYPE_CHAR;
+		if (name.equals("uchar") || name.equals("uint8"))
+			return TYPE_UCHAR;
+		if (name.equals("short") || name.equals("int16"))
+			return TYPE_SHORT;
+		if (name.equals("ushort") || name.equals("uint16"))
+			return TYPE_USHORT;
+		if (name.equals("int") || name.equals("int32"))
+			return TYPE_INT;
+		if (name.equals("uint") || name.equals("uint32"))
+			return TYPE_UINT;
+		if (name.equals("float") || name.equals("float32"))
+			return TYPE_FLOAT;
+		if (name.equals("double") || name.equals("float64"))
+			return TYPE_DOUBLE;
+		throw new IllegalArgumentException("unknown ply type: " + name);
+	}
+
+	/**
+	 * Reads the header up to and including the end_header line. The stream is
+	 * read byte by byte so that it is left positioned at the first byte of the
+	 * body, which matters for the binary formats.
+	 */
+	public static PLYHeader read(InputStream in) throws IOException {
+		PLYHeader header = new PLYHeader();
+		StringBuilder sb = new StringBuilder();
+		Element current = null;
+		int total = 0;
+
+		while (true) {
+			int c = in.read();
+			if (c == -1)
+				throw new IOException("unexpected end of ply header");
+			if (++total > MAX_HEADER_LENGTH)
+				throw new IOException("ply header too long");
+			if (c == '\r')
+				continue;
+			if (c != '\n') {
+				sb.append((char) c);
+				continue;
+			}
+
+			String line = sb.toString().trim();
+			sb.setLength(0);
+			if (line.equals("end_header"))
+				break;
+
+			String[] split = line.split("\\s+");
+			try {
+				if (split[0].equals("format")) {
+					if (split[1].equals("ascii"))
+						header.format = FORMAT_ASCII;
+					else if (split[1].equals("binary_little_endian"))
+						header.format = FORMAT_BINARY_LITTLE_ENDIAN;
+					else if (split[1].equals("binary_big_endian"))
+						header.format = FORMAT_BINARY_BIG_ENDIAN;
+					else
+						throw new IOException("unsupported ply format: "
+								+ split[1]);
+				} else if (split[0].equals("element")) {
+					current = new Element(split[1], Integer.parseInt(split[2]));
+					header.elements.add(current);
+				} else if (split[0].equals("property")) {
+					if (current == null)
+						throw new IOException("property before element: "
+								+ line);
+					if (split[1].equals("list"))
+						current.properties.add(new Property(split[4],
+								parseType(split[3]), parseType(split[2])));
+					else
+						current.properties.add(new Property(split[2],
+								parseType(split[1]), -1));
+				}
+			} catch (RuntimeException e) {
+				throw new IOException("bad ply header line: " + line);
+			}
+		}
+
+		return header;
+	}
+
+	public static class Element {
+		public final String name;
+
+		public final int count;
+
+		public final ArrayList<Property> properties = new ArrayList<Property>();
+
+		public Element(String name, int count) {
+			this.name = name;
+			this.count = count;
+		}
+
+		public int indexOf(String property) {
+			for (int i = 0; i < properties.size(); i++) {
+				if (properties.get(i).name.equals(property))
+					return i;
+			}
+			return -1;
+		}
+
+		public Property getProperty(String property) {
+			int i = indexOf(property);
+			return i == -1 ? null : properties.get(i);
+		}
+
+		/** Size of one binary record, or -1 if it contains a list. */
+		public int recordSize() {
+			int size = 0;
+			for (int i = 0; i < properties.size(); i++) {
+				Property p = properties.get(i);
+				if (p.isList())
+					return -1;
+				size += sizeOf(p.type);
+			}
+			return size;
+		}
+	}
+
+	public static class Property {
+		public final String name;
+
+		/** The scalar type, or the item type for a list. */
+		public final int type;
+
+		/** The list count type, or -1 for a scalar property. */
+		public final int countType;
+
+		public Property(String name, int type, int countType) {
+			this.name = name;
+			this.type = type;
+			this.countType = countType;
+		}
+
+		public boolean isList() {
+			return countType != -1;
+		}
+
+		@Override
+		public String toString() {
+			if (isList())
+				return "list " + TYPE_NAMES[countType] + " " + TYPE_NAMES[type]
+						+ " " + name;
+			return TYPE_NAMES[type] + " " + name;
+		}
+	}
+}
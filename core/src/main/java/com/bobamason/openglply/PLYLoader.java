@@ -0,0 +1,59 @@
+package com.bobamason.openglply;
+
+import java.io.*;
+
+/**
+ * Reads a ply file into a MeshData. Streaming mode decodes through a fixed
+ * size window straight into the final direct buffers, so the mesh is only
+ * held in memory once and the heap used does not grow with the file.
+ * Parallel mode is faster for large ascii files on multicore devices, but
+ * holds the body text on the heap while it is parsed.
+ */
+public class PLYLoader {
+	public static final int MODE_STREAMING = 0;
+
+	public static final int MODE_PARALLEL = 1;
+
+	private int mode;
+
+	public PLYLoader() {
+		this(Runtime.getRuntime().availableProcessors() > 1 ? MODE_PARALLEL
+				: MODE_STREAMING);
+	}
+
+	public PLYLoader(int mode) {
+		this.mode = mode;
+	}
+
+	public int getMode() {
+		return mode;
+	}
+
+	public void setMode(int mode) {
+		this.mode = mode;
+	}
+
+	public MeshData load(InputStream in) throws IOException {
+		return load(in, null);
+	}
+
+	/**
+	 * Loads while counting the bytes read and timing the header, vertex and
+	 * face phases into metrics, if it is not null.
+	 */
+	public MeshData load(InputStream in, LoadMetrics metrics)
+			throws IOException {
+		long start = System.nanoTime();
+		if (metrics != null)
+			in = metrics.count(in);
+		PLYHeader header = PLYHeader.read(in);
+		PLYDecoder decoder = PLYDecoder.forHeader(header);
+		if (metrics != null)
+			metrics.addNanos(LoadMetrics.PHASE_HEADER, System.nanoTime()
+					- start);
+		if (mode == MODE_PARALLEL && PLYParallelParser.supports(header))
+			return PLYParallelParser.getDefault().parse(decoder, header, in,
+					metrics);
+		return decoder.decode(header, in, metrics);
+	}
+}
@@ -0,0 +1,271 @@
+package com.bobamason.openglply;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Parses an ascii ply body on several threads. The body is read into memory
+ * and cut into newline aligned byte ranges. A first pass counts the records
+ * in every range, which gives each range the vertex or face number it starts
+ * at. A second pass decodes the vertices of every range into its own slice of
+ * the vertex buffer and counts the triangles its faces produce, and a third
+ * triangulates the faces into the index buffer at the offsets those counts
+ * give. Each record is one line, so faces of any size stay aligned.
+ * 
+ * This holds the whole body text on the heap while parsing; use the
+ * streaming decode in PLYDecoder when memory matters more than load time.
+ */
+public class PLYParallelParser {
+	private static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private static PLYParallelParser defaultParser;
+
+	private final ExecutorService executor;
+
+	private final int threads;
+
+	public PLYParallelParser(int threads) {
+		this.threads = Math.max(1, threads);
+		executor = Executors.newFixedThreadPool(this.threads,
+				new ThreadFactory() {
+					private int count = 0;
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "PLYParallelParser-"
+								+ (count++));
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	public static synchronized PLYParallelParser getDefault() {
+		if (defaultParser == null)
+			defaultParser = new PLYParallelParser(Runtime.getRuntime()
+					.availableProcessors());
+		return defaultParser;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Records can only be located by line when the body holds just the vertex
+	 * and face elements, in that order.
+	 */
+	public static boolean supports(PLYHeader header) {
+		return !header.isBinary() && header.elements.size() == 2
+				&& header.elements.get(0).name.equals("vertex")
+				&& header.elements.get(1).name.equals("face");
+	}
+
+	public MeshData parse(PLYDecoder decoder, PLYHeader header,
+			InputStream body) throws IOException {
+		return parse(decoder, header, body, null);
+	}
+
+	/**
+	 * Parses while timing into metrics, if it is not null. Reading the body,
+	 * counting the records and decoding the vertices are the vertex phase;
+	 * the last pass is the face phase.
+	 */
+	public MeshData parse(final PLYDecoder decoder, PLYHeader header,
+			InputStream body, LoadMetrics metrics) throws IOException {
+		if (!supports(header))
+			throw new IllegalArgumentException(
+					"ply body can not be split by line");
+
+		long phaseStart = System.nanoTime();
+		final byte[] data = readFully(body);
+		final int length = data.length;
+		final int vCount = header.getCount("vertex");
+		final int fCount = header.getCount("face");
+		final ByteBuffer vertices = decoder.allocateVertices(vCount);
+		final Bounds bounds = new Bounds();
+		if (metrics != null)
+			metrics.setBufferBytes(vertices.capacity());
+
+		int chunks = Math.max(1, Math.min(threads * CHUNKS_PER_THREAD, length
+				/ MIN_CHUNK_SIZE));
+		final int[] starts = new int[chunks + 1];
+		for (int i = 1; i < chunks; i++) {
+			int p = Math.max(starts[i - 1], (int) ((long) length * i / chunks));
+			while (p < length && data[p - 1] != '\n')
+				p++;
+			starts[i] = p;
+		}
+		starts[chunks] = length;
+
+		ArrayList<Callable<Integer>> counts = new ArrayList<Callable<Integer>>();
+		for (int i = 0; i < chunks; i++) {
+			final int start = starts[i];
+			final int end = starts[i + 1];
+			counts.add(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return countRecords(data, start, end);
+				}
+			});
+		}
+		List<Future<Integer>> counted = invokeAll(counts);
+
+		// vertices are decoded and the triangles of each range counted, which
+		// fixes where every range writes its indices
+		ArrayList<Callable<int[]>> parses = new ArrayList<Callable<int[]>>();
+		final int[] faceFirst = new int[chunks];
+		final int[] faceCount = new int[chunks];
+		int record = 0;
+		for (int i = 0; i < chunks; i++) {
+			final int start = starts[i];
+			final int end = starts[i + 1];
+			final int first = record;
+			final int records = get(counted.get(i));
+			record += records;
+			faceFirst[i] = Math.max(first, vCount) - vCount;
+			faceCount[i] = Math.max(0, Math.min(first + records - vCount,
+					fCount) - faceFirst[i]);
+			final int faces = faceCount[i];
+			parses.add(new Callable<int[]>() {
+				@Override
+				public int[] call() throws IOException {
+					return decodeVertices(decoder, vertices, bounds, data, start,
+							end, first, records, vCount, faces);
+				}
+			});
+		}
+		if (record < vCount + fCount)
+			throw new EOFException("ply body has " + record + " records, "
+					+ (vCount + fCount) + " expected");
+
+		List<Future<int[]>> parsed = invokeAll(parses);
+		final int[] faceStarts = new int[chunks];
+		final int[] offsets = new int[chunks];
+		int triangles = 0;
+		for (int i = 0; i < chunks; i++) {
+			int[] result = get(parsed.get(i));
+			faceStarts[i] = result[0];
+			offsets[i] = triangles * 3;
+			triangles += result[1];
+		}
+
+		decoder.fitSphere(vertices, vCount, bounds);
+		phaseStart = PLYDecoder.endPhase(metrics,
+				LoadMetrics.PHASE_VERTICES, phaseStart);
+
+		final IntBuffer indices = PLYDecoder.allocateIndices(triangles);
+		ArrayList<Callable<Void>> faceTasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < chunks; i++) {
+			if (faceCount[i] == 0)
+				continue;
+			final int start = faceStarts[i];
+			final int end = starts[i + 1];
+			final int faces = faceCount[i];
+			final int offset = offsets[i];
+			faceTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					decoder.decodeAsciiFaces(new PLYTokenizer(data, start, end),
+							faces, new PLYDecoder.Indices(indices, offset),
+							new PolygonTriangulator(vertices, decoder
+									.getLayout()), vCount);
+					return null;
+				}
+			});
+		}
+		List<Future<Void>> decoded = invokeAll(faceTasks);
+		for (int i = 0; i < decoded.size(); i++)
+			get(decoded.get(i));
+
+		PLYDecoder.endPhase(metrics, LoadMetrics.PHASE_FACES, phaseStart);
+		return decoder.finish(metrics, header, vertices, vCount, indices,
+				bounds);
+	}
+
+	/**
+	 * Decodes the vertex records of a range and counts the triangles of its
+	 * face records. Returns the offset the face records start at and the
+	 * triangle count.
+	 */
+	private static int[] decodeVertices(PLYDecoder decoder,
+			ByteBuffer vertices, Bounds bounds, byte[] data, int start,
+			int end, int first, int records, int vCount, int faces)
+			throws IOException {
+		PLYTokenizer in = new PLYTokenizer(data, start, end);
+		if (first < vCount) {
+			Bounds rangeBounds = new Bounds();
+			decoder.decodeAsciiVertices(in, first, Math.min(vCount, first
+					+ records)
+					- first, vertices, rangeBounds);
+			synchronized (bounds) {
+				bounds.include(rangeBounds);
+			}
+		}
+		int faceStart = in.position();
+		int triangles = faces > 0 ? decoder.countAsciiTriangles(in, faces) : 0;
+		return new int[] { faceStart, triangles };
+	}
+
+	static int countRecords(byte[] data, int start, int end) {
+		int count = 0;
+		boolean content = false;
+		for (int i = start; i < end; i++) {
+			byte c = data[i];
+			if (c == '\n') {
+				if (content)
+					count++;
+				content = false;
+			} else if (c > ' ') {
+				content = true;
+			}
+		}
+		return content ? count + 1 : count;
+	}
+
+	private <T> List<Future<T>> invokeAll(List<Callable<T>> tasks)
+			throws IOException {
+		try {
+			return executor.invokeAll(tasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("ply parse interrupted");
+		}
+	}
+
+	private static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("ply parse interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause.toString());
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		byte[] data = new byte[Math.max(in.available() + 1, 8 * 1024)];
+		int length = 0;
+		int n;
+		while ((n = in.read(data, length, data.length - length)) != -1) {
+			length += n;
+			if (length == data.length)
+				data = Arrays.copyOf(data, data.length * 2);
+		}
+		return length == data.length ? data : Arrays.copyOf(data, length);
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
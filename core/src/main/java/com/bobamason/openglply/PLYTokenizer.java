@@ -0,0 +1,240 @@
+package com.bobamason.openglply;
+
+import java.io.*;
+
+/**
+ * Splits an ascii ply body into whitespace separated tokens and parses numbers
+ * straight out of a reusable byte buffer, so reading a value allocates
+ * nothing. Plain decimals such as the %f output written by Blender are parsed
+ * inline; exponent forms and anything else fall back to Float.parseFloat.
+ */
+public class PLYTokenizer {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final int MAX_DIGITS = 15;
+
+	private static final double[] POW10 = new double[23];
+
+	static {
+		POW10[0] = 1.0;
+		for (int i = 1; i < POW10.length; i++)
+			POW10[i] = POW10[i - 1] * 10.0;
+	}
+
+	private final InputStream in;
+
+	private final byte[] buf;
+
+	private int pos;
+
+	private int limit;
+
+	private boolean eof;
+
+	private int tokenStart;
+
+	private int tokenEnd;
+
+	public PLYTokenizer(InputStream in) {
+		this.in = in;
+		this.buf = new byte[BUFFER_SIZE];
+	}
+
+	/** Tokenizes an in-memory range without copying it. */
+	public PLYTokenizer(byte[] data, int start, int end) {
+		this.in = null;
+		this.buf = data;
+		this.pos = start;
+		this.limit = end;
+		this.eof = true;
+	}
+
+	/** Parses the next token as a float; tokens that are not numbers throw. */
+	public float nextFloat() throws IOException {
+		nextToken();
+		return parseToken();
+	}
+
+	private float parseToken() throws IOException {
+		try {
+			return parseFloat(buf, tokenStart, tokenEnd);
+		} catch (NumberFormatException e) {
+			throw new IOException("ply number malformed: "
+					+ new String(buf, tokenStart, tokenEnd - tokenStart));
+		}
+	}
+
+	/**
+	 * Parses the next token as an int. Values outside the int range throw
+	 * instead of being clamped. Tokens that are not plain integers, like 3.0,
+	 * are parsed as a float and truncated.
+	 */
+	public int nextInt() throws IOException {
+		nextToken();
+		int i = tokenStart;
+		int end = tokenEnd;
+		boolean negative = false;
+		if (buf[i] == '-' || buf[i] == '+') {
+			negative = buf[i] == '-';
+			i++;
+		}
+		if (i == end)
+			return truncate(parseToken());
+		long value = 0;
+		for (; i < end; i++) {
+			int d = buf[i] - '0';
+			if (d < 0 || d > 9)
+				return truncate(parseToken());
+			// stops before the long can overflow, however many digits follow
+			value = value * 10 + d;
+			if (value > -(long) Integer.MIN_VALUE)
+				throw outOfRange();
+		}
+		if (negative)
+			value = -value;
+		if (value > Integer.MAX_VALUE)
+			throw outOfRange();
+		return (int) value;
+	}
+
+	private int truncate(float value) throws IOException {
+		if (!(value >= Integer.MIN_VALUE && value < -(float) Integer.MIN_VALUE))
+			throw outOfRange();
+		return (int) value;
+	}
+
+	private IOException outOfRange() {
+		return new IOException("ply integer out of range: "
+				+ new String(buf, tokenStart, tokenEnd - tokenStart));
+	}
+
+	public void skipToken() throws IOException {
+		nextToken();
+	}
+
+	/** Offset of the next unread byte in an in-memory range. */
+	public int position() {
+		return pos;
+	}
+
+	/** Returns false once the input is exhausted. */
+	public boolean hasNext() throws IOException {
+		return skipWhitespace();
+	}
+
+	private void nextToken() throws IOException {
+		if (!skipWhitespace())
+			throw new EOFException("unexpected end of ply body");
+		int i = pos;
+		while (true) {
+			while (i < limit && buf[i] > ' ')
+				i++;
+			if (i < limit || eof)
+				break;
+			// the token runs past the end of the buffer, keep it and refill
+			int consumed = i - pos;
+			fill();
+			i = pos + consumed;
+		}
+		tokenStart = pos;
+		tokenEnd = i;
+		pos = i;
+	}
+
+	private boolean skipWhitespace() throws IOException {
+		while (true) {
+			while (pos < limit && buf[pos] <= ' ')
+				pos++;
+			if (pos < limit)
+				return true;
+			if (eof)
+				return false;
+			fill();
+		}
+	}
+
+	private void fill() throws IOException {
+		int keep = limit - pos;
+		if (keep == buf.length)
+			throw new IOException("ply token too long");
+		if (keep > 0)
+			System.arraycopy(buf, pos, buf, 0, keep);
+		pos = 0;
+		limit = keep;
+		int n = in.read(buf, limit, buf.length - limit);
+		if (n == -1)
+			eof = true;
+		else
+			limit += n;
+	}
+
+	/**
+	 * Parses [start, end) as a float. Up to 15 significant digits without an
+	 * exponent are accumulated into a long and scaled once; the result is only
+	 * rounded twice (to double, then to float) when that cannot change it, and
+	 * every other case goes through Float.parseFloat.
+	 */
+	public static float parseFloat(byte[] b, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (b[i] == '-' || b[i] == '+')) {
+			negative = b[i] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int fraction = 0;
+		boolean dot = false;
+		boolean any = false;
+		for (; i < end; i++) {
+			int c = b[i];
+			if (c == '.') {
+				if (dot)
+					return slowParse(b, start, end);
+				dot = true;
+				continue;
+			}
+			int d = c - '0';
+			if (d < 0 || d > 9)
+				return slowParse(b, start, end);
+			any = true;
+			if (mantissa == 0 && d == 0) {
+				if (dot)
+					fraction++;
+				continue;
+			}
+			if (++digits > MAX_DIGITS)
+				return slowParse(b, start, end);
+			mantissa = mantissa * 10 + d;
+			if (dot)
+				fraction++;
+		}
+		if (!any || fraction >= POW10.length)
+			return slowParse(b, start, end);
+
+		float result;
+		if (mantissa == 0) {
+			result = 0f;
+		} else if (fraction == 0 && mantissa < (1L << 24)) {
+			result = (float) mantissa;
+		} else {
+			double value = mantissa / POW10[fraction];
+			// a double within one ulp of a float rounding midpoint could round
+			// the wrong way on the second rounding
+			int low = (int) (Double.doubleToRawLongBits(value) & 0x1FFFFFFFL);
+			if (Math.abs(low - 0x10000000) <= 1 || value < 1.2e-38)
+				return slowParse(b, start, end);
+			result = (float) value;
+		}
+		return negative ? -result : result;
+	}
+
+	private static float slowParse(byte[] b, int start, int end) {
+		try {
+			return Float.parseFloat(new String(b, start, end - start, "US-ASCII"));
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
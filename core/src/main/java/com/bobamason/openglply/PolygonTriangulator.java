@@ -0,0 +1,212 @@
+package com.bobamason.openglply;
+
+import java.nio.*;
+
+/**
+ * Writes the triangles of one polygon at a time into an index buffer. An
+ * n-gon always produces n - 2 triangles, so callers can count triangles before
+ * decoding and allocate the buffer once. Triangles are copied, convex
+ * polygons are fanned, and concave polygons are ear clipped in the plane that
+ * the polygon's normal is most aligned with. Not thread safe; use one per
+ * thread.
+ */
+public class PolygonTriangulator {
+	private final ByteBuffer vertices;
+
+	private final int stride;
+
+	private final int position;
+
+	private float[] xs = new float[16];
+
+	private float[] ys = new float[16];
+
+	private int[] next = new int[16];
+
+	private int[] prev = new int[16];
+
+	private int xsCount;
+
+	public PolygonTriangulator(ByteBuffer vertices, VertexLayout layout) {
+		this.vertices = vertices;
+		this.stride = layout.getStride();
+		this.position = layout.get(VertexLayout.POSITION).offset;
+	}
+
+	public static int countTriangles(int n) {
+		return n < 3 ? 0 : n - 2;
+	}
+
+	/**
+	 * Triangulates the first n entries of poly into out starting at pos and
+	 * returns the position after the last index written.
+	 */
+	public int triangulate(int[] poly, int n, IntBuffer out, int pos) {
+		if (n < 3)
+			return pos;
+		if (n == 3) {
+			out.put(pos, poly[0]);
+			out.put(pos + 1, poly[1]);
+			out.put(pos + 2, poly[2]);
+			return pos + 3;
+		}
+
+		project(poly, n);
+		float area = signedArea(n);
+
+		if (n == 4) {
+			// a concave quad has one reflex corner and must be cut through it
+			int start = 0;
+			if (!isConvex(1, area) || !isConvex(3, area))
+				start = 1;
+			int a = poly[start], b = poly[start + 1], c = poly[start + 2];
+			int d = poly[(start + 3) & 3];
+			out.put(pos, a);
+			out.put(pos + 1, b);
+			out.put(pos + 2, c);
+			out.put(pos + 3, a);
+			out.put(pos + 4, c);
+			out.put(pos + 5, d);
+			return pos + 6;
+		}
+
+		boolean convex = true;
+		for (int i = 0; i < n && convex; i++)
+			convex = isConvex(i, area);
+		if (convex)
+			return fan(poly, n, out, pos);
+		return clipEars(poly, n, area, out, pos);
+	}
+
+	private int fan(int[] poly, int n, IntBuffer out, int pos) {
+		for (int i = 1; i < n - 1; i++) {
+			out.put(pos++, poly[0]);
+			out.put(pos++, poly[i]);
+			out.put(pos++, poly[i + 1]);
+		}
+		return pos;
+	}
+
+	private int clipEars(int[] poly, int n, float area, IntBuffer out, int pos) {
+		for (int i = 0; i < n; i++) {
+			next[i] = i + 1 == n ? 0 : i + 1;
+			prev[i] = i == 0 ? n - 1 : i - 1;
+		}
+
+		int remaining = n;
+		int current = 0;
+		int misses = 0;
+		while (remaining > 3) {
+			int p = prev[current];
+			int q = next[current];
+			boolean ear = cross(p, current, q) * area > 0f
+					&& !containsOther(p, current, q);
+			// a self intersecting or degenerate polygon may have no ear left,
+			// in which case the rest is fanned so the count still holds
+			if (ear || misses > remaining) {
+				out.put(pos++, poly[p]);
+				out.put(pos++, poly[current]);
+				out.put(pos++, poly[q]);
+				next[p] = q;
+				prev[q] = p;
+				remaining--;
+				misses = 0;
+				current = q;
+			} else {
+				misses++;
+				current = q;
+			}
+		}
+		out.put(pos++, poly[prev[current]]);
+		out.put(pos++, poly[current]);
+		out.put(pos++, poly[next[current]]);
+		return pos;
+	}
+
+	private boolean containsOther(int a, int b, int c) {
+		for (int i = next[c]; i != a; i = next[i]) {
+			if (inTriangle(i, a, b, c))
+				return true;
+		}
+		return false;
+	}
+
+	private boolean inTriangle(int p, int a, int b, int c) {
+		float d1 = cross(a, b, p);
+		float d2 = cross(b, c, p);
+		float d3 = cross(c, a, p);
+		boolean negative = d1 < 0f || d2 < 0f || d3 < 0f;
+		boolean positive = d1 > 0f || d2 > 0f || d3 > 0f;
+		return !(negative && positive);
+	}
+
+	private boolean isConvex(int i, float area) {
+		int n = xsCount;
+		int p = i == 0 ? n - 1 : i - 1;
+		int q = i + 1 == n ? 0 : i + 1;
+		return cross(p, i, q) * area >= 0f;
+	}
+
+	private float cross(int a, int b, int c) {
+		return (xs[b] - xs[a]) * (ys[c] - ys[a]) - (ys[b] - ys[a])
+				* (xs[c] - xs[a]);
+	}
+
+	private float signedArea(int n) {
+		float area = 0f;
+		for (int i = 0, j = n - 1; i < n; j = i++)
+			area += xs[j] * ys[i] - xs[i] * ys[j];
+		return area;
+	}
+
+	/**
+	 * Drops the axis that the Newell normal of the polygon is largest along, so
+	 * the 2D winding matches the 3D one as closely as possible.
+	 */
+	private void project(int[] poly, int n) {
+		if (xs.length < n) {
+			int size = Math.max(n, xs.length * 2);
+			xs = new float[size];
+			ys = new float[size];
+			next = new int[size];
+			prev = new int[size];
+		}
+		xsCount = n;
+
+		float nx = 0f, ny = 0f, nz = 0f;
+		int last = position + poly[n - 1] * stride;
+		float lx = vertices.getFloat(last);
+		float ly = vertices.getFloat(last + 4);
+		float lz = vertices.getFloat(last + 8);
+		for (int i = 0; i < n; i++) {
+			int base = position + poly[i] * stride;
+			float x = vertices.getFloat(base);
+			float y = vertices.getFloat(base + 4);
+			float z = vertices.getFloat(base + 8);
+			nx += (ly - y) * (lz + z);
+			ny += (lz - z) * (lx + x);
+			nz += (lx - x) * (ly + y);
+			lx = x;
+			ly = y;
+			lz = z;
+		}
+
+		float ax = Math.abs(nx), ay = Math.abs(ny), az = Math.abs(nz);
+		int u, v;
+		if (ax >= ay && ax >= az) {
+			u = 4;
+			v = 8;
+		} else if (ay >= az) {
+			u = 8;
+			v = 0;
+		} else {
+			u = 0;
+			v = 4;
+		}
+		for (int i = 0; i < n; i++) {
+			int base = position + poly[i] * stride;
+			xs[i] = vertices.getFloat(base + u);
+			ys[i] = vertices.getFloat(base + v);
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package com.bobamason.openglply;
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * A GLApi without a context that keeps count of what would be sent to the
+ * GPU. Buffer object uploads and the client memory copied by client array
+ * draws are counted separately, per frame and in total. Calls that real GL
+ * would misread, like an offset draw with no element buffer bound, throw.
+ */
+public class RecordingGL implements GLApi {
+	private static final int MAX_ATTRIBUTES = 16;
+
+	private final HashMap<Integer, Integer> bufferSizes = new HashMap<Integer, Integer>();
+
+	private final Buffer[] clientArrays = new Buffer[MAX_ATTRIBUTES];
+
+	private final boolean[] enabled = new boolean[MAX_ATTRIBUTES];
+
+	private int nextBuffer = 1;
+
+	private int arrayBuffer;
+
+	private int elementBuffer;
+
+	private long uploadedBytes;
+
+	private long clientBytes;
+
+	private long frameUploadedBytes;
+
+	private long frameClientBytes;
+
+	private int frameDrawCalls;
+
+	private int drawCalls;
+
+	private int stateCalls;
+
+	private int frameStateCalls;
+
+	/** Starts a new frame for the per-frame counters. */
+	public void beginFrame() {
+		frameUploadedBytes = 0;
+		frameClientBytes = 0;
+		frameDrawCalls = 0;
+		frameStateCalls = 0;
+	}
+
+	/** Bytes sent with glBufferData, in total. */
+	public long getUploadedBytes() {
+		return uploadedBytes;
+	}
+
+	/** Bytes copied from client arrays by draw calls, in total. */
+	public long getClientBytes() {
+		return clientBytes;
+	}
+
+	public long getFrameUploadedBytes() {
+		return frameUploadedBytes;
+	}
+
+	public long getFrameClientBytes() {
+		return frameClientBytes;
+	}
+
+	/** Everything the current frame sent to the GPU. */
+	public long getFrameBytes() {
+		return frameUploadedBytes + frameClientBytes;
+	}
+
+	public int getDrawCalls() {
+		return drawCalls;
+	}
+
+	public int getFrameDrawCalls() {
+		return frameDrawCalls;
+	}
+
+	/**
+	 * Program, capability, texture, buffer binding and attribute array calls
+	 * that reached this GL.
+	 */
+	public int getStateCalls() {
+		return stateCalls;
+	}
+
+	public int getFrameStateCalls() {
+		return frameStateCalls;
+	}
+
+	/** Number of buffer objects that exist. */
+	public int getLiveBuffers() {
+		return bufferSizes.size();
+	}
+
+	/** Bytes held by buffer objects that exist. */
+	public long getLiveBufferBytes() {
+		long bytes = 0;
+		for (Integer size : bufferSizes.values())
+			bytes += size;
+		return bytes;
+	}
+
+	@Override
+	public void glUseProgram(int program) {
+		countState();
+	}
+
+	@Override
+	public void glEnable(int cap) {
+		countState();
+	}
+
+	@Override
+	public void glDisable(int cap) {
+		countState();
+	}
+
+	@Override
+	public void glActiveTexture(int unit) {
+		countState();
+	}
+
+	@Override
+	public void glBindTexture(int target, int texture) {
+		countState();
+	}
+
+	@Override
+	public void glDeleteTextures(int n, int[] textures, int offset) {
+	}
+
+	@Override
+	public void glGenBuffers(int n, int[] buffers, int offset) {
+		for (int i = 0; i < n; i++) {
+			buffers[offset + i] = nextBuffer;
+			bufferSizes.put(nextBuffer++, 0);
+		}
+	}
+
+	@Override
+	public void glDeleteBuffers(int n, int[] buffers, int offset) {
+		for (int i = 0; i < n; i++) {
+			int buffer = buffers[offset + i];
+			bufferSizes.remove(buffer);
+			if (arrayBuffer == buffer)
+				arrayBuffer = 0;
+			if (elementBuffer == buffer)
+				elementBuffer = 0;
+		}
+	}
+
+	@Override
+	public void glBindBuffer(int target, int buffer) {
+		countState();
+		if (buffer != 0 && !bufferSizes.containsKey(buffer))
+			throw new IllegalStateException("unknown buffer " + buffer);
+		if (target == GL_ARRAY_BUFFER)
+			arrayBuffer = buffer;
+		else if (target == GL_ELEMENT_ARRAY_BUFFER)
+			elementBuffer = buffer;
+		else
+			throw new IllegalArgumentException("bad buffer target " + target);
+	}
+
+	@Override
+	public void glBufferData(int target, int size, Buffer data, int usage) {
+		int buffer = target == GL_ARRAY_BUFFER ? arrayBuffer : elementBuffer;
+		if (buffer == 0)
+			throw new IllegalStateException("no buffer bound to " + target);
+		if (data != null && bytesOf(data) < size)
+			throw new IllegalArgumentException("buffer data smaller than "
+					+ size);
+		bufferSizes.put(buffer, size);
+		if (data != null) {
+			uploadedBytes += size;
+			frameUploadedBytes += size;
+		}
+	}
+
+	@Override
+	public void glVertexAttribPointer(int index, int size, int type,
+			boolean normalized, int stride, int offset) {
+		if (arrayBuffer == 0)
+			throw new IllegalStateException("offset pointer without a buffer");
+		clientArrays[index] = null;
+	}
+
+	@Override
+	public void glVertexAttribPointer(int index, int size, int type,
+			boolean normalized, int stride, Buffer data) {
+		if (arrayBuffer != 0)
+			throw new IllegalStateException(
+					"client pointer while a buffer is bound");
+		clientArrays[index] = data;
+	}
+
+	@Override
+	public void glEnableVertexAttribArray(int index) {
+		countState();
+		enabled[index] = true;
+	}
+
+	@Override
+	public void glDisableVertexAttribArray(int index) {
+		countState();
+		enabled[index] = false;
+	}
+
+	@Override
+	public void glVertexAttrib4f(int index, float x, float y, float z, float w) {
+	}
+
+	@Override
+	public void glDrawElements(int mode, int count, int type, int offset) {
+		if (elementBuffer == 0)
+			throw new IllegalStateException("offset draw without a buffer");
+		countDraw(0);
+	}
+
+	@Override
+	public void glDrawElements(int mode, int count, int type, Buffer indices) {
+		if (elementBuffer != 0)
+			throw new IllegalStateException(
+					"client draw while a buffer is bound");
+		countDraw((long) count * VertexLayout.bytesOf(type));
+	}
+
+	private void countState() {
+		stateCalls++;
+		frameStateCalls++;
+	}
+
+	private void countDraw(long indexBytes) {
+		// interleaved attributes share one client buffer, which the driver
+		// copies once
+		long bytes = indexBytes;
+		for (int i = 0; i < MAX_ATTRIBUTES; i++) {
+			if (!enabled[i] || clientArrays[i] == null)
+				continue;
+			boolean seen = false;
+			for (int j = 0; j < i && !seen; j++)
+				seen = enabled[j] && clientArrays[j] == clientArrays[i];
+			if (!seen)
+				bytes += bytesOf(clientArrays[i]);
+		}
+		clientBytes += bytes;
+		frameClientBytes += bytes;
+		drawCalls++;
+		frameDrawCalls++;
+	}
+
+	private static long bytesOf(Buffer b) {
+		if (b instanceof ByteBuffer)
+			return b.capacity();
+		if (b instanceof ShortBuffer || b instanceof CharBuffer)
+			return b.capacity() * 2L;
+		if (b instanceof DoubleBuffer || b instanceof LongBuffer)
+			return b.capacity() * 8L;
+		return b.capacity() * 4L;
+	}
+}
@@ -0,0 +1,227 @@
+package com.bobamason.openglply;
+
+/**
+ * Collects the draws of a frame and submits them in an order that keeps state
+ * changes down. Each packet gets a 64 bit sort key:
+ *
+ * <pre>
+ * 63..62  pass
+ * 61..50  program
+ * 49..38  texture
+ * 37..14  depth, front to back for opaque passes, back to front otherwise
+ * 13..0   unused
+ * </pre>
+ *
+ * Program and texture names are masked to 12 bits; names that collide only
+ * sort together, they still draw correctly. Transparent packets leave program
+ * and texture out of the key so depth alone orders them.
+ *
+ * Packets are kept in parallel arrays together with a copy of their two
+ * matrices, and the keys are radix sorted once per frame. Nothing is
+ * allocated once the arrays have grown to the largest frame seen. Only use
+ * from the GL thread.
+ */
+public class RenderQueue {
+	public static final int PASS_OPAQUE = 0;
+
+	public static final int PASS_TRANSPARENT = 1;
+
+	/** Drawn last, back to front, for things like loading indicators. */
+	public static final int PASS_OVERLAY = 2;
+
+	/** Floats copied per packet, the model-view then the mvp matrix. */
+	public static final int MATRIX_FLOATS = 32;
+
+	private static final int PASS_SHIFT = 62;
+
+	private static final int PROGRAM_SHIFT = 50;
+
+	private static final int TEXTURE_SHIFT = 38;
+
+	private static final int DEPTH_SHIFT = 14;
+
+	private static final int ID_MASK = 0xFFF;
+
+	private static final int DEPTH_MASK = 0xFFFFFF;
+
+	/** Draws one recorded packet. */
+	public interface Submitter {
+		/**
+		 * matrices holds the model-view matrix at offset and the
+		 * model-view-projection matrix at offset + 16.
+		 */
+		void submitPacket(float[] matrices, int offset, int arg);
+	}
+
+	private long[] keys;
+
+	private long[] sortedKeys;
+
+	private long[] scratchKeys;
+
+	private int[] order;
+
+	private int[] sortedOrder;
+
+	private Submitter[] submitters;
+
+	private int[] args;
+
+	private float[] matrices;
+
+	private final int[] counts = new int[256];
+
+	private int size;
+
+	private int submitted;
+
+	public RenderQueue() {
+		this(64);
+	}
+
+	public RenderQueue(int capacity) {
+		allocate(Math.max(1, capacity));
+	}
+
+	private void allocate(int capacity) {
+		long[] oldKeys = keys;
+		Submitter[] oldSubmitters = submitters;
+		int[] oldArgs = args;
+		float[] oldMatrices = matrices;
+
+		keys = new long[capacity];
+		sortedKeys = new long[capacity];
+		scratchKeys = new long[capacity];
+		order = new int[capacity];
+		sortedOrder = new int[capacity];
+		submitters = new Submitter[capacity];
+		args = new int[capacity];
+		matrices = new float[capacity * MATRIX_FLOATS];
+		if (oldKeys != null) {
+			System.arraycopy(oldKeys, 0, keys, 0, size);
+			System.arraycopy(oldSubmitters, 0, submitters, 0, size);
+			System.arraycopy(oldArgs, 0, args, 0, size);
+			System.arraycopy(oldMatrices, 0, matrices, 0, size
+					* MATRIX_FLOATS);
+		}
+	}
+
+	/**
+	 * Records a draw. depth is the distance from the eye along the view
+	 * direction; negative values are treated as 0. The matrices are copied, so
+	 * the caller may reuse its arrays right away.
+	 */
+	public void add(int pass, int program, int texture, float depth,
+			float[] mvMatrix, float[] mvpMatrix, Submitter submitter, int arg) {
+		add(pass, program, texture, depth, mvMatrix, 0, mvpMatrix, 0,
+				submitter, arg);
+	}
+
+	/** Records a draw with matrices taken from offsets into their arrays. */
+	public void add(int pass, int program, int texture, float depth,
+			float[] mvMatrix, int mvOffset, float[] mvpMatrix, int mvpOffset,
+			Submitter submitter, int arg) {
+		if (size == keys.length)
+			allocate(size * 2);
+
+		int depthBits = depth > 0f ? (Float.floatToRawIntBits(depth) >>> 7)
+				& DEPTH_MASK : 0;
+		long key = (long) pass << PASS_SHIFT;
+		if (pass == PASS_OPAQUE) {
+			key |= (long) (program & ID_MASK) << PROGRAM_SHIFT;
+			key |= (long) (texture & ID_MASK) << TEXTURE_SHIFT;
+			key |= (long) depthBits << DEPTH_SHIFT;
+		} else {
+			key |= (long) (DEPTH_MASK - depthBits) << DEPTH_SHIFT;
+		}
+
+		keys[size] = key;
+		submitters[size] = submitter;
+		args[size] = arg;
+		System.arraycopy(mvMatrix, mvOffset, matrices, size * MATRIX_FLOATS, 16);
+		System.arraycopy(mvpMatrix, mvpOffset, matrices, size * MATRIX_FLOATS
+				+ 16, 16);
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** Number of packets the last submit() drew. */
+	public int getSubmitted() {
+		return submitted;
+	}
+
+	/** Sorts the recorded packets, draws them in order and empties the queue. */
+	public void submit() {
+		sort();
+		for (int i = 0; i < size; i++) {
+			int p = order[i];
+			submitters[p].submitPacket(matrices, p * MATRIX_FLOATS, args[p]);
+		}
+		submitted = size;
+		clear();
+	}
+
+	/** Drops the recorded packets without drawing them. */
+	public void clear() {
+		for (int i = 0; i < size; i++)
+			submitters[i] = null;
+		size = 0;
+	}
+
+	/**
+	 * Least significant digit radix sort of the keys, a byte at a time, moving
+	 * packet numbers along with them. Digits that are the same in every key
+	 * are skipped, which is most of them when few passes, programs and
+	 * textures are in use. Leaves the packet numbers in key order in order
+	 * and their keys in sortedKeys.
+	 */
+	void sort() {
+		int n = size;
+		long[] src = sortedKeys;
+		System.arraycopy(keys, 0, src, 0, n);
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		long[] dst = scratchKeys;
+		int[] srcOrder = order;
+		int[] dstOrder = sortedOrder;
+
+		for (int shift = 0; shift < 64; shift += 8) {
+			int[] c = counts;
+			for (int i = 0; i < 256; i++)
+				c[i] = 0;
+			for (int i = 0; i < n; i++)
+				c[(int) (src[i] >>> shift) & 0xFF]++;
+			if (n == 0 || c[(int) (src[0] >>> shift) & 0xFF] == n)
+				continue;
+
+			int sum = 0;
+			for (int i = 0; i < 256; i++) {
+				int count = c[i];
+				c[i] = sum;
+				sum += count;
+			}
+			for (int i = 0; i < n; i++) {
+				int d = (int) (src[i] >>> shift) & 0xFF;
+				int to = c[d]++;
+				dst[to] = src[i];
+				dstOrder[to] = srcOrder[i];
+			}
+			long[] k = src;
+			src = dst;
+			dst = k;
+			int[] o = srcOrder;
+			srcOrder = dstOrder;
+			dstOrder = o;
+		}
+
+		if (srcOrder != order) {
+			sortedOrder = order;
+			order = srcOrder;
+			scratchKeys = sortedKeys;
+			sortedKeys = src;
+		}
+	}
+}
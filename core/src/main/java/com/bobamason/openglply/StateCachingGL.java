@@ -0,0 +1,260 @@
+package com.bobamason.openglply;
+
+import java.nio.*;
+
+/**
+ * Sits in front of another GLApi and drops state calls that would leave the
+ * state as it is: the current program, enabled capabilities, the active
+ * texture unit and the 2D texture bound to each unit, the array and element
+ * buffer bindings and the enabled attribute arrays. Everything else is passed
+ * through.
+ *
+ * The shadowed state is only right if every change goes through this object.
+ * After a new context is created, or after code calls GLES20 directly, call
+ * invalidate() so the next call of each kind is issued. Only use from the GL
+ * thread.
+ */
+public class StateCachingGL implements GLApi {
+	private static final int UNKNOWN = -1;
+
+	private static final int MAX_ATTRIBUTES = 16;
+
+	private static final int MAX_TEXTURE_UNITS = 32;
+
+	private static final int MAX_CAPABILITIES = 16;
+
+	private final GLApi gl;
+
+	private int program;
+
+	private int activeUnit;
+
+	private final int[] textures = new int[MAX_TEXTURE_UNITS];
+
+	private int arrayBuffer;
+
+	private int elementBuffer;
+
+	// 1 enabled, 0 disabled, UNKNOWN not yet seen
+	private final int[] attributeArrays = new int[MAX_ATTRIBUTES];
+
+	private final int[] capabilities = new int[MAX_CAPABILITIES];
+
+	private final int[] capabilityStates = new int[MAX_CAPABILITIES];
+
+	private int capabilityCount;
+
+	private long issued;
+
+	private long elided;
+
+	public StateCachingGL(GLApi gl) {
+		this.gl = gl;
+		invalidate();
+	}
+
+	/** Forgets all shadowed state, so the next call of each kind is issued. */
+	public void invalidate() {
+		program = UNKNOWN;
+		activeUnit = UNKNOWN;
+		for (int i = 0; i < MAX_TEXTURE_UNITS; i++)
+			textures[i] = UNKNOWN;
+		arrayBuffer = UNKNOWN;
+		elementBuffer = UNKNOWN;
+		for (int i = 0; i < MAX_ATTRIBUTES; i++)
+			attributeArrays[i] = UNKNOWN;
+		capabilityCount = 0;
+	}
+
+	/** State calls passed on to the wrapped GL. */
+	public long getIssuedCalls() {
+		return issued;
+	}
+
+	/** State calls dropped because they would not have changed anything. */
+	public long getElidedCalls() {
+		return elided;
+	}
+
+	public void resetCounters() {
+		issued = 0;
+		elided = 0;
+	}
+
+	private boolean changes(int current, int next) {
+		if (current == next) {
+			elided++;
+			return false;
+		}
+		issued++;
+		return true;
+	}
+
+	@Override
+	public void glUseProgram(int program) {
+		if (changes(this.program, program)) {
+			gl.glUseProgram(program);
+			this.program = program;
+		}
+	}
+
+	@Override
+	public void glEnable(int cap) {
+		setCapability(cap, 1);
+	}
+
+	@Override
+	public void glDisable(int cap) {
+		setCapability(cap, 0);
+	}
+
+	private void setCapability(int cap, int state) {
+		int i = 0;
+		while (i < capabilityCount && capabilities[i] != cap)
+			i++;
+		if (i < capabilityCount && !changes(capabilityStates[i], state))
+			return;
+		if (i == capabilityCount) {
+			issued++;
+			if (capabilityCount < MAX_CAPABILITIES) {
+				capabilities[i] = cap;
+				capabilityCount++;
+			} else {
+				// more capabilities than are tracked, just pass it on
+				i = -1;
+			}
+		}
+		if (i >= 0)
+			capabilityStates[i] = state;
+		if (state == 1)
+			gl.glEnable(cap);
+		else
+			gl.glDisable(cap);
+	}
+
+	@Override
+	public void glActiveTexture(int unit) {
+		if (changes(activeUnit, unit)) {
+			gl.glActiveTexture(unit);
+			activeUnit = unit;
+		}
+	}
+
+	@Override
+	public void glBindTexture(int target, int texture) {
+		int unit = activeUnit - GL_TEXTURE0;
+		if (target != GL_TEXTURE_2D || unit < 0 || unit >= MAX_TEXTURE_UNITS) {
+			issued++;
+			gl.glBindTexture(target, texture);
+			return;
+		}
+		if (changes(textures[unit], texture)) {
+			gl.glBindTexture(target, texture);
+			textures[unit] = texture;
+		}
+	}
+
+	@Override
+	public void glDeleteTextures(int n, int[] textures, int offset) {
+		// deleting a bound texture binds 0 in its place on every unit, and
+		// the name may come back from the next glGenTextures
+		for (int i = 0; i < n; i++) {
+			for (int unit = 0; unit < MAX_TEXTURE_UNITS; unit++) {
+				if (this.textures[unit] == textures[offset + i])
+					this.textures[unit] = 0;
+			}
+		}
+		gl.glDeleteTextures(n, textures, offset);
+	}
+
+	@Override
+	public void glBindBuffer(int target, int buffer) {
+		if (target == GL_ARRAY_BUFFER) {
+			if (changes(arrayBuffer, buffer)) {
+				gl.glBindBuffer(target, buffer);
+				arrayBuffer = buffer;
+			}
+		} else if (target == GL_ELEMENT_ARRAY_BUFFER) {
+			if (changes(elementBuffer, buffer)) {
+				gl.glBindBuffer(target, buffer);
+				elementBuffer = buffer;
+			}
+		} else {
+			issued++;
+			gl.glBindBuffer(target, buffer);
+		}
+	}
+
+	@Override
+	public void glEnableVertexAttribArray(int index) {
+		setAttributeArray(index, 1);
+	}
+
+	@Override
+	public void glDisableVertexAttribArray(int index) {
+		setAttributeArray(index, 0);
+	}
+
+	private void setAttributeArray(int index, int state) {
+		boolean tracked = index >= 0 && index < MAX_ATTRIBUTES;
+		if (tracked && !changes(attributeArrays[index], state))
+			return;
+		if (tracked)
+			attributeArrays[index] = state;
+		else
+			issued++;
+		if (state == 1)
+			gl.glEnableVertexAttribArray(index);
+		else
+			gl.glDisableVertexAttribArray(index);
+	}
+
+	@Override
+	public void glGenBuffers(int n, int[] buffers, int offset) {
+		gl.glGenBuffers(n, buffers, offset);
+	}
+
+	@Override
+	public void glDeleteBuffers(int n, int[] buffers, int offset) {
+		// deleting a bound buffer binds 0 in its place
+		for (int i = 0; i < n; i++) {
+			if (buffers[offset + i] == arrayBuffer)
+				arrayBuffer = 0;
+			if (buffers[offset + i] == elementBuffer)
+				elementBuffer = 0;
+		}
+		gl.glDeleteBuffers(n, buffers, offset);
+	}
+
+	@Override
+	public void glBufferData(int target, int size, Buffer data, int usage) {
+		gl.glBufferData(target, size, data, usage);
+	}
+
+	@Override
+	public void glVertexAttribPointer(int index, int size, int type,
+			boolean normalized, int stride, int offset) {
+		gl.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+	}
+
+	@Override
+	public void glVertexAttribPointer(int index, int size, int type,
+			boolean normalized, int stride, Buffer data) {
+		gl.glVertexAttribPointer(index, size, type, normalized, stride, data);
+	}
+
+	@Override
+	public void glVertexAttrib4f(int index, float x, float y, float z, float w) {
+		gl.glVertexAttrib4f(index, x, y, z, w);
+	}
+
+	@Override
+	public void glDrawElements(int mode, int count, int type, int offset) {
+		gl.glDrawElements(mode, count, type, offset);
+	}
+
+	@Override
+	public void glDrawElements(int mode, int count, int type, Buffer indices) {
+		gl.glDrawElements(mode, count, type, indices);
+	}
+}
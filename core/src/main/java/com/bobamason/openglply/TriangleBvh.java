@@ -0,0 +1,575 @@
+package com.bobamason.openglply;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A bounding volume hierarchy over the triangles of a mesh, for ray queries on
+ * the CPU. Nodes are split with a surface area heuristic over BINS bins per
+ * axis and live in flat arrays: six bound floats per node, the first triangle
+ * and triangle count of a leaf, and the first child of an inner node, whose
+ * second child follows it. The triangle corners are copied in leaf order, so
+ * a leaf reads one contiguous run of floats.
+ *
+ * Triangles are numbered across the parts of a mesh, the triangles of the
+ * first part first. Meshes of at least getParallelThreshold() triangles have
+ * their upper levels split on the calling thread and the subtrees below built
+ * in parallel.
+ */
+public class TriangleBvh {
+	private static final int BINS = 16;
+
+	private static final int MAX_LEAF = 4;
+
+	/** Cost of visiting a node relative to testing a triangle. */
+	private static final float TRAVERSAL_COST = 1f;
+
+	/** Deeper ranges become leaves, so the traversal stack never overflows. */
+	private static final int MAX_DEPTH = 64;
+
+	/** Parallel builds hand out subtrees of at least this many triangles. */
+	private static final int MIN_TASK_TRIANGLES = 4096;
+
+	private static int parallelThreshold = 32768;
+
+	private static ExecutorService workers;
+
+	private static ExecutorService builds;
+
+	private final float[] nodeBounds;
+
+	/** First triangle of a leaf or first child of an inner node. */
+	private final int[] nodeFirst;
+
+	/** Triangles of a leaf, 0 for an inner node. */
+	private final int[] nodeCount;
+
+	private final int nodes;
+
+	/** Triangle corners in leaf order, nine floats each. */
+	private final float[] corners;
+
+	/** The mesh triangle of each triangle in leaf order. */
+	private final int[] triangleIds;
+
+	private final long buildMillis;
+
+	private TriangleBvh(float[] nodeBounds, int[] nodeFirst, int[] nodeCount,
+			int nodes, float[] corners, int[] triangleIds, long buildMillis) {
+		this.nodeBounds = nodeBounds;
+		this.nodeFirst = nodeFirst;
+		this.nodeCount = nodeCount;
+		this.nodes = nodes;
+		this.corners = corners;
+		this.triangleIds = triangleIds;
+		this.buildMillis = buildMillis;
+	}
+
+	/** Builds the hierarchy of the model space triangles of parts. */
+	public static TriangleBvh build(MeshData[] parts) {
+		long start = System.nanoTime();
+		int triangles = 0;
+		for (int i = 0; i < parts.length; i++)
+			triangles += parts[i].indexCount / 3;
+
+		float[] source = new float[triangles * 9];
+		float[] position = new float[3];
+		int t = 0;
+		for (int i = 0; i < parts.length; i++) {
+			MeshData part = parts[i];
+			int count = part.indexCount / 3 * 3;
+			for (int n = 0; n < count; n++) {
+				readPosition(part, part.getIndex(n), position);
+				source[t++] = position[0];
+				source[t++] = position[1];
+				source[t++] = position[2];
+			}
+		}
+
+		Builder builder = new Builder(source, triangles);
+		if (triangles >= parallelThreshold) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			List<int[]> subtrees = new ArrayList<int[]>();
+			builder.buildRange(0, 0, triangles, 0, Math.max(
+					MIN_TASK_TRIANGLES, triangles / (threads * 4)), subtrees);
+			builder.buildSubtrees(subtrees);
+		} else {
+			builder.buildRange(0, 0, triangles, 0, 0, null);
+		}
+
+		int[] order = builder.order;
+		float[] corners = new float[triangles * 9];
+		for (int i = 0; i < triangles; i++)
+			System.arraycopy(source, order[i] * 9, corners, i * 9, 9);
+		int nodes = builder.nodeTotal.get();
+		return new TriangleBvh(Arrays.copyOf(builder.nodeBounds, nodes * 6),
+				Arrays.copyOf(builder.nodeFirst, nodes), Arrays.copyOf(
+						builder.nodeCount, nodes), nodes, corners, order,
+				(System.nanoTime() - start) / 1000000);
+	}
+
+	/**
+	 * Starts building the hierarchy of parts on a background thread. Builds
+	 * run one after the other, each using the worker threads for its subtrees.
+	 */
+	public static Future<TriangleBvh> buildLater(final MeshData[] parts) {
+		return getBuilds().submit(new Callable<TriangleBvh>() {
+			@Override
+			public TriangleBvh call() {
+				return build(parts);
+			}
+		});
+	}
+
+	/** Meshes with at least this many triangles are built in parallel. */
+	public static void setParallelThreshold(int triangles) {
+		parallelThreshold = triangles;
+	}
+
+	public static int getParallelThreshold() {
+		return parallelThreshold;
+	}
+
+	/** Reads the model space position of vertex v of a float or snorm mesh. */
+	static void readPosition(MeshData mesh, int v, float[] out) {
+		VertexLayout.Attribute position = mesh.layout
+				.get(VertexLayout.POSITION);
+		int base = v * mesh.layout.getStride() + position.offset;
+		for (int k = 0; k < 3; k++) {
+			float p;
+			if (position.type == VertexLayout.GL_FLOAT)
+				p = mesh.vertices.getFloat(base + k * 4);
+			else
+				p = VertexQuantizer.fromSnorm(mesh.vertices
+						.getShort(base + k * 2));
+			out[k] = p * mesh.positionScale + mesh.positionOffset[k];
+		}
+	}
+
+	/**
+	 * Finds the closest triangle the ray from o along d hits at a ray
+	 * parameter between 0 and maxT, from either side. Fills hit and returns
+	 * true if there is one. d need not be normalized; t is in units of it.
+	 */
+	public boolean intersect(float ox, float oy, float oz, float dx,
+			float dy, float dz, float maxT, Hit hit) {
+		if (triangleIds.length == 0)
+			return false;
+		float ix = 1f / dx, iy = 1f / dy, iz = 1f / dz;
+		float best = maxT;
+		int found = -1;
+		float foundU = 0f, foundV = 0f;
+		int[] stack = hit.stack;
+		float[] stackT = hit.stackT;
+		int sp = 0;
+
+		int node = 0;
+		if (entry(0, ox, oy, oz, ix, iy, iz, best) == Float.POSITIVE_INFINITY)
+			return false;
+		while (true) {
+			int count = nodeCount[node];
+			if (count > 0) {
+				int first = nodeFirst[node];
+				for (int i = first; i < first + count; i++) {
+					int c = i * 9;
+					float ax = corners[c], ay = corners[c + 1], az = corners[c + 2];
+					float e1x = corners[c + 3] - ax, e1y = corners[c + 4] - ay, e1z = corners[c + 5]
+							- az;
+					float e2x = corners[c + 6] - ax, e2y = corners[c + 7] - ay, e2z = corners[c + 8]
+							- az;
+					float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx
+							* e2y - dy * e2x;
+					float det = e1x * px + e1y * py + e1z * pz;
+					if (det == 0f)
+						continue;
+					float inv = 1f / det;
+					float sx = ox - ax, sy = oy - ay, sz = oz - az;
+					float u = (sx * px + sy * py + sz * pz) * inv;
+					if (u < 0f || u > 1f)
+						continue;
+					float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx
+							* e1y - sy * e1x;
+					float v = (dx * qx + dy * qy + dz * qz) * inv;
+					if (v < 0f || u + v > 1f)
+						continue;
+					float t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+					if (t >= 0f && t < best) {
+						best = t;
+						found = i;
+						foundU = u;
+						foundV = v;
+					}
+				}
+			} else {
+				int left = nodeFirst[node];
+				float tl = entry(left, ox, oy, oz, ix, iy, iz, best);
+				float tr = entry(left + 1, ox, oy, oz, ix, iy, iz, best);
+				if (tl != Float.POSITIVE_INFINITY
+						&& tr != Float.POSITIVE_INFINITY) {
+					// visit the nearer child first, the other may be skipped
+					// once a closer hit is found
+					if (tl <= tr) {
+						stack[sp] = left + 1;
+						stackT[sp++] = tr;
+						node = left;
+					} else {
+						stack[sp] = left;
+						stackT[sp++] = tl;
+						node = left + 1;
+					}
+					continue;
+				} else if (tl != Float.POSITIVE_INFINITY) {
+					node = left;
+					continue;
+				} else if (tr != Float.POSITIVE_INFINITY) {
+					node = left + 1;
+					continue;
+				}
+			}
+
+			do {
+				if (sp == 0) {
+					if (found < 0)
+						return false;
+					hit.triangle = triangleIds[found];
+					hit.t = best;
+					hit.u = foundU;
+					hit.v = foundV;
+					return true;
+				}
+				node = stack[--sp];
+			} while (stackT[sp] >= best);
+		}
+	}
+
+	/**
+	 * The ray parameter where the ray enters the bounds of node, or infinity
+	 * if it misses them before 0 or after maxT.
+	 */
+	private float entry(int node, float ox, float oy, float oz, float ix,
+			float iy, float iz, float maxT) {
+		int b = node * 6;
+		float t0 = (nodeBounds[b] - ox) * ix, t1 = (nodeBounds[b + 3] - ox)
+				* ix;
+		float near = Math.min(t0, t1), far = Math.max(t0, t1);
+		t0 = (nodeBounds[b + 1] - oy) * iy;
+		t1 = (nodeBounds[b + 4] - oy) * iy;
+		near = Math.max(near, Math.min(t0, t1));
+		far = Math.min(far, Math.max(t0, t1));
+		t0 = (nodeBounds[b + 2] - oz) * iz;
+		t1 = (nodeBounds[b + 5] - oz) * iz;
+		near = Math.max(near, Math.min(t0, t1));
+		far = Math.min(far, Math.max(t0, t1));
+		// NaN from a zero direction and an origin on a slab plane fails both
+		// tests and counts as a hit, which only costs a visit
+		if (near > far || far < 0f || near >= maxT)
+			return Float.POSITIVE_INFINITY;
+		return Math.max(near, 0f);
+	}
+
+	public int getTriangleCount() {
+		return triangleIds.length;
+	}
+
+	public int getNodeCount() {
+		return nodes;
+	}
+
+	public long getBuildMillis() {
+		return buildMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "bvh " + triangleIds.length + " triangles, " + nodes
+				+ " nodes, built in " + buildMillis + " ms";
+	}
+
+	private static synchronized ExecutorService getWorkers() {
+		if (workers == null)
+			workers = Executors.newFixedThreadPool(Runtime.getRuntime()
+					.availableProcessors(), new DaemonFactory("TriangleBvh-"));
+		return workers;
+	}
+
+	private static synchronized ExecutorService getBuilds() {
+		if (builds == null)
+			builds = Executors.newSingleThreadExecutor(new DaemonFactory(
+					"TriangleBvh-build-"));
+		return builds;
+	}
+
+	private static class DaemonFactory implements ThreadFactory {
+		private final String name;
+
+		private int count = 0;
+
+		DaemonFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + (count++));
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/**
+	 * Where a ray hit. Reuse one per querying thread; it also holds the
+	 * traversal stack, so queries do not allocate.
+	 */
+	public static class Hit {
+		/** Triangle of the mesh, numbered across its parts. */
+		public int triangle = -1;
+
+		/** Ray parameter of the hit. */
+		public float t;
+
+		/** Barycentric weights of the second and third corners. */
+		public float u;
+
+		public float v;
+
+		final int[] stack = new int[MAX_DEPTH];
+
+		final float[] stackT = new float[MAX_DEPTH];
+
+		/** Inverse model matrix of a pick. */
+		final float[] inverse = new float[16];
+
+		/** Origin and direction of a pick in model coordinates. */
+		final float[] ray = new float[6];
+	}
+
+	/** Splits ranges of the triangle order into nodes. */
+	private static class Builder {
+		final float[] primBounds;
+
+		final float[] centroids;
+
+		final int[] order;
+
+		final float[] nodeBounds;
+
+		final int[] nodeFirst;
+
+		final int[] nodeCount;
+
+		/** Node 0 is the root; children are handed out in pairs. */
+		final AtomicInteger nodeTotal = new AtomicInteger(1);
+
+		Builder(float[] source, int triangles) {
+			primBounds = new float[triangles * 6];
+			centroids = new float[triangles * 3];
+			order = new int[triangles];
+			for (int t = 0; t < triangles; t++) {
+				order[t] = t;
+				for (int k = 0; k < 3; k++) {
+					float a = source[t * 9 + k], b = source[t * 9 + 3 + k], c = source[t * 9
+							+ 6 + k];
+					float min = Math.min(a, Math.min(b, c));
+					float max = Math.max(a, Math.max(b, c));
+					primBounds[t * 6 + k] = min;
+					primBounds[t * 6 + 3 + k] = max;
+					centroids[t * 3 + k] = (min + max) / 2f;
+				}
+			}
+			int maxNodes = Math.max(1, triangles * 2 - 1);
+			nodeBounds = new float[maxNodes * 6];
+			nodeFirst = new int[maxNodes];
+			nodeCount = new int[maxNodes];
+		}
+
+		/**
+		 * Builds the subtree of node over order[start, end). With a
+		 * subtrees list, ranges smaller than deferBelow are added to it as
+		 * node, start, end, depth instead of being built.
+		 */
+		void buildRange(int root, int rootStart, int rootEnd, int rootDepth,
+				int deferBelow, List<int[]> subtrees) {
+			float[] binBounds = new float[BINS * 6];
+			int[] binCounts = new int[BINS];
+			float[] rightAreas = new float[BINS];
+			float[] centroidBounds = new float[6];
+			float[] box = new float[6];
+			int[] stack = new int[(MAX_DEPTH + 2) * 4];
+			int sp = 0;
+			stack[sp++] = root;
+			stack[sp++] = rootStart;
+			stack[sp++] = rootEnd;
+			stack[sp++] = rootDepth;
+
+			while (sp > 0) {
+				int depth = stack[--sp];
+				int end = stack[--sp];
+				int start = stack[--sp];
+				int node = stack[--sp];
+				int count = end - start;
+				if (subtrees != null && count < deferBelow) {
+					subtrees.add(new int[] { node, start, end, depth });
+					continue;
+				}
+
+				rangeBounds(start, end, nodeBounds, node * 6, centroidBounds);
+				float nodeArea = area(nodeBounds, node * 6);
+
+				int bestAxis = -1, bestBin = 0;
+				float bestCost = Float.POSITIVE_INFINITY;
+				for (int axis = 0; axis < 3 && depth < MAX_DEPTH - 1; axis++) {
+					float min = centroidBounds[axis];
+					float extent = centroidBounds[3 + axis] - min;
+					if (!(extent > 0f))
+						continue;
+					float scale = BINS / extent;
+					for (int b = 0; b < BINS; b++) {
+						binCounts[b] = 0;
+						empty(binBounds, b * 6);
+					}
+					for (int i = start; i < end; i++) {
+						int p = order[i];
+						int b = bin(centroids[p * 3 + axis], min, scale);
+						binCounts[b]++;
+						grow(binBounds, b * 6, primBounds, p * 6);
+					}
+
+					empty(box, 0);
+					int rightCount = 0;
+					for (int b = BINS - 1; b > 0; b--) {
+						rightCount += binCounts[b];
+						grow(box, 0, binBounds, b * 6);
+						rightAreas[b] = rightCount == 0 ? 0f : area(box, 0);
+					}
+					empty(box, 0);
+					int leftCount = 0;
+					rightCount = count;
+					for (int b = 0; b < BINS - 1; b++) {
+						leftCount += binCounts[b];
+						rightCount -= binCounts[b];
+						grow(box, 0, binBounds, b * 6);
+						if (leftCount == 0 || rightCount == 0)
+							continue;
+						float cost = leftCount * area(box, 0) + rightCount
+								* rightAreas[b + 1];
+						if (cost < bestCost) {
+							bestCost = cost;
+							bestAxis = axis;
+							bestBin = b;
+						}
+					}
+				}
+
+				boolean leaf = bestAxis < 0
+						|| (count <= MAX_LEAF && TRAVERSAL_COST * nodeArea
+								+ bestCost >= count * nodeArea);
+				if (leaf) {
+					nodeFirst[node] = start;
+					nodeCount[node] = count;
+					continue;
+				}
+
+				float min = centroidBounds[bestAxis];
+				float scale = BINS / (centroidBounds[3 + bestAxis] - min);
+				int i = start, j = end - 1;
+				while (i <= j) {
+					int p = order[i];
+					if (bin(centroids[p * 3 + bestAxis], min, scale) <= bestBin) {
+						i++;
+					} else {
+						order[i] = order[j];
+						order[j--] = p;
+					}
+				}
+
+				int left = nodeTotal.getAndAdd(2);
+				nodeFirst[node] = left;
+				nodeCount[node] = 0;
+				stack[sp++] = left + 1;
+				stack[sp++] = i;
+				stack[sp++] = end;
+				stack[sp++] = depth + 1;
+				stack[sp++] = left;
+				stack[sp++] = start;
+				stack[sp++] = i;
+				stack[sp++] = depth + 1;
+			}
+		}
+
+		void buildSubtrees(List<int[]> subtrees) {
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int i = 0; i < subtrees.size(); i++) {
+				final int[] range = subtrees.get(i);
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						buildRange(range[0], range[1], range[2], range[3], 0,
+								null);
+						return null;
+					}
+				});
+			}
+			try {
+				List<Future<Void>> done = getWorkers().invokeAll(tasks);
+				for (int i = 0; i < done.size(); i++)
+					done.get(i).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("bvh build interrupted");
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				throw new RuntimeException(cause);
+			}
+		}
+
+		private void rangeBounds(int start, int end, float[] out,
+				int offset, float[] centroidBounds) {
+			empty(out, offset);
+			empty(centroidBounds, 0);
+			for (int i = start; i < end; i++) {
+				int p = order[i];
+				grow(out, offset, primBounds, p * 6);
+				for (int k = 0; k < 3; k++) {
+					float v = centroids[p * 3 + k];
+					if (v < centroidBounds[k])
+						centroidBounds[k] = v;
+					if (v > centroidBounds[3 + k])
+						centroidBounds[3 + k] = v;
+				}
+			}
+		}
+
+		private static int bin(float centroid, float min, float scale) {
+			return Math.max(0, Math.min(BINS - 1,
+					(int) ((centroid - min) * scale)));
+		}
+
+		private static void empty(float[] box, int offset) {
+			box[offset] = box[offset + 1] = box[offset + 2] = Float.POSITIVE_INFINITY;
+			box[offset + 3] = box[offset + 4] = box[offset + 5] = Float.NEGATIVE_INFINITY;
+		}
+
+		private static void grow(float[] box, int offset, float[] other,
+				int otherOffset) {
+			for (int k = 0; k < 3; k++) {
+				if (other[otherOffset + k] < box[offset + k])
+					box[offset + k] = other[otherOffset + k];
+				if (other[otherOffset + 3 + k] > box[offset + 3 + k])
+					box[offset + 3 + k] = other[otherOffset + 3 + k];
+			}
+		}
+
+		/** Half the surface area, which is all the heuristic compares. */
+		private static float area(float[] box, int offset) {
+			float x = box[offset + 3] - box[offset];
+			float y = box[offset + 4] - box[offset + 1];
+			float z = box[offset + 5] - box[offset + 2];
+			if (!(x >= 0f))
+				return 0f;
+			return x * y + y * z + z * x;
+		}
+	}
+}
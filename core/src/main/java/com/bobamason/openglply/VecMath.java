@@ -0,0 +1,167 @@
+package com.bobamason.openglply;
+
+/**
+ * Vector math over float arrays that never allocates. The batch methods take
+ * structure-of-arrays data, one array per component, and work on the
+ * elements from offset to offset + count in plain counted loops the JIT can
+ * unroll and vectorize; outputs may be the input arrays. The single vector
+ * methods read and write xyz triples at an offset. Matrices are column major
+ * 4x4, as everywhere else, and only their affine part is used.
+ */
+public final class VecMath {
+	private VecMath() {
+	}
+
+	/** Transforms points, taking w as 1. */
+	public static void transformPoints(float[] m, int mOffset, float[] x,
+			float[] y, float[] z, float[] outX, float[] outY, float[] outZ,
+			int offset, int count) {
+		float m0 = m[mOffset], m1 = m[mOffset + 1], m2 = m[mOffset + 2];
+		float m4 = m[mOffset + 4], m5 = m[mOffset + 5], m6 = m[mOffset + 6];
+		float m8 = m[mOffset + 8], m9 = m[mOffset + 9], m10 = m[mOffset + 10];
+		float m12 = m[mOffset + 12], m13 = m[mOffset + 13], m14 = m[mOffset + 14];
+		for (int i = offset; i < offset + count; i++) {
+			float px = x[i], py = y[i], pz = z[i];
+			outX[i] = m0 * px + m4 * py + m8 * pz + m12;
+			outY[i] = m1 * px + m5 * py + m9 * pz + m13;
+			outZ[i] = m2 * px + m6 * py + m10 * pz + m14;
+		}
+	}
+
+	/** Transforms directions, taking w as 0. */
+	public static void transformVectors(float[] m, int mOffset, float[] x,
+			float[] y, float[] z, float[] outX, float[] outY, float[] outZ,
+			int offset, int count) {
+		float m0 = m[mOffset], m1 = m[mOffset + 1], m2 = m[mOffset + 2];
+		float m4 = m[mOffset + 4], m5 = m[mOffset + 5], m6 = m[mOffset + 6];
+		float m8 = m[mOffset + 8], m9 = m[mOffset + 9], m10 = m[mOffset + 10];
+		for (int i = offset; i < offset + count; i++) {
+			float px = x[i], py = y[i], pz = z[i];
+			outX[i] = m0 * px + m4 * py + m8 * pz;
+			outY[i] = m1 * px + m5 * py + m9 * pz;
+			outZ[i] = m2 * px + m6 * py + m10 * pz;
+		}
+	}
+
+	/** Scales vectors to unit length; zero vectors stay zero. */
+	public static void normalize(float[] x, float[] y, float[] z, int offset,
+			int count) {
+		for (int i = offset; i < offset + count; i++) {
+			float px = x[i], py = y[i], pz = z[i];
+			float lengthSq = px * px + py * py + pz * pz;
+			float inv = lengthSq > 0f ? 1f / (float) Math.sqrt(lengthSq) : 0f;
+			x[i] = px * inv;
+			y[i] = py * inv;
+			z[i] = pz * inv;
+		}
+	}
+
+	public static void dot(float[] ax, float[] ay, float[] az, float[] bx,
+			float[] by, float[] bz, float[] out, int offset, int count) {
+		for (int i = offset; i < offset + count; i++)
+			out[i] = ax[i] * bx[i] + ay[i] * by[i] + az[i] * bz[i];
+	}
+
+	public static void cross(float[] ax, float[] ay, float[] az, float[] bx,
+			float[] by, float[] bz, float[] outX, float[] outY, float[] outZ,
+			int offset, int count) {
+		for (int i = offset; i < offset + count; i++) {
+			float x1 = ax[i], y1 = ay[i], z1 = az[i];
+			float x2 = bx[i], y2 = by[i], z2 = bz[i];
+			outX[i] = y1 * z2 - z1 * y2;
+			outY[i] = z1 * x2 - x1 * z2;
+			outZ[i] = x1 * y2 - y1 * x2;
+		}
+	}
+
+	/**
+	 * Writes the min and max corners of the points to out as min x, y, z,
+	 * max x, y, z. No points give an empty box, min above max.
+	 */
+	public static void bounds(float[] x, float[] y, float[] z, int offset,
+			int count, float[] out) {
+		float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+		for (int i = offset; i < offset + count; i++) {
+			minX = Math.min(minX, x[i]);
+			minY = Math.min(minY, y[i]);
+			minZ = Math.min(minZ, z[i]);
+			maxX = Math.max(maxX, x[i]);
+			maxY = Math.max(maxY, y[i]);
+			maxZ = Math.max(maxZ, z[i]);
+		}
+		out[0] = minX;
+		out[1] = minY;
+		out[2] = minZ;
+		out[3] = maxX;
+		out[4] = maxY;
+		out[5] = maxZ;
+	}
+
+	public static float dot(float[] a, int aOffset, float[] b, int bOffset) {
+		return a[aOffset] * b[bOffset] + a[aOffset + 1] * b[bOffset + 1]
+				+ a[aOffset + 2] * b[bOffset + 2];
+	}
+
+	public static float length(float[] v, int offset) {
+		return (float) Math.sqrt(dot(v, offset, v, offset));
+	}
+
+	/** out may be a or b. */
+	public static void cross(float[] a, int aOffset, float[] b, int bOffset,
+			float[] out, int outOffset) {
+		float x1 = a[aOffset], y1 = a[aOffset + 1], z1 = a[aOffset + 2];
+		float x2 = b[bOffset], y2 = b[bOffset + 1], z2 = b[bOffset + 2];
+		out[outOffset] = y1 * z2 - z1 * y2;
+		out[outOffset + 1] = z1 * x2 - x1 * z2;
+		out[outOffset + 2] = x1 * y2 - y1 * x2;
+	}
+
+	/** Returns the length the vector had; a zero vector stays zero. */
+	public static float normalize(float[] v, int offset) {
+		float length = length(v, offset);
+		float inv = length > 0f ? 1f / length : 0f;
+		v[offset] *= inv;
+		v[offset + 1] *= inv;
+		v[offset + 2] *= inv;
+		return length;
+	}
+
+	/** out may be v. */
+	public static void transformPoint(float[] m, int mOffset, float[] v,
+			int vOffset, float[] out, int outOffset) {
+		float x = v[vOffset], y = v[vOffset + 1], z = v[vOffset + 2];
+		out[outOffset] = m[mOffset] * x + m[mOffset + 4] * y + m[mOffset + 8]
+				* z + m[mOffset + 12];
+		out[outOffset + 1] = m[mOffset + 1] * x + m[mOffset + 5] * y
+				+ m[mOffset + 9] * z + m[mOffset + 13];
+		out[outOffset + 2] = m[mOffset + 2] * x + m[mOffset + 6] * y
+				+ m[mOffset + 10] * z + m[mOffset + 14];
+	}
+
+	/** Transforms a direction, taking w as 0; out may be v. */
+	public static void transformVector(float[] m, int mOffset, float[] v,
+			int vOffset, float[] out, int outOffset) {
+		float x = v[vOffset], y = v[vOffset + 1], z = v[vOffset + 2];
+		out[outOffset] = m[mOffset] * x + m[mOffset + 4] * y + m[mOffset + 8]
+				* z;
+		out[outOffset + 1] = m[mOffset + 1] * x + m[mOffset + 5] * y
+				+ m[mOffset + 9] * z;
+		out[outOffset + 2] = m[mOffset + 2] * x + m[mOffset + 6] * y
+				+ m[mOffset + 10] * z;
+	}
+
+	/**
+	 * The angle between two vectors in radians, 0 if either is zero. The
+	 * cosine is clamped, so rounding never makes it NaN.
+	 */
+	public static float angle(float ax, float ay, float az, float bx,
+			float by, float bz) {
+		float lengths = (float) Math.sqrt((ax * ax + ay * ay + az * az)
+				* (bx * bx + by * by + bz * bz));
+		if (lengths == 0f)
+			return 0f;
+		float cos = (ax * bx + ay * by + az * bz) / lengths;
+		return (float) Math.acos(Math.max(-1f, Math.min(1f, cos)));
+	}
+}
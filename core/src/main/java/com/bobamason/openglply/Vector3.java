@@ -1,14 +1,13 @@
 package com.bobamason.openglply;
-import android.opengl.*;
-import android.util.*;
 
+/**
+ * A mutable vector. Methods change this vector and return it; the static ones
+ * that return a new vector have overloads that write to an out vector
+ * instead. For many vectors at once use the batch methods of VecMath.
+ */
 public class Vector3 {
 	public float x, y, z;
 
-	private float[] vIn = new float[4];
-
-	private float[] vOut = new float[4];
-
 	public Vector3() {
 		this.x = 0;
 		this.y = 0;
@@ -61,15 +60,20 @@ public class Vector3 {
 	}
 
 	public static Vector3 subtract(Vector3 v1, Vector3 v2) {
-		return new Vector3(v1.x - v2.x, v1.y - v2.y, v1.z - v2.z);
+		return subtract(v1, v2, new Vector3());
+	}
+
+	/** out may be v1 or v2. */
+	public static Vector3 subtract(Vector3 v1, Vector3 v2, Vector3 out) {
+		return out.set(v1.x - v2.x, v1.y - v2.y, v1.z - v2.z);
 	}
 
+	/** Sets this to the x, y, z of mat * (x, y, z, 1). */
 	public Vector3 multMat4(float[] mat) {
 		if (mat.length != 16)throw new IllegalArgumentException("must be 4x4 matrix");
-		prepareArray();
-		Matrix.multiplyMV(vOut, 0, mat, 0, vIn, 0);
-		setValues();
-		return this;
+		return set(mat[0] * x + mat[4] * y + mat[8] * z + mat[12], mat[1] * x
+				+ mat[5] * y + mat[9] * z + mat[13], mat[2] * x + mat[6] * y
+				+ mat[10] * z + mat[14]);
 	}
 
 	public Vector3 multC(float c) {
@@ -98,7 +102,7 @@ public class Vector3 {
 	}
 	
 	public float mag(){
-		return FloatMath.sqrt(this.x * this.x + this.y * this.y + this.z * this.z);
+		return (float) Math.sqrt(this.x * this.x + this.y * this.y + this.z * this.z);
 	}
 	
 	public float dot(Vector3 v){
@@ -109,12 +113,18 @@ public class Vector3 {
 		return v1.x * v2.x + v1.y * v2.y + v1.z * v2.z;
 	}
 	
+	/** In radians, 0 if either vector is zero. */
 	public static float angle(Vector3 v1, Vector3 v2){
-		return (float)Math.acos(Vector3.dot(v1, v2) / v1.mag() * v2.mag());
+		return VecMath.angle(v1.x, v1.y, v1.z, v2.x, v2.y, v2.z);
 	}
 	
 	public static Vector3 cross(Vector3 v1, Vector3 v2){
-		return new Vector3(v1.y * v2.z - v1.z * v2.y, v1.z * v2.x - v1.x * v2.z, v1.x * v2.y - v1.y * v2.x);
+		return cross(v1, v2, new Vector3());
+	}
+
+	/** out may be v1 or v2. */
+	public static Vector3 cross(Vector3 v1, Vector3 v2, Vector3 out){
+		return out.set(v1.y * v2.z - v1.z * v2.y, v1.z * v2.x - v1.x * v2.z, v1.x * v2.y - v1.y * v2.x);
 	}
 	
 	private void toArray(float[] a){
@@ -145,17 +155,4 @@ public class Vector3 {
 		this.z = v.z;
 		return this;
 	}
-
-	private void prepareArray() {
-		vIn[0] = this.x;
-		vIn[1] = this.y;
-		vIn[2] = this.z;
-		vIn[3] = 1f;
-	}
-
-	private void setValues() {
-		this.x = vOut[0];
-		this.y = vOut[1];
-		this.z = vOut[2];
-	}
 }
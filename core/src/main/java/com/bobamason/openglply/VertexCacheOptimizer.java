@@ -0,0 +1,338 @@
+package com.bobamason.openglply;
+
+import java.nio.*;
+
+/**
+ * Reorders a mesh for the GPU's caches. Triangles are reordered with Tom
+ * Forsyth's linear-speed vertex cache optimisation, so that vertices are
+ * reused while they are still in the post-transform cache, and the vertices
+ * are then renumbered in the order the triangles first use them, so fetches
+ * walk the vertex buffer forwards. Both passes take time linear in the size
+ * of the mesh.
+ *
+ * The report measures the average cache miss ratio (misses per triangle) and
+ * the average transformed vertex ratio (misses per vertex) with a FIFO cache
+ * of SIMULATED_CACHE_SIZE entries, before and after.
+ */
+public class VertexCacheOptimizer {
+	/** Entries of the FIFO cache the report simulates. */
+	public static final int SIMULATED_CACHE_SIZE = 16;
+
+	// the LRU cache the scores model, and Forsyth's published weights
+	private static final int CACHE_SIZE = 32;
+
+	private static final float CACHE_DECAY_POWER = 1.5f;
+
+	private static final float LAST_TRI_SCORE = 0.75f;
+
+	private static final float VALENCE_BOOST_SCALE = 2f;
+
+	private static final float VALENCE_BOOST_POWER = 0.5f;
+
+	private static final int MAX_VALENCE_SCORED = 32;
+
+	private static final float[] CACHE_SCORES = new float[CACHE_SIZE];
+
+	private static final float[] VALENCE_SCORES = new float[MAX_VALENCE_SCORED];
+
+	static {
+		for (int i = 0; i < CACHE_SIZE; i++) {
+			if (i < 3) {
+				// the last triangle's vertices get a fixed score, so the next
+				// triangle does not simply reuse the same edge
+				CACHE_SCORES[i] = LAST_TRI_SCORE;
+			} else {
+				float scale = 1f / (CACHE_SIZE - 3);
+				CACHE_SCORES[i] = (float) Math.pow(1f - (i - 3) * scale,
+						CACHE_DECAY_POWER);
+			}
+		}
+		for (int i = 1; i < MAX_VALENCE_SCORED; i++)
+			VALENCE_SCORES[i] = VALENCE_BOOST_SCALE
+					* (float) Math.pow(i, -VALENCE_BOOST_POWER);
+	}
+
+	private VertexCacheOptimizer() {
+	}
+
+	/**
+	 * Returns a copy of mesh with its triangles and vertices reordered and
+	 * fills report, which may be null. Vertices no triangle uses are moved to
+	 * the end.
+	 */
+	public static MeshData optimize(MeshData mesh, Report report) {
+		int[] indices = new int[mesh.indexCount];
+		for (int i = 0; i < indices.length; i++)
+			indices[i] = mesh.getIndex(i);
+
+		if (report != null) {
+			report.acmrBefore = acmr(indices, SIMULATED_CACHE_SIZE);
+			report.atvrBefore = atvr(indices, mesh.vertexCount,
+					SIMULATED_CACHE_SIZE);
+		}
+
+		int[] ordered = reorderTriangles(indices, mesh.vertexCount);
+		int[] remap = new int[mesh.vertexCount];
+		int[] source = reorderVertices(ordered, mesh.vertexCount, remap);
+		for (int i = 0; i < ordered.length; i++)
+			ordered[i] = remap[ordered[i]];
+
+		if (report != null) {
+			report.acmrAfter = acmr(ordered, SIMULATED_CACHE_SIZE);
+			report.atvrAfter = atvr(ordered, mesh.vertexCount,
+					SIMULATED_CACHE_SIZE);
+		}
+
+		int stride = mesh.layout.getStride();
+		ByteBuffer vertices = ByteBuffer.allocateDirect(mesh.vertexCount
+				* stride);
+		vertices.order(ByteOrder.nativeOrder());
+		ByteBuffer in = mesh.vertices.duplicate();
+		for (int v = 0; v < mesh.vertexCount; v++) {
+			int s = source[v] * stride;
+			in.limit(s + stride);
+			in.position(s);
+			vertices.put(in);
+		}
+		vertices.position(0);
+
+		Buffer out;
+		if (mesh.indexType == MeshData.GL_UNSIGNED_INT) {
+			IntBuffer ints = ByteBuffer.allocateDirect(ordered.length * 4)
+					.order(ByteOrder.nativeOrder()).asIntBuffer();
+			ints.put(ordered);
+			out = ints;
+		} else {
+			ShortBuffer shorts = ByteBuffer.allocateDirect(ordered.length * 2)
+					.order(ByteOrder.nativeOrder()).asShortBuffer();
+			for (int i = 0; i < ordered.length; i++)
+				shorts.put((short) ordered[i]);
+			out = shorts;
+		}
+		out.position(0);
+
+		return new MeshData(mesh.layout, vertices, mesh.vertexCount, out,
+				mesh.indexType, ordered.length, mesh.bounds,
+				mesh.positionScale, mesh.positionOffset);
+	}
+
+	/** Forsyth's greedy triangle order; returns the reordered indices. */
+	static int[] reorderTriangles(int[] indices, int vertexCount) {
+		int triangles = indices.length / 3;
+
+		// triangles of each vertex, packed; the first valence[v] entries from
+		// offsets[v] are the ones not yet emitted
+		int[] valence = new int[vertexCount];
+		for (int i = 0; i < triangles * 3; i++)
+			valence[indices[i]]++;
+		int[] offsets = new int[vertexCount + 1];
+		for (int v = 0; v < vertexCount; v++)
+			offsets[v + 1] = offsets[v] + valence[v];
+		int[] adjacency = new int[triangles * 3];
+		int[] fill = new int[vertexCount];
+		for (int t = 0; t < triangles; t++) {
+			for (int k = 0; k < 3; k++) {
+				int v = indices[t * 3 + k];
+				adjacency[offsets[v] + fill[v]++] = t;
+			}
+		}
+
+		int[] cachePosition = new int[vertexCount];
+		float[] vertexScores = new float[vertexCount];
+		for (int v = 0; v < vertexCount; v++) {
+			cachePosition[v] = -1;
+			vertexScores[v] = vertexScore(-1, valence[v]);
+		}
+		float[] triangleScores = new float[triangles];
+		boolean[] emitted = new boolean[triangles];
+		for (int t = 0; t < triangles; t++)
+			triangleScores[t] = vertexScores[indices[t * 3]]
+					+ vertexScores[indices[t * 3 + 1]]
+					+ vertexScores[indices[t * 3 + 2]];
+
+		// room for a full cache plus the three vertices pushed in front
+		int[] cache = new int[CACHE_SIZE + 3];
+		int[] nextCache = new int[CACHE_SIZE + 3];
+		int cacheCount = 0;
+
+		int[] out = new int[triangles * 3];
+		int best = -1;
+		float bestScore = -1f;
+		for (int t = 0; t < triangles; t++) {
+			if (triangleScores[t] > bestScore) {
+				bestScore = triangleScores[t];
+				best = t;
+			}
+		}
+		int cursor = 0;
+
+		for (int n = 0; n < triangles; n++) {
+			if (best < 0) {
+				// nothing in the cache touches a triangle that is left, so
+				// move on to the next one in file order
+				while (emitted[cursor])
+					cursor++;
+				best = cursor;
+			}
+			int t = best;
+			emitted[t] = true;
+			int a = indices[t * 3], b = indices[t * 3 + 1], c = indices[t * 3 + 2];
+			out[n * 3] = a;
+			out[n * 3 + 1] = b;
+			out[n * 3 + 2] = c;
+
+			// the triangle's vertices go to the front of the cache, the rest
+			// keep their order behind them
+			int count = 0;
+			for (int k = 0; k < 3; k++) {
+				int v = indices[t * 3 + k];
+				// a degenerate triangle lists a vertex twice
+				if ((k < 1 || v != a) && (k < 2 || v != b))
+					nextCache[count++] = v;
+				removeTriangle(adjacency, offsets[v], valence[v], t);
+				valence[v]--;
+			}
+			for (int i = 0; i < cacheCount; i++) {
+				int v = cache[i];
+				if (v != a && v != b && v != c)
+					nextCache[count++] = v;
+			}
+			int[] swap = cache;
+			cache = nextCache;
+			nextCache = swap;
+
+			for (int i = 0; i < count; i++) {
+				int v = cache[i];
+				cachePosition[v] = i < CACHE_SIZE ? i : -1;
+				vertexScores[v] = vertexScore(cachePosition[v], valence[v]);
+			}
+			cacheCount = Math.min(count, CACHE_SIZE);
+
+			best = -1;
+			bestScore = -1f;
+			for (int i = 0; i < count; i++) {
+				int v = cache[i];
+				int end = offsets[v] + valence[v];
+				for (int j = offsets[v]; j < end; j++) {
+					int u = adjacency[j];
+					float score = vertexScores[indices[u * 3]]
+							+ vertexScores[indices[u * 3 + 1]]
+							+ vertexScores[indices[u * 3 + 2]];
+					triangleScores[u] = score;
+					if (score > bestScore) {
+						bestScore = score;
+						best = u;
+					}
+				}
+			}
+		}
+		return out;
+	}
+
+	private static void removeTriangle(int[] adjacency, int start, int count,
+			int t) {
+		int end = start + count - 1;
+		for (int i = start; i <= end; i++) {
+			if (adjacency[i] == t) {
+				adjacency[i] = adjacency[end];
+				adjacency[end] = t;
+				return;
+			}
+		}
+	}
+
+	private static float vertexScore(int cachePosition, int valence) {
+		if (valence == 0)
+			return -1f;
+		float score = cachePosition >= 0 ? CACHE_SCORES[cachePosition] : 0f;
+		return score
+				+ (valence < MAX_VALENCE_SCORED ? VALENCE_SCORES[valence]
+						: VALENCE_BOOST_SCALE
+								* (float) Math.pow(valence,
+										-VALENCE_BOOST_POWER));
+	}
+
+	/**
+	 * Numbers the vertices in the order indices first uses them. Fills remap
+	 * with the new number of each old vertex and returns the old vertex of
+	 * each new number.
+	 */
+	static int[] reorderVertices(int[] indices, int vertexCount, int[] remap) {
+		for (int v = 0; v < vertexCount; v++)
+			remap[v] = -1;
+		int[] source = new int[vertexCount];
+		int next = 0;
+		for (int i = 0; i < indices.length; i++) {
+			int v = indices[i];
+			if (remap[v] < 0) {
+				remap[v] = next;
+				source[next++] = v;
+			}
+		}
+		for (int v = 0; v < vertexCount; v++) {
+			if (remap[v] < 0) {
+				remap[v] = next;
+				source[next++] = v;
+			}
+		}
+		return source;
+	}
+
+	/** Misses of a FIFO cache of the given size per triangle. */
+	public static float acmr(int[] indices, int cacheSize) {
+		int triangles = indices.length / 3;
+		return triangles == 0 ? 0f : (float) countMisses(indices, cacheSize)
+				/ triangles;
+	}
+
+	/** Misses of a FIFO cache of the given size per referenced vertex. */
+	public static float atvr(int[] indices, int vertexCount, int cacheSize) {
+		boolean[] used = new boolean[vertexCount];
+		int referenced = 0;
+		for (int i = 0; i < indices.length; i++) {
+			if (!used[indices[i]]) {
+				used[indices[i]] = true;
+				referenced++;
+			}
+		}
+		return referenced == 0 ? 0f : (float) countMisses(indices, cacheSize)
+				/ referenced;
+	}
+
+	private static int countMisses(int[] indices, int cacheSize) {
+		int[] fifo = new int[cacheSize];
+		for (int i = 0; i < cacheSize; i++)
+			fifo[i] = -1;
+		int head = 0;
+		int misses = 0;
+		for (int i = 0; i < indices.length; i++) {
+			int v = indices[i];
+			boolean hit = false;
+			for (int j = 0; j < cacheSize && !hit; j++)
+				hit = fifo[j] == v;
+			if (!hit) {
+				fifo[head] = v;
+				head = head + 1 == cacheSize ? 0 : head + 1;
+				misses++;
+			}
+		}
+		return misses;
+	}
+
+	/** Cache efficiency before and after an optimize call. */
+	public static class Report {
+		public float acmrBefore;
+
+		public float acmrAfter;
+
+		public float atvrBefore;
+
+		public float atvrAfter;
+
+		@Override
+		public String toString() {
+			return "acmr " + acmrBefore + " to " + acmrAfter + ", atvr "
+					+ atvrBefore + " to " + atvrAfter;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package com.bobamason.openglply;
+
+import java.util.*;
+
+public class VertexLayout {
+	// same values as the GLES20 constants, so layouts can be passed straight
+	// to glVertexAttribPointer
+	public static final int GL_BYTE = 0x1400;
+
+	public static final int GL_UNSIGNED_BYTE = 0x1401;
+
+	public static final int GL_SHORT = 0x1402;
+
+	public static final int GL_UNSIGNED_SHORT = 0x1403;
+
+	public static final int GL_FLOAT = 0x1406;
+
+	public static final int POSITION = 0;
+
+	public static final int NORMAL = 1;
+
+	public static final int TEXCOORD = 2;
+
+	public static final int COLOR = 3;
+
+	/** Which copy of the mesh a vertex of an InstanceBatch belongs to. */
+	public static final int INSTANCE = 4;
+
+	public static final int SEMANTIC_COUNT = 5;
+
+	private final Attribute[] attributes = new Attribute[SEMANTIC_COUNT];
+
+	private int stride;
+
+	public VertexLayout() {
+	}
+
+	public VertexLayout add(int semantic, int size, int type, boolean normalized) {
+		if (attributes[semantic] != null)
+			throw new IllegalStateException("attribute already in layout: "
+					+ semantic);
+		attributes[semantic] = new Attribute(semantic, size, type, normalized,
+				stride);
+		stride += align(size * bytesOf(type));
+		return this;
+	}
+
+	public Attribute get(int semantic) {
+		return attributes[semantic];
+	}
+
+	public boolean has(int semantic) {
+		return attributes[semantic] != null;
+	}
+
+	/** Number of attributes in the layout. */
+	public int count() {
+		int count = 0;
+		for (int i = 0; i < SEMANTIC_COUNT; i++) {
+			if (attributes[i] != null)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the attributes in the order they sit in a vertex. Adding them to
+	 * a new layout in this order reproduces the layout.
+	 */
+	public Attribute[] byOffset() {
+		Attribute[] sorted = new Attribute[count()];
+		int n = 0;
+		for (int i = 0; i < SEMANTIC_COUNT; i++) {
+			if (attributes[i] != null)
+				sorted[n++] = attributes[i];
+		}
+		Arrays.sort(sorted, new Comparator<Attribute>() {
+			@Override
+			public int compare(Attribute a, Attribute b) {
+				return a.offset - b.offset;
+			}
+		});
+		return sorted;
+	}
+
+	/** Size of one vertex in bytes. */
+	public int getStride() {
+		return stride;
+	}
+
+	public static int bytesOf(int type) {
+		switch (type) {
+		case GL_BYTE:
+		case GL_UNSIGNED_BYTE:
+			return 1;
+		case GL_SHORT:
+		case GL_UNSIGNED_SHORT:
+			return 2;
+		default:
+			return 4;
+		}
+	}
+
+	private static int align(int bytes) {
+		return (bytes + 3) & ~3;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof VertexLayout))
+			return false;
+		return Arrays.equals(attributes, ((VertexLayout) o).attributes);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(attributes);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < SEMANTIC_COUNT; i++) {
+			if (attributes[i] != null)
+				sb.append(attributes[i]).append(';');
+		}
+		return sb.append("stride=").append(stride).toString();
+	}
+
+	public static class Attribute {
+		public final int semantic;
+
+		/** Number of components. */
+		public final int size;
+
+		public final int type;
+
+		public final boolean normalized;
+
+		/** Offset from the start of the vertex in bytes. */
+		public final int offset;
+
+		Attribute(int semantic, int size, int type, boolean normalized,
+				int offset) {
+			this.semantic = semantic;
+			this.size = size;
+			this.type = type;
+			this.normalized = normalized;
+			this.offset = offset;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Attribute))
+				return false;
+			Attribute a = (Attribute) o;
+			return a.semantic == semantic && a.size == size && a.type == type
+					&& a.normalized == normalized && a.offset == offset;
+		}
+
+		@Override
+		public int hashCode() {
+			return (((semantic * 31 + size) * 31 + type) * 31 + offset) * 2
+					+ (normalized ? 1 : 0);
+		}
+
+		@Override
+		public String toString() {
+			return semantic + ":" + size + "x" + Integer.toHexString(type)
+					+ (normalized ? "n" : "") + "@" + offset;
+		}
+	}
+}
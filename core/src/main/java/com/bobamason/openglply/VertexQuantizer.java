@@ -0,0 +1,263 @@
+package com.bobamason.openglply;
+
+import java.nio.*;
+
+/**
+ * Repacks float vertices into a compact layout. Positions become normalized
+ * shorts relative to the center of the bounds with one scale for all axes,
+ * which MeshData carries so it can be folded into the model matrix. Normals
+ * are octahedral encoded into two normalized shorts and decoded in the vertex
+ * shader, texture coordinates in [0, 1] become normalized unsigned shorts and
+ * colors normalized unsigned bytes. A color mesh shrinks from 36 to 16 bytes
+ * per vertex and a textured one from 32 to 16.
+ *
+ * GLES 2.0 maps a normalized signed short c to (2c + 1) / 65535, so values
+ * are encoded against that rule rather than c / 32767, and the report
+ * measures the error of what the shader will actually see. Drivers that
+ * follow the GLES 3.0 rule land within one step of the same values.
+ */
+public class VertexQuantizer {
+	public static final int FORMAT_FLOAT = 0;
+
+	public static final int FORMAT_COMPACT = 1;
+
+	private VertexQuantizer() {
+	}
+
+	/**
+	 * Returns a copy of mesh in the compact layout and fills report, which may
+	 * be null, with the largest errors it introduced. Meshes that are not in
+	 * the float layout the decoder produces are returned unchanged.
+	 */
+	public static MeshData quantize(MeshData mesh, Report report) {
+		VertexLayout src = mesh.layout;
+		VertexLayout.Attribute position = src.get(VertexLayout.POSITION);
+		if (position == null || position.type != VertexLayout.GL_FLOAT)
+			return mesh;
+		VertexLayout.Attribute normal = src.get(VertexLayout.NORMAL);
+		VertexLayout.Attribute texcoord = src.get(VertexLayout.TEXCOORD);
+		VertexLayout.Attribute color = src.get(VertexLayout.COLOR);
+		int srcStride = src.getStride();
+		ByteBuffer in = mesh.vertices;
+		int count = mesh.vertexCount;
+
+		// coordinates outside [0, 1] are usually tiling and would be clamped
+		boolean packTexcoord = texcoord != null
+				&& inUnitRange(in, count, srcStride, texcoord);
+
+		VertexLayout layout = new VertexLayout();
+		layout.add(VertexLayout.POSITION, 3, VertexLayout.GL_SHORT, true);
+		if (normal != null)
+			layout.add(VertexLayout.NORMAL, 2, VertexLayout.GL_SHORT, true);
+		if (texcoord != null) {
+			if (packTexcoord)
+				layout.add(VertexLayout.TEXCOORD, 2,
+						VertexLayout.GL_UNSIGNED_SHORT, true);
+			else
+				layout.add(VertexLayout.TEXCOORD, 2, VertexLayout.GL_FLOAT,
+						false);
+		}
+		if (color != null)
+			layout.add(VertexLayout.COLOR, color.size,
+					VertexLayout.GL_UNSIGNED_BYTE, true);
+
+		int stride = layout.getStride();
+		ByteBuffer out = ByteBuffer.allocateDirect(count * stride);
+		out.order(ByteOrder.nativeOrder());
+
+		float[] offset = new float[3];
+		mesh.bounds.getCenter(offset);
+		float scale = Math.max(mesh.bounds.getWidth(), Math.max(
+				mesh.bounds.getHeight(), mesh.bounds.getDepth())) / 2f;
+		if (scale == 0f)
+			scale = 1f;
+
+		float maxPosition = 0f;
+		float minNormalCos = 1f;
+		float maxTexcoord = 0f;
+		float maxColor = 0f;
+		short[] oct = new short[2];
+		float[] decoded = new float[3];
+		int pOut = layout.get(VertexLayout.POSITION).offset;
+		int nOut = normal != null ? layout.get(VertexLayout.NORMAL).offset : 0;
+		int tOut = texcoord != null ? layout.get(VertexLayout.TEXCOORD).offset
+				: 0;
+		int cOut = color != null ? layout.get(VertexLayout.COLOR).offset : 0;
+
+		for (int v = 0; v < count; v++) {
+			int s = v * srcStride;
+			int d = v * stride;
+
+			float error = 0f;
+			for (int k = 0; k < 3; k++) {
+				float p = in.getFloat(s + position.offset + k * 4);
+				short q = toSnorm((p - offset[k]) / scale);
+				out.putShort(d + pOut + k * 2, q);
+				float e = fromSnorm(q) * scale + offset[k] - p;
+				error += e * e;
+			}
+			maxPosition = Math.max(maxPosition, (float) Math.sqrt(error));
+
+			if (normal != null) {
+				float x = in.getFloat(s + normal.offset);
+				float y = in.getFloat(s + normal.offset + 4);
+				float z = in.getFloat(s + normal.offset + 8);
+				float length = (float) Math.sqrt(x * x + y * y + z * z);
+				if (length > 0f) {
+					x /= length;
+					y /= length;
+					z /= length;
+				} else {
+					z = 1f;
+				}
+				float cos = encodeOctahedral(x, y, z, oct, decoded);
+				out.putShort(d + nOut, oct[0]);
+				out.putShort(d + nOut + 2, oct[1]);
+				minNormalCos = Math.min(minNormalCos, cos);
+			}
+
+			if (texcoord != null) {
+				for (int k = 0; k < 2; k++) {
+					float t = in.getFloat(s + texcoord.offset + k * 4);
+					if (packTexcoord) {
+						int q = Math.round(t * 65535f);
+						out.putShort(d + tOut + k * 2, (short) q);
+						maxTexcoord = Math.max(maxTexcoord,
+								Math.abs(q / 65535f - t));
+					} else {
+						out.putFloat(d + tOut + k * 4, t);
+					}
+				}
+			}
+
+			if (color != null) {
+				for (int k = 0; k < color.size; k++) {
+					float c = in.getFloat(s + color.offset + k * 4);
+					int q = Math.round(Math.min(1f, Math.max(0f, c)) * 255f);
+					out.put(d + cOut + k, (byte) q);
+					maxColor = Math.max(maxColor, Math.abs(q / 255f - c));
+				}
+			}
+		}
+
+		if (report != null) {
+			report.bytesBefore = (long) count * srcStride;
+			report.bytesAfter = (long) count * stride;
+			report.maxPositionError = maxPosition;
+			report.maxNormalErrorDegrees = (float) Math.toDegrees(Math
+					.acos(Math.min(1f, minNormalCos)));
+			report.maxTexcoordError = maxTexcoord;
+			report.maxColorError = maxColor;
+			report.texcoordFloat = texcoord != null && !packTexcoord;
+		}
+
+		return new MeshData(layout, out, count, mesh.indices, mesh.indexType,
+				mesh.indexCount, mesh.bounds, scale, offset);
+	}
+
+	private static boolean inUnitRange(ByteBuffer in, int count, int stride,
+			VertexLayout.Attribute a) {
+		for (int v = 0; v < count; v++) {
+			for (int k = 0; k < a.size; k++) {
+				float t = in.getFloat(v * stride + a.offset + k * 4);
+				if (!(t >= 0f && t <= 1f))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	static short toSnorm(float f) {
+		int c = Math.round((f * 65535f - 1f) / 2f);
+		return (short) Math.max(-32768, Math.min(32767, c));
+	}
+
+	static float fromSnorm(short c) {
+		return (2 * c + 1) / 65535f;
+	}
+
+	/**
+	 * Encodes a unit normal and returns the cosine of the angle between it and
+	 * the decoded result. The four ways of rounding the two coordinates are
+	 * tried and the closest one is kept; n is scratch space for the decode.
+	 */
+	static float encodeOctahedral(float x, float y, float z, short[] out,
+			float[] n) {
+		float l1 = Math.abs(x) + Math.abs(y) + Math.abs(z);
+		float u = x / l1;
+		float v = y / l1;
+		if (z < 0f) {
+			float fu = (1f - Math.abs(v)) * signNotZero(u);
+			float fv = (1f - Math.abs(u)) * signNotZero(v);
+			u = fu;
+			v = fv;
+		}
+
+		float cu = (u * 65535f - 1f) / 2f;
+		float cv = (v * 65535f - 1f) / 2f;
+		float best = -2f;
+		for (int i = 0; i < 4; i++) {
+			int qu = (int) ((i & 1) == 0 ? Math.floor(cu) : Math.ceil(cu));
+			int qv = (int) ((i & 2) == 0 ? Math.floor(cv) : Math.ceil(cv));
+			short su = (short) Math.max(-32768, Math.min(32767, qu));
+			short sv = (short) Math.max(-32768, Math.min(32767, qv));
+			decodeOctahedral(su, sv, n);
+			float cos = n[0] * x + n[1] * y + n[2] * z;
+			if (cos > best) {
+				best = cos;
+				out[0] = su;
+				out[1] = sv;
+			}
+		}
+		return best;
+	}
+
+	/** The same decode the vertex shader does. */
+	static void decodeOctahedral(short su, short sv, float[] n) {
+		float u = fromSnorm(su);
+		float v = fromSnorm(sv);
+		float z = 1f - Math.abs(u) - Math.abs(v);
+		if (z < 0f) {
+			float fu = (1f - Math.abs(v)) * signNotZero(u);
+			float fv = (1f - Math.abs(u)) * signNotZero(v);
+			u = fu;
+			v = fv;
+		}
+		float length = (float) Math.sqrt(u * u + v * v + z * z);
+		n[0] = u / length;
+		n[1] = v / length;
+		n[2] = z / length;
+	}
+
+	private static float signNotZero(float f) {
+		return f >= 0f ? 1f : -1f;
+	}
+
+	/** Largest errors a quantize call introduced, in model units. */
+	public static class Report {
+		public long bytesBefore;
+
+		public long bytesAfter;
+
+		public float maxPositionError;
+
+		public float maxNormalErrorDegrees;
+
+		public float maxTexcoordError;
+
+		public float maxColorError;
+
+		/** True if texture coordinates outside [0, 1] were kept as floats. */
+		public boolean texcoordFloat;
+
+		@Override
+		public String toString() {
+			return "vertex bytes " + bytesAfter + " from " + bytesBefore
+					+ ", max position error " + maxPositionError
+					+ ", max normal error " + maxNormalErrorDegrees
+					+ " deg, max texcoord error " + maxTexcoordError
+					+ (texcoordFloat ? " (kept as float)" : "")
+					+ ", max color error " + maxColorError;
+		}
+	}
+}
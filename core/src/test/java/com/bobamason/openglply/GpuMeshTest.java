@@ -0,0 +1,89 @@
+package com.bobamason.openglply;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import org.junit.*;
+
+/**
+ * Draws a mesh frame after frame through RecordingGL and checks what each
+ * frame sends: the buffers once, then nothing but the draw, until the
+ * context is lost.
+ */
+public class GpuMeshTest {
+	private static final int FRAMES = 10;
+
+	private MeshData data;
+
+	private RecordingGL gl;
+
+	@Before
+	public void setUp() throws IOException {
+		File file = new File(System.getProperty("assets.dir", "../assets"),
+				"cube.ply");
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			data = new PLYLoader(PLYLoader.MODE_STREAMING).load(in);
+		} finally {
+			in.close();
+		}
+		gl = new RecordingGL();
+	}
+
+	private void drawFrame(GpuMesh mesh, int generation) {
+		gl.beginFrame();
+		mesh.upload(gl, generation, GLApi.GL_STATIC_DRAW);
+		mesh.bind(gl);
+		mesh.bindAttribute(gl, 0, data.layout.get(VertexLayout.POSITION));
+		mesh.draw(gl);
+	}
+
+	@Test
+	public void uploadsOncePerContext() {
+		GpuMesh mesh = new GpuMesh(data);
+		long bytes = mesh.getBufferBytes();
+		assertEquals(data.getDirectBytes(), bytes);
+
+		for (int frame = 0; frame < FRAMES; frame++) {
+			drawFrame(mesh, 0);
+			assertEquals("frame " + frame, frame == 0 ? bytes : 0L,
+					gl.getFrameUploadedBytes());
+			assertEquals("frame " + frame, 0L, gl.getFrameClientBytes());
+			assertEquals(1, gl.getFrameDrawCalls());
+		}
+		assertEquals(bytes, gl.getUploadedBytes());
+		assertEquals(2, gl.getLiveBuffers());
+		assertEquals(bytes, gl.getLiveBufferBytes());
+
+		// a new context has none of the old buffers
+		drawFrame(mesh, 1);
+		assertEquals(bytes, gl.getFrameUploadedBytes());
+		drawFrame(mesh, 1);
+		assertEquals(0L, gl.getFrameUploadedBytes());
+		assertEquals(2 * bytes, gl.getUploadedBytes());
+		assertEquals(4, gl.getLiveBuffers());
+
+		mesh.release(gl, 1);
+		assertFalse(mesh.isUploaded(1));
+		assertEquals(2, gl.getLiveBuffers());
+	}
+
+	@Test
+	public void stateCachingDropsRepeatedBinds() {
+		GpuMesh mesh = new GpuMesh(data);
+		GLApi cached = new StateCachingGL(gl);
+		mesh.upload(cached, 0, GLApi.GL_STATIC_DRAW);
+		for (int frame = 0; frame < FRAMES; frame++) {
+			gl.beginFrame();
+			mesh.bind(cached);
+			mesh.bindAttribute(cached, 0,
+					data.layout.get(VertexLayout.POSITION));
+			mesh.draw(cached);
+			assertEquals(0L, gl.getFrameUploadedBytes());
+			// only the first frame enables the attribute array
+			assertEquals("frame " + frame, frame == 0 ? 1 : 0,
+					gl.getFrameStateCalls());
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package com.bobamason.openglply;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.*;
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Loads the bundled assets in streaming mode and checks where the memory
+ * goes: the mesh is held once in direct buffers of exactly its size, and the
+ * heap only holds the read window, however big the file is.
+ */
+public class PLYLoaderTest {
+	/** What a streaming load may allocate on the heap, for any file. */
+	private static final long HEAP_LIMIT = 256 * 1024;
+
+	private static File[] assets() {
+		File dir = new File(System.getProperty("assets.dir", "../assets"));
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".ply");
+			}
+		});
+		assertNotNull("no assets in " + dir.getAbsolutePath(), files);
+		assertTrue(files.length > 0);
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static MeshData load(File file, LoadMetrics metrics)
+			throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			return new PLYLoader(PLYLoader.MODE_STREAMING).load(in, metrics);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Corners of the faces of mixedPolygons, a triangle first. */
+	private static final int[] CORNERS = { 3, 4, 5, 7, 3, 3, 6, 4 };
+
+	/**
+	 * A ring of seven vertices and faces cycling through CORNERS, each a
+	 * convex polygon over the first vertices of the ring.
+	 */
+	private static byte[] mixedPolygons(String format, int faces)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		String header = "ply\nformat " + format + " 1.0\n"
+				+ "element vertex 7\nproperty float x\nproperty float y\n"
+				+ "property float z\nelement face " + faces + "\n"
+				+ "property list uchar int vertex_indices\nend_header\n";
+		out.write(header.getBytes("US-ASCII"));
+		boolean ascii = format.equals("ascii");
+		ByteBuffer b = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+		for (int v = 0; v < 7; v++) {
+			float x = (float) Math.cos(v * 2 * Math.PI / 7);
+			float y = (float) Math.sin(v * 2 * Math.PI / 7);
+			if (ascii) {
+				out.write((x + " " + y + " 0\n").getBytes("US-ASCII"));
+			} else {
+				b.clear();
+				b.putFloat(x).putFloat(y).putFloat(0f);
+				out.write(b.array(), 0, b.position());
+			}
+		}
+		for (int f = 0; f < faces; f++) {
+			int n = CORNERS[f % CORNERS.length];
+			if (ascii) {
+				StringBuilder line = new StringBuilder().append(n);
+				for (int i = 0; i < n; i++)
+					line.append(' ').append(i);
+				out.write((line + "\n").getBytes("US-ASCII"));
+			} else {
+				b.clear();
+				b.put((byte) n);
+				for (int i = 0; i < n; i++)
+					b.putInt(i);
+				out.write(b.array(), 0, b.position());
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private static BufferPoolMXBean directPool() {
+		for (BufferPoolMXBean pool : ManagementFactory
+				.getPlatformMXBeans(BufferPoolMXBean.class))
+			if (pool.getName().equals("direct"))
+				return pool;
+		return null;
+	}
+
+	@Test
+	public void streamingHoldsMeshOnceInDirectBuffers() throws IOException {
+		BufferPoolMXBean pool = directPool();
+		// kept reachable so no buffer is freed while another load is measured
+		ArrayList<MeshData> meshes = new ArrayList<MeshData>();
+		for (File file : assets()) {
+			LoadMetrics metrics = new LoadMetrics(file.getName());
+			long before = pool != null ? pool.getMemoryUsed() : 0L;
+			MeshData mesh = load(file, metrics);
+			long used = pool != null ? pool.getMemoryUsed() - before : 0L;
+			meshes.add(mesh);
+
+			long expected = (long) mesh.vertexCount
+					* mesh.layout.getStride() + (long) mesh.indexCount * 4;
+			assertEquals(file.getName(), expected, mesh.getDirectBytes());
+			assertEquals(file.getName(), mesh.vertices.capacity(),
+					mesh.vertexCount * mesh.layout.getStride());
+			assertEquals(file.getName(), mesh.indices.capacity(),
+					mesh.indexCount);
+			assertEquals(file.getName(), expected,
+					metrics.getPeakBufferBytes());
+			assertEquals(file.getName(), expected, metrics.getBufferBytes());
+			if (pool != null)
+				assertEquals(file.getName(), expected, used);
+		}
+	}
+
+	@Test
+	public void streamingHeapDoesNotGrowWithFile() throws IOException {
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported()
+				&& threads.isThreadAllocatedMemoryEnabled());
+		long id = Thread.currentThread().getId();
+
+		File[] files = assets();
+		// the first loads also allocate the classes and cached decoders
+		for (File file : files)
+			load(file, null);
+		for (File file : files) {
+			long before = threads.getThreadAllocatedBytes(id);
+			MeshData mesh = load(file, null);
+			long heap = threads.getThreadAllocatedBytes(id) - before;
+			assertTrue(file.getName() + " allocated " + heap
+					+ " heap bytes for " + file.length() + " file bytes",
+					heap < HEAP_LIMIT);
+			assertTrue(mesh.getDirectBytes() > 0);
+		}
+	}
+
+	/**
+	 * The streaming decode guesses the index buffer from the faces read so
+	 * far and grows it; with triangles, quads and n-gons mixed it must still
+	 * end up with every triangle in a buffer of exactly their size, holding
+	 * at most twice that on the way, and the same indices as the parallel
+	 * parser, which counts the triangles first.
+	 */
+	@Test
+	public void mixedPolygonsEndInExactBuffers() throws IOException {
+		int faces = 10000;
+		int triangles = 0;
+		for (int f = 0; f < faces; f++)
+			triangles += CORNERS[f % CORNERS.length] - 2;
+		long expected = 7L * 12 + triangles * 3L * 4;
+		String[] formats = { "ascii", "binary_little_endian" };
+		int[] modes = { PLYLoader.MODE_STREAMING, PLYLoader.MODE_PARALLEL };
+		MeshData reference = null;
+		for (String format : formats) {
+			byte[] data = mixedPolygons(format, faces);
+			for (int mode : modes) {
+				String name = format + " mode " + mode;
+				LoadMetrics metrics = new LoadMetrics(name);
+				MeshData mesh = new PLYLoader(mode).load(
+						new ByteArrayInputStream(data), metrics);
+				assertEquals(name, triangles * 3, mesh.indexCount);
+				assertEquals(name, mesh.indexCount, mesh.indices.capacity());
+				assertEquals(name, expected, mesh.getDirectBytes());
+				assertEquals(name, expected, metrics.getBufferBytes());
+				// growing holds the old buffer and the new one at once, and
+				// trimming the exact one with the grown one
+				long peak = metrics.getPeakBufferBytes();
+				if (mode == PLYLoader.MODE_PARALLEL && format.equals("ascii"))
+					assertEquals(name, expected, peak);
+				else
+					assertTrue(name + " peaked at " + peak,
+							peak <= 2 * expected);
+				if (reference == null)
+					reference = mesh;
+				for (int i = 0; i < mesh.indexCount; i++)
+					assertEquals(name, reference.getIndex(i), mesh.getIndex(i));
+			}
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.bobamason.openglply;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+public class PLYTokenizerTest {
+	private static int nextInt(String token) throws IOException {
+		byte[] b = token.getBytes("US-ASCII");
+		return new PLYTokenizer(b, 0, b.length).nextInt();
+	}
+
+	private static float nextFloat(String token) throws IOException {
+		byte[] b = token.getBytes("US-ASCII");
+		return new PLYTokenizer(b, 0, b.length).nextFloat();
+	}
+
+	/** Checks the float of token against Float.parseFloat, bit for bit. */
+	private static void assertParses(String token) throws IOException {
+		int expected = Float.floatToIntBits(Float.parseFloat(token));
+		int actual = Float.floatToIntBits(nextFloat(token));
+		if (expected != actual)
+			fail(token + " read as " + Float.intBitsToFloat(actual)
+					+ ", expected " + Float.intBitsToFloat(expected));
+	}
+
+	private static void assertParses(String[] tokens) throws IOException {
+		for (int i = 0; i < tokens.length; i++)
+			assertParses(tokens[i]);
+	}
+
+	private static void assertMalformed(String token) {
+		try {
+			fail(token + " read as " + nextFloat(token));
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(token));
+		}
+	}
+
+	private static void assertOutOfRange(String token) {
+		try {
+			fail(token + " read as " + nextInt(token));
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(token));
+		}
+	}
+
+	@Test
+	public void readsWholeIntRange() throws IOException {
+		assertEquals(0, nextInt("-0"));
+		assertEquals(7, nextInt("+7"));
+		assertEquals(Integer.MAX_VALUE, nextInt("2147483647"));
+		assertEquals(Integer.MIN_VALUE, nextInt("-2147483648"));
+		assertEquals(12, nextInt("000000000000000000000000012"));
+	}
+
+	@Test
+	public void truncatesDecimals() throws IOException {
+		assertEquals(3, nextInt("3.0"));
+		assertEquals(-2, nextInt("-2.9"));
+		assertEquals(1000, nextInt("1e3"));
+	}
+
+	@Test
+	public void throwsOutsideIntRange() {
+		assertOutOfRange("2147483648");
+		assertOutOfRange("-2147483649");
+		assertOutOfRange("4294967295");
+		assertOutOfRange("99999999999999999999999");
+		assertOutOfRange("1e10");
+	}
+
+	@Test
+	public void parsesPlainDecimals() throws IOException {
+		assertParses(new String[] { "0", "1", "0.5", "3.14159", "-2.75",
+				"0.000001", "123456.789012", "16777216", "16777217",
+				"999999999999999", "0.1", "0.2", "0.3", "1.0000001",
+				"0.00000000000000000000001", "340282.346638528" });
+	}
+
+	@Test
+	public void fallsBackPastFifteenDigits() throws IOException {
+		assertParses(new String[] { "1234567890123456",
+				"0.12345678901234567890", "3.4028234663852886",
+				"1.00000005960464477539", "1.00000005960464477540",
+				"1.00000005960464477538", "0.000000000000000000000012345" });
+	}
+
+	@Test
+	public void parsesExponents() throws IOException {
+		assertParses(new String[] { "1e0", "1E0", "1e+3", "1e-3", "2.5E+10",
+				"-7.25e-5", "1e22", "1e23", "1.5e22", "9.999999e22", "1e30",
+				"3.4028235e38", "1e-38", "1e-45" });
+	}
+
+	@Test
+	public void parsesSignsAndBareDots() throws IOException {
+		assertParses(new String[] { "+1.5", "-1.5", ".5", "-.5", "+.5", "5.",
+				"-5.", "-0.0", "+0.0", "0.", "-0", "00000.0000", "-000.000" });
+		assertEquals(Float.floatToIntBits(-0f),
+				Float.floatToIntBits(nextFloat("-0.0")));
+	}
+
+	@Test
+	public void parsesSubnormalsAndOverflow() throws IOException {
+		assertParses(new String[] { "1.4e-45", "7e-46", "7.1e-46", "1e-46",
+				"1.1754942e-38", "1.17549435e-38",
+				"0.0000000000000000000000000000000000000117549435",
+				"3.4028235e38", "3.4028236e38", "1e39", "-1e39",
+				"340282356779733661637539395458142568448" });
+	}
+
+	/**
+	 * Random tokens with every sign, digit count and exponent form, and the
+	 * shortest and %f forms of random floats.
+	 */
+	@Test
+	public void matchesParseFloatOnRandomTokens() throws IOException {
+		Random random = new Random(42);
+		StringBuilder sb = new StringBuilder();
+		for (int n = 0; n < 3000000; n++) {
+			String token;
+			switch (n % 3) {
+			case 0:
+				sb.setLength(0);
+				int sign = random.nextInt(3);
+				if (sign == 1)
+					sb.append('-');
+				else if (sign == 2)
+					sb.append('+');
+				int whole = random.nextInt(12);
+				for (int i = 0; i < whole; i++)
+					sb.append((char) ('0' + random.nextInt(10)));
+				int fraction = random.nextInt(whole == 0 ? 12 : 13);
+				if (whole == 0 || fraction > 0 || random.nextBoolean()) {
+					sb.append('.');
+					if (whole == 0 && fraction == 0)
+						fraction = 1;
+				}
+				for (int i = 0; i < fraction; i++)
+					sb.append((char) ('0' + random.nextInt(10)));
+				if (random.nextInt(8) == 0)
+					sb.append(random.nextBoolean() ? 'e' : 'E')
+							.append(random.nextInt(90) - 45);
+				token = sb.toString();
+				break;
+			case 1:
+				token = Float.toString(Float.intBitsToFloat(random.nextInt()));
+				break;
+			default:
+				token = String.format(Locale.US, "%f",
+						random.nextFloat() * 2000f - 1000f);
+			}
+			assertParses(token);
+		}
+	}
+
+	@Test
+	public void throwsOnMalformedFloats() {
+		String[] tokens = { "abc", "1.2.3", "--1", "+-1", "-", "+", ".",
+				"1e", "e5", "1e+", "1x", "0x10", "1,5" };
+		for (int i = 0; i < tokens.length; i++)
+			assertMalformed(tokens[i]);
+	}
+}
@@ -0,0 +1,205 @@
+package com.bobamason.openglply;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.*;
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Checks the order submit draws packets in. Each packet carries its number as
+ * arg and in its matrices, so the test also sees the matrices travel with
+ * their packet through the sort.
+ */
+public class RenderQueueTest {
+	private static final int PROGRAM = 3;
+
+	private static final int TEXTURE = 7;
+
+	private RenderQueue queue;
+
+	private final float[] mv = new float[16];
+
+	private final float[] mvp = new float[16];
+
+	private int[] drawn = new int[4096];
+
+	private int drawnCount;
+
+	private final RenderQueue.Submitter recorder = new RenderQueue.Submitter() {
+		@Override
+		public void submitPacket(float[] matrices, int offset, int arg) {
+			if (matrices[offset] != arg || matrices[offset + 16] != -arg)
+				fail("packet " + arg + " drawn with the matrices of packet "
+						+ (int) matrices[offset]);
+			drawn[drawnCount++] = arg;
+		}
+	};
+
+	@Before
+	public void setUp() {
+		queue = new RenderQueue(4);
+	}
+
+	private void add(int pass, int program, int texture, float depth, int arg) {
+		mv[0] = arg;
+		mvp[0] = -arg;
+		queue.add(pass, program, texture, depth, mv, mvp, recorder, arg);
+	}
+
+	private void assertSubmits(int... expected) {
+		drawnCount = 0;
+		queue.submit();
+		assertEquals(expected.length, queue.getSubmitted());
+		assertEquals(0, queue.size());
+		assertArrayEquals(expected, Arrays.copyOf(drawn, drawnCount));
+	}
+
+	@Test
+	public void drawsPassesInOrder() {
+		// the overlay pass sets the sign bit of the key
+		add(RenderQueue.PASS_OVERLAY, PROGRAM, TEXTURE, 1f, 0);
+		add(RenderQueue.PASS_TRANSPARENT, PROGRAM, TEXTURE, 1f, 1);
+		add(RenderQueue.PASS_OPAQUE, PROGRAM, TEXTURE, 1f, 2);
+		add(RenderQueue.PASS_OVERLAY, PROGRAM, TEXTURE, 1f, 3);
+		add(RenderQueue.PASS_OPAQUE, PROGRAM, TEXTURE, 1f, 4);
+		assertSubmits(2, 4, 1, 0, 3);
+	}
+
+	@Test
+	public void sortsDepthPerPass() {
+		add(RenderQueue.PASS_OPAQUE, PROGRAM, TEXTURE, 5f, 0);
+		add(RenderQueue.PASS_OPAQUE, PROGRAM, TEXTURE, 1f, 1);
+		add(RenderQueue.PASS_OPAQUE, PROGRAM, TEXTURE, 3f, 2);
+		add(RenderQueue.PASS_TRANSPARENT, PROGRAM, TEXTURE, 5f, 3);
+		add(RenderQueue.PASS_TRANSPARENT, PROGRAM, TEXTURE, 1f, 4);
+		add(RenderQueue.PASS_TRANSPARENT, PROGRAM, TEXTURE, 3f, 5);
+		// behind the eye counts as 0
+		add(RenderQueue.PASS_OPAQUE, PROGRAM, TEXTURE, -2f, 6);
+		assertSubmits(6, 1, 2, 0, 3, 5, 4);
+	}
+
+	@Test
+	public void groupsOpaqueByProgramThenTexture() {
+		add(RenderQueue.PASS_OPAQUE, 2, 1, 1f, 0);
+		add(RenderQueue.PASS_OPAQUE, 1, 2, 1f, 1);
+		add(RenderQueue.PASS_OPAQUE, 1, 1, 9f, 2);
+		add(RenderQueue.PASS_OPAQUE, 2, 1, 0.5f, 3);
+		// transparent packets sort by depth alone
+		add(RenderQueue.PASS_TRANSPARENT, 1, 1, 1f, 4);
+		add(RenderQueue.PASS_TRANSPARENT, 2, 2, 2f, 5);
+		assertSubmits(2, 1, 3, 0, 5, 4);
+	}
+
+	@Test
+	public void keepsOrderOfEqualKeys() {
+		for (int i = 0; i < 100; i++)
+			add(RenderQueue.PASS_OPAQUE, i % 2, TEXTURE, 1f, i);
+		int[] expected = new int[100];
+		for (int i = 0; i < 50; i++) {
+			expected[i] = i * 2;
+			expected[50 + i] = i * 2 + 1;
+		}
+		assertSubmits(expected);
+	}
+
+	/**
+	 * Keys that differ in one byte take a single digit pass and leave the
+	 * sorted packets in the swapped buffers, keys that are all equal take
+	 * none. Frame after frame the queue must keep its buffers apart.
+	 */
+	@Test
+	public void sortsWithAnyNumberOfDigitPasses() {
+		for (int frame = 0; frame < 4; frame++) {
+			// programs below 64 only change bits 50 to 55
+			for (int i = 0; i < 40; i++)
+				add(RenderQueue.PASS_OPAQUE, 40 - i, TEXTURE, 1f, i);
+			int[] expected = new int[40];
+			for (int i = 0; i < 40; i++)
+				expected[i] = 39 - i;
+			assertSubmits(expected);
+
+			for (int i = 0; i < 10; i++)
+				add(RenderQueue.PASS_OPAQUE, PROGRAM, TEXTURE, 1f, i);
+			assertSubmits(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+
+			// program and pass change two bytes
+			add(RenderQueue.PASS_TRANSPARENT, 2, TEXTURE, 1f, 0);
+			add(RenderQueue.PASS_OPAQUE, 2, TEXTURE, 1f, 1);
+			add(RenderQueue.PASS_OPAQUE, 1, TEXTURE, 1f, 2);
+			assertSubmits(2, 1, 0);
+		}
+	}
+
+	@Test
+	public void matchesStableSortOfRandomPackets() {
+		final Random random = new Random(7);
+		for (int frame = 0; frame < 20; frame++) {
+			int n = 1 + random.nextInt(2000);
+			final int[] passes = new int[n];
+			final int[] programs = new int[n];
+			final int[] textures = new int[n];
+			final int[] depths = new int[n];
+			Integer[] expected = new Integer[n];
+			for (int i = 0; i < n; i++) {
+				passes[i] = random.nextInt(3);
+				programs[i] = 1 + random.nextInt(8);
+				textures[i] = random.nextInt(5);
+				// whole numbers keep their order in the 24 depth bits
+				depths[i] = random.nextInt(1000);
+				expected[i] = i;
+				add(passes[i], programs[i], textures[i], depths[i], i);
+			}
+			Arrays.sort(expected, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					if (passes[a] != passes[b])
+						return passes[a] - passes[b];
+					if (passes[a] != RenderQueue.PASS_OPAQUE)
+						return depths[b] - depths[a];
+					if (programs[a] != programs[b])
+						return programs[a] - programs[b];
+					if (textures[a] != textures[b])
+						return textures[a] - textures[b];
+					return depths[a] - depths[b];
+				}
+			});
+			int[] order = new int[n];
+			for (int i = 0; i < n; i++)
+				order[i] = expected[i];
+			assertSubmits(order);
+		}
+	}
+
+	@Test
+	public void allocatesNothingOnceGrown() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean bean =
+				(com.sun.management.ThreadMXBean) threads;
+		Assume.assumeTrue(bean.isThreadAllocatedMemorySupported()
+				&& bean.isThreadAllocatedMemoryEnabled());
+		long id = Thread.currentThread().getId();
+
+		Random random = new Random(1);
+		float[] depths = new float[1000];
+		for (int i = 0; i < depths.length; i++)
+			depths[i] = random.nextFloat() * 100f;
+		for (int frame = 0; frame < 3; frame++)
+			frame(depths);
+		bean.getThreadAllocatedBytes(id);
+		long before = bean.getThreadAllocatedBytes(id);
+		for (int frame = 0; frame < 10; frame++)
+			frame(depths);
+		long after = bean.getThreadAllocatedBytes(id);
+		assertEquals(0L, after - before);
+	}
+
+	private void frame(float[] depths) {
+		drawnCount = 0;
+		for (int i = 0; i < depths.length; i++)
+			add(i % 3, i % 5, i % 7, depths[i], i);
+		queue.submit();
+	}
+}
@@ -0,0 +1,53 @@
+package com.bobamason.openglply;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class StateCachingGLTest {
+	private RecordingGL gl;
+
+	private StateCachingGL cached;
+
+	@Before
+	public void setUp() {
+		gl = new RecordingGL();
+		cached = new StateCachingGL(gl);
+	}
+
+	@Test
+	public void dropsRepeatedTextureBinds() {
+		cached.glActiveTexture(GLApi.GL_TEXTURE0);
+		cached.glBindTexture(GLApi.GL_TEXTURE_2D, 5);
+		gl.beginFrame();
+		cached.glBindTexture(GLApi.GL_TEXTURE_2D, 5);
+		assertEquals(0, gl.getFrameStateCalls());
+	}
+
+	@Test
+	public void deletedTextureIsBoundAgain() {
+		// GL hands a deleted name out again, its bind must reach GL
+		cached.glActiveTexture(GLApi.GL_TEXTURE0 + 1);
+		cached.glBindTexture(GLApi.GL_TEXTURE_2D, 5);
+		cached.glActiveTexture(GLApi.GL_TEXTURE0);
+		cached.glBindTexture(GLApi.GL_TEXTURE_2D, 5);
+		cached.glDeleteTextures(1, new int[] { 5 }, 0);
+		gl.beginFrame();
+		cached.glBindTexture(GLApi.GL_TEXTURE_2D, 5);
+		cached.glActiveTexture(GLApi.GL_TEXTURE0 + 1);
+		cached.glBindTexture(GLApi.GL_TEXTURE_2D, 5);
+		assertEquals(3, gl.getFrameStateCalls());
+	}
+
+	@Test
+	public void deletedBufferIsBoundAgain() {
+		cached.glBindBuffer(GLApi.GL_ARRAY_BUFFER, 0);
+		int[] buffer = new int[1];
+		cached.glGenBuffers(1, buffer, 0);
+		cached.glBindBuffer(GLApi.GL_ARRAY_BUFFER, buffer[0]);
+		cached.glDeleteBuffers(1, buffer, 0);
+		gl.beginFrame();
+		cached.glBindBuffer(GLApi.GL_ARRAY_BUFFER, 0);
+		assertEquals(0, gl.getFrameStateCalls());
+	}
+}
@@ -0,0 +1,125 @@
+package com.bobamason.openglply;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+public class VecMathTest {
+	private static final int COUNT = 1000;
+
+	private final Random random = new Random(3);
+
+	/** android.opengl.Matrix.multiplyMV, which multMat4 used before. */
+	private static void multiplyMV(float[] result, float[] m, float[] v) {
+		for (int i = 0; i < 4; i++)
+			result[i] = m[i] * v[0] + m[4 + i] * v[1] + m[8 + i] * v[2]
+					+ m[12 + i] * v[3];
+	}
+
+	private float[] randomArray(int n) {
+		float[] a = new float[n];
+		for (int i = 0; i < n; i++)
+			a[i] = random.nextFloat() * 20f - 10f;
+		return a;
+	}
+
+	@Test
+	public void angleOfZeroVectorsIsZero() {
+		assertEquals(0f, VecMath.angle(0f, 0f, 0f, 1f, 2f, 3f), 0f);
+		assertEquals(0f, VecMath.angle(1f, 2f, 3f, 0f, 0f, 0f), 0f);
+		assertEquals(0f, Vector3.angle(new Vector3(), new Vector3()), 0f);
+	}
+
+	@Test
+	public void angleClampsTheCosine() {
+		// the cosine of these rounds to 1.0000001, whose acos is NaN
+		Vector3 a = new Vector3(0.332717f, 0.6588672f, 0.96775585f);
+		Vector3 b = new Vector3(a).multC(3f);
+		assertEquals(0f, Vector3.angle(a, b), 0f);
+		assertEquals((float) Math.PI, Vector3.angle(a, b.multC(-1f)), 0f);
+		for (int i = 0; i < COUNT; i++) {
+			float x = random.nextFloat(), y = random.nextFloat(), z = random
+					.nextFloat();
+			float k = random.nextFloat() * 100f;
+			float same = VecMath.angle(x, y, z, x * k, y * k, z * k);
+			assertTrue(same + "", same >= 0f && same < 1e-3f);
+			float opposite = VecMath.angle(x, y, z, -x * k, -y * k, -z * k);
+			assertEquals((float) Math.PI, opposite, 1e-3f);
+		}
+	}
+
+	@Test
+	public void angleOfUnequalLengths() {
+		// the old angle divided by one length and multiplied by the other
+		assertEquals((float) Math.PI / 2f, VecMath.angle(2f, 0f, 0f, 0f, 5f,
+				0f), 1e-6f);
+		assertEquals((float) Math.PI / 4f, Vector3.angle(new Vector3(10f, 0f,
+				0f), new Vector3(1f, 1f, 0f)), 1e-6f);
+	}
+
+	@Test
+	public void multMat4MatchesMultiplyMV() {
+		float[] v = new float[4];
+		float[] expected = new float[4];
+		Vector3 out = new Vector3();
+		for (int i = 0; i < COUNT; i++) {
+			float[] m = randomArray(16);
+			v[0] = random.nextFloat() * 20f - 10f;
+			v[1] = random.nextFloat() * 20f - 10f;
+			v[2] = random.nextFloat() * 20f - 10f;
+			v[3] = 1f;
+			multiplyMV(expected, m, v);
+			out.set(v[0], v[1], v[2]).multMat4(m);
+			assertEquals(expected[0], out.x, 0f);
+			assertEquals(expected[1], out.y, 0f);
+			assertEquals(expected[2], out.z, 0f);
+		}
+	}
+
+	@Test
+	public void batchTransformsMatchSingleOnes() {
+		float[] m = randomArray(16);
+		float[] x = randomArray(COUNT), y = randomArray(COUNT);
+		float[] z = randomArray(COUNT);
+		float[] px = new float[COUNT], py = new float[COUNT], pz = new float[COUNT];
+		float[] vx = new float[COUNT], vy = new float[COUNT], vz = new float[COUNT];
+		VecMath.transformPoints(m, 0, x, y, z, px, py, pz, 0, COUNT);
+		VecMath.transformVectors(m, 0, x, y, z, vx, vy, vz, 0, COUNT);
+		float[] v = new float[3];
+		float[] point = new float[3];
+		float[] vector = new float[3];
+		for (int i = 0; i < COUNT; i++) {
+			v[0] = x[i];
+			v[1] = y[i];
+			v[2] = z[i];
+			VecMath.transformPoint(m, 0, v, 0, point, 0);
+			VecMath.transformVector(m, 0, v, 0, vector, 0);
+			assertArrayEquals(new float[] { px[i], py[i], pz[i] }, point, 0f);
+			assertArrayEquals(new float[] { vx[i], vy[i], vz[i] }, vector, 0f);
+		}
+	}
+
+	@Test
+	public void normalizeKeepsZeroVectors() {
+		float[] x = { 3f, 0f }, y = { 4f, 0f }, z = { 0f, 0f };
+		VecMath.normalize(x, y, z, 0, 2);
+		assertEquals(0.6f, x[0], 1e-6f);
+		assertEquals(0.8f, y[0], 1e-6f);
+		assertEquals(0f, x[1], 0f);
+		float[] v = { 0f, 0f, 0f };
+		assertEquals(0f, VecMath.normalize(v, 0), 0f);
+		assertArrayEquals(new float[3], v, 0f);
+	}
+
+	@Test
+	public void boundsOfNoPointsIsEmpty() {
+		float[] box = new float[6];
+		VecMath.bounds(new float[0], new float[0], new float[0], 0, 0, box);
+		assertTrue(box[0] > box[3]);
+		float[] x = { 1f, -2f, 3f }, y = { 0f, 5f, -1f }, z = { 2f, 2f, 2f };
+		VecMath.bounds(x, y, z, 0, 3, box);
+		assertArrayEquals(new float[] { -2f, -1f, 2f, 3f, 5f, 2f }, box, 0f);
+	}
+}
@@ -30,10 +30,6 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
 	private int mProgram;
 
-	private int startedCount = 0;
-
-	private int completedCount = 0;
-
 	private PLYModel cube;
 
 	private LoadingAnimation anim;
@@ -44,18 +40,59 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
 	private PLYModel eyeBall;
 
+	private final RenderQueue queue = new RenderQueue();
+
+	private final SceneGraph scene = new SceneGraph();
+
+	private int cubeNode;
+
+	private int eyeBallNode;
+
+	private static String extensions;
+
+	private static int contextGeneration;
+
+	private static final StateCachingGL gl = new StateCachingGL(
+			AndroidGL.get());
+
+	/**
+	 * Whether checkGLError calls on the draw path are made. It is a constant,
+	 * so in release builds the compiler drops the checks and the glGetError
+	 * round trips they cost.
+	 */
+	public static final boolean CHECK_GL_ERRORS = BuildConfig.DEBUG;
+
+	private static final FrameProfiler profiler = new FrameProfiler();
+
 	public void setContext(Context context) {
 		this.context = context;
 	}
 
 	@Override
 	public void onSurfaceCreated(GL10 unused, EGLConfig config) {
+		// everything made in the previous context is gone
+		extensions = null;
+		contextGeneration++;
+		gl.invalidate();
+		ShaderRegistry.get().onSurfaceCreated();
 		GLES20.glClearColor(0.3f, 0.3f, 0.3f, 1f);
 		anim = new LoadingAnimation();
 
-		cube = new PLYModel(context, "cube.ply", mLoadStatusListener);
-		eyeBall = new PLYModel(context, "eyeball.ply", R.drawable.tex2,
-				mLoadStatusListener);
+		if (cube == null) {
+			cube = new PLYModel(context, "cube.ply", null);
+			eyeBall = new PLYModel(context, "eyeball.ply", R.drawable.tex2,
+					null);
+
+			cubeNode = scene.addNode(-1, cube.getInstance());
+			scene.setTranslation(cubeNode, 0f, 0.4f, 1.7f);
+			scene.setScale(cubeNode, 0.4f);
+			eyeBallNode = scene.addNode(-1, eyeBall.getInstance());
+			scene.setTranslation(eyeBallNode, 0f, -0.5f, 1.2f);
+			scene.setScale(eyeBallNode, 0.4f);
+		} else {
+			cube.onSurfaceCreated();
+			eyeBall.onSurfaceCreated();
+		}
 	}
 
 	@Override
@@ -75,7 +112,16 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
 	@Override
 	public void onDrawFrame(GL10 unused) {
+		profiler.beginFrame();
+		// finished loads are taken up before anything is drawn
+		ModelLoader.get().drainGLQueue();
+		if (!allLoaded && cube.getLoadFuture().isDone()
+				&& eyeBall.getLoadFuture().isDone()) {
+			allLoaded = true;
+			Log.d("GLRenderer", LoadMetricsRegistry.dump());
+		}
 		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+		Mesh.resetCounters();
 
 		if (allLoaded) {
 			Matrix.setLookAtM(mViewMatrix, 0, 0.0f, 0.0f, -1.0f, 0f, 0f, 1f,
@@ -87,26 +133,22 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 			Matrix.multiplyMV(mLightPosInEyeSpace, 0, mViewMatrix, 0,
 					mLightPosInModelSpace, 0);
 
-			// model transformations
-			// STLModel.draw(float[] viewMatrix, float[] lightPos, float[]
-			// color)
-			cube.setIdentity();
-			cube.translate(0f, 0.4f, 1.7f);
-			cube.rotateEuler(angle * 0.2f, angle * 0.4f, angle * 0.6f);
-			cube.scale(0.4f);
-			cube.draw(mViewMatrix, mLightPosInEyeSpace);
-
-			eyeBall.setIdentity();
-			eyeBall.translate(0f, -0.5f, 1.2f);
-			eyeBall.rotateEuler(50 * (float) Math.sin(angle * 0.04f),
+			// only the rotations change, the scene rebuilds just those nodes
+			scene.setRotationEuler(cubeNode, angle * 0.2f, angle * 0.4f,
+					angle * 0.6f);
+			scene.setRotationEuler(eyeBallNode,
+					50 * (float) Math.sin(angle * 0.04f),
 					50 * (float) Math.cos(angle * 0.02f) - 90, 0f);
-			eyeBall.scale(0.4f);
-			eyeBall.draw(mViewMatrix, mLightPosInEyeSpace);
+			scene.update(mViewMatrix, mProjectionMatrix);
+			scene.enqueue(queue, mLightPosInEyeSpace);
+
+			queue.submit();
 
 			angle += 0.8f;
 		} else {
 			anim.draw();
 		}
+		profiler.endFrame();
 	}
 
 	public static int loadGLShader(int type, String code) {
@@ -134,6 +176,33 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 		return shader;
 	}
 
+	/**
+	 * The GL that render state and geometry calls go through on the GL
+	 * thread. Its counters show how many state calls were skipped.
+	 */
+	public static StateCachingGL getGL() {
+		return gl;
+	}
+
+	/**
+	 * Frame times, draw calls and triangles of the frames drawn; query it
+	 * from any thread.
+	 */
+	public static FrameProfiler getProfiler() {
+		return profiler;
+	}
+
+	/** Changes every time a new context is created. */
+	public static int getContextGeneration() {
+		return contextGeneration;
+	}
+
+	public static boolean hasExtension(String name) {
+		if (extensions == null)
+			extensions = " " + GLES20.glGetString(GLES20.GL_EXTENSIONS) + " ";
+		return extensions.contains(" " + name + " ");
+	}
+
 	public static void checkGLError(String func) {
 		int error;
 		while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
@@ -156,7 +225,7 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 					context.getResources(), resourceId, options);
 
 			// Bind to the texture in OpenGL
-			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle[0]);
+			gl.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle[0]);
 
 			// Set filtering
 			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
@@ -177,23 +246,4 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
 		return textureHandle[0];
 	}
-
-	private PLYModel.LoadStatusListener mLoadStatusListener = new PLYModel.LoadStatusListener() {
-		@Override
-		public void started() {
-			if (allLoaded)
-				allLoaded = false;
-			startedCount++;
-			Log.d("started ", startedCount + " started");
-		}
-
-		@Override
-		public void completed() {
-			completedCount++;
-			if (completedCount == startedCount) {
-				allLoaded = true;
-			}
-			Log.d("completed ", completedCount + " completed");
-		}
-	};
 }
@@ -0,0 +1,213 @@
+package com.bobamason.openglply;
+
+import android.opengl.*;
+
+/**
+ * Draws many instances of a Mesh in few calls. GLES 2.0 has no instanced
+ * draws, so each part is copied InstanceBatch.MAX_INSTANCES times into one
+ * buffer and the instance transforms are passed as a uniform array, which
+ * divides the draw calls by the number of copies. Instances are grouped by
+ * level of detail and each level is drawn from copies of its own parts, made
+ * on the first instanced draw of that level. Only use from the GL thread.
+ */
+class InstanceDrawer {
+	/** Floats of u_Instances one instance takes. */
+	private static final int INSTANCE_FLOATS = 16;
+
+	private final Mesh mesh;
+
+	private final MeshLevels levels;
+
+	private final boolean hasTexture;
+
+	private final boolean bufferObjects;
+
+	private final ShaderProgram program;
+
+	private GpuMesh[][] batches;
+
+	private int[][] batchCopies;
+
+	private GLApi gl = GLRenderer.getGL();
+
+	private FrameProfiler profiler = GLRenderer.getProfiler();
+
+	private float[] mvMatrix = new float[16];
+
+	private float[] mvpMatrix = new float[16];
+
+	private float[] instanceRows = new float[InstanceBatch.MAX_INSTANCES
+			* INSTANCE_FLOATS];
+
+	/** instanceRows sorted by level of detail. */
+	private float[] instanceData = new float[InstanceBatch.MAX_INSTANCES
+			* INSTANCE_FLOATS];
+
+	private int[] instanceLevels = new int[InstanceBatch.MAX_INSTANCES];
+
+	private int[] levelStarts;
+
+	InstanceDrawer(Mesh mesh, MeshLevels levels, boolean hasTexture,
+			boolean compactVertices, boolean bufferObjects) {
+		this.mesh = mesh;
+		this.levels = levels;
+		this.hasTexture = hasTexture;
+		this.bufferObjects = bufferObjects;
+		program = MeshShaders.getInstancedProgram(hasTexture, compactVertices);
+		batches = new GpuMesh[levels.getLevelCount()][];
+		batchCopies = new int[levels.getLevelCount()][];
+		levelStarts = new int[levels.getLevelCount() + 1];
+	}
+
+	/**
+	 * Draws the first count instances, each at its own level of detail and
+	 * as many per draw call as the batch of each part holds. Instances
+	 * outside the frustum are skipped.
+	 */
+	void draw(MeshInstance[] instances, int count, float[] viewMatrix,
+			float[] projectionMatrix, float[] lightPos) {
+		if (instanceRows.length < count * INSTANCE_FLOATS) {
+			instanceRows = new float[count * INSTANCE_FLOATS];
+			instanceData = new float[count * INSTANCE_FLOATS];
+			instanceLevels = new int[count];
+		}
+		int levelCount = levels.getLevelCount();
+		int[] starts = levelStarts;
+		for (int l = 0; l <= levelCount; l++)
+			starts[l] = 0;
+		int visible = 0;
+		for (int i = 0; i < count; i++) {
+			MeshInstance instance = instances[i];
+			Matrix.multiplyMM(mvMatrix, 0, viewMatrix, 0,
+					mesh.getDrawModelMatrix(instance.getModelMatrix()), 0);
+			Matrix.multiplyMM(mvpMatrix, 0, projectionMatrix, 0, mvMatrix, 0);
+			boolean inside = levels.inFrustum(mvpMatrix, 0);
+			Mesh.countInstance(inside);
+			if (!inside)
+				continue;
+			int level = levels.selectLevel(instance, mvMatrix, 0,
+					projectionMatrix);
+			instanceLevels[visible] = level;
+			starts[level + 1]++;
+			InstanceBatch.putInstance(mvMatrix, instance.getLightStrength(),
+					instanceRows, visible * INSTANCE_FLOATS);
+			visible++;
+		}
+		if (visible == 0)
+			return;
+		// group the instances of each level, keeping their order
+		for (int l = 0; l < levelCount; l++)
+			starts[l + 1] += starts[l];
+		for (int i = 0; i < visible; i++) {
+			int to = starts[instanceLevels[i]]++;
+			System.arraycopy(instanceRows, i * INSTANCE_FLOATS, instanceData,
+					to * INSTANCE_FLOATS, INSTANCE_FLOATS);
+		}
+
+		mesh.useProgram(program, lightPos);
+		GLES20.glUniformMatrix4fv(program.uniform(MeshShaders.U_P_MATRIX), 1,
+				false, projectionMatrix, 0);
+
+		int first = 0;
+		for (int l = 0; l < levelCount; l++) {
+			// starts[l] now holds the end of level l
+			if (starts[l] > first)
+				drawBatches(l, first, starts[l] - first);
+			first = starts[l];
+		}
+
+		if (GLRenderer.CHECK_GL_ERRORS)
+			GLRenderer.checkGLError("Draw Mesh instances");
+	}
+
+	private void drawBatches(int level, int first, int count) {
+		if (batches[level] == null)
+			makeBatches(level);
+
+		ShaderProgram p = program;
+		int generation = GLRenderer.getContextGeneration();
+		int positionHandle = p.attribute(MeshShaders.A_POSITION);
+		int normalHandle = p.attribute(MeshShaders.A_NORMAL);
+		int surfaceHandle = p.attribute(MeshShaders.A_SURFACE);
+		int instanceHandle = p.attribute(MeshShaders.A_INSTANCE);
+		int surfaceSemantic = hasTexture ? VertexLayout.TEXCOORD
+				: VertexLayout.COLOR;
+		if (!bufferObjects)
+			GpuMesh.unbind(gl);
+		GpuMesh[] parts = batches[level];
+		for (int i = 0; i < parts.length; i++) {
+			GpuMesh batch = parts[i];
+			MeshData data = batch.data;
+			if (bufferObjects) {
+				levels.upload(batch, generation);
+				batch.bind(gl);
+				levels.bindAttribute(batch, positionHandle,
+						VertexLayout.POSITION);
+				levels.bindAttribute(batch, normalHandle, VertexLayout.NORMAL);
+				levels.bindAttribute(batch, surfaceHandle, surfaceSemantic);
+				levels.bindAttribute(batch, instanceHandle,
+						VertexLayout.INSTANCE);
+			} else {
+				levels.bindAttribute(data, positionHandle,
+						VertexLayout.POSITION);
+				levels.bindAttribute(data, normalHandle, VertexLayout.NORMAL);
+				levels.bindAttribute(data, surfaceHandle, surfaceSemantic);
+				levels.bindAttribute(data, instanceHandle,
+						VertexLayout.INSTANCE);
+			}
+
+			int copies = batchCopies[level][i];
+			int partIndices = data.indexCount / copies;
+			for (int done = 0; done < count; done += copies) {
+				int n = Math.min(copies, count - done);
+				GLES20.glUniform4fv(p.uniform(MeshShaders.U_INSTANCES), n * 4,
+						instanceData, (first + done) * INSTANCE_FLOATS);
+				if (bufferObjects) {
+					batch.draw(gl, n * partIndices);
+				} else {
+					data.indices.position(0);
+					gl.glDrawElements(GLApi.GL_TRIANGLES, n * partIndices,
+							data.indexType, data.indices);
+				}
+				profiler.countDraw(n * partIndices / 3);
+			}
+		}
+		levels.disableAttributes(positionHandle, normalHandle, surfaceHandle);
+		if (instanceHandle >= 0)
+			gl.glDisableVertexAttribArray(instanceHandle);
+	}
+
+	private void makeBatches(int level) {
+		MeshData[] parts = levels.getParts(level);
+		batches[level] = new GpuMesh[parts.length];
+		batchCopies[level] = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			batchCopies[level][i] = InstanceBatch.copiesFor(parts[i]);
+			batches[level][i] = new GpuMesh(InstanceBatch.replicate(parts[i],
+					batchCopies[level][i]));
+		}
+	}
+
+	/**
+	 * Deletes the buffer objects of the copies if they were made in this
+	 * context generation and drops the copies.
+	 */
+	void release(int generation) {
+		MeshLevels.release(gl, batches, generation);
+		batches = null;
+	}
+
+	long getDirectBytes() {
+		long bytes = 0;
+		for (int l = 0; batches != null && l < batches.length; l++) {
+			for (int i = 0; batches[l] != null && i < batches[l].length; i++)
+				bytes += batches[l][i].data.getDirectBytes();
+		}
+		return bytes;
+	}
+
+	/** Bytes of buffer objects uploaded in the context generation. */
+	long getBufferBytes(int generation) {
+		return MeshLevels.getBufferBytes(batches, generation);
+	}
+}
@@ -43,6 +43,8 @@ public class LoadingAnimation {
 
 	private float[] color = new float[4];
 
+	private final GLApi gl = GLRenderer.getGL();
+
 	public LoadingAnimation() {
 		triangle = new Triangle();
 		currentMillis = lastMillis = System.currentTimeMillis();
@@ -64,8 +66,9 @@ public class LoadingAnimation {
 		Matrix.setLookAtM(viewMatrix, 0, 0.0f, 0.0f, -1.0f, 0f, 0f, 0f, 0f, 1f,
 				0f);
 
-		GLES20.glDisable(GLES20.GL_CULL_FACE);
-		GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+		// models enable these again for themselves when they draw
+		gl.glDisable(GLApi.GL_CULL_FACE);
+		gl.glDisable(GLApi.GL_DEPTH_TEST);
 		currentMillis = System.currentTimeMillis();
 
 		for (int i = 0; i < numTriangles; i++) {
@@ -97,9 +100,6 @@ public class LoadingAnimation {
 			Matrix.multiplyMM(mvpMatrix, 0, projection, 0, mvMatrix, 0);
 			triangle.draw(mvpMatrix, color);
 		}
-
-		GLES20.glEnable(GLES20.GL_CULL_FACE);
-		GLES20.glEnable(GLES20.GL_DEPTH_TEST);
 	}
 
 	private class Triangle {
@@ -124,13 +124,13 @@ public class LoadingAnimation {
 
 		int vertexStride = C0ORDS_PER_VERTEX * 4;
 
-		private int mProgram;
+		private static final int A_POSITION = 0;
 
-		private int mPositionHandle;
+		private static final int U_COLOR = 0;
 
-		private int mColorHandle;
+		private static final int U_MVP_MATRIX = 1;
 
-		private int mMVPMatrixHandle;
+		private final ShaderProgram program;
 
 		public Triangle() {
 			ByteBuffer bb = ByteBuffer
@@ -144,39 +144,32 @@ public class LoadingAnimation {
 			Log.d("triangle buffer", vertexBuffer.capacity() + "");
 			Log.d("triangle stride", vertexStride + "");
 
-			int vertexShader = GLRenderer.loadGLShader(GLES20.GL_VERTEX_SHADER,
-					vertexShaderCode);
-			int fragmentShader = GLRenderer.loadGLShader(
-					GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
-
-			mProgram = GLES20.glCreateProgram();
-			GLES20.glAttachShader(mProgram, vertexShader);
-			GLES20.glAttachShader(mProgram, fragmentShader);
-			GLES20.glLinkProgram(mProgram);
+			program = ShaderRegistry.get().getProgram(vertexShaderCode,
+					fragmentShaderCode, new String[] { "vPosition" },
+					new String[] { "vColor", "uMVPMatrix" });
 		}
 
 		public void draw(float[] mvpMatrix, float[] color) {
-			GLES20.glUseProgram(mProgram);
+			program.use(gl);
 
-			mPositionHandle = GLES20.glGetAttribLocation(mProgram, "vPosition");
+			int positionHandle = program.attribute(A_POSITION);
 
-			GLES20.glEnableVertexAttribArray(mPositionHandle);
+			gl.glEnableVertexAttribArray(positionHandle);
 
-			GLES20.glVertexAttribPointer(mPositionHandle, C0ORDS_PER_VERTEX,
+			// the vertices are a client array
+			gl.glBindBuffer(GLApi.GL_ARRAY_BUFFER, 0);
+			GLES20.glVertexAttribPointer(positionHandle, C0ORDS_PER_VERTEX,
 					GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
 
-			mColorHandle = GLES20.glGetUniformLocation(mProgram, "vColor");
-
-			GLES20.glUniform4fv(mColorHandle, 1, color, 0);
-
-			mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram,
-					"uMVPMatrix");
+			GLES20.glUniform4fv(program.uniform(U_COLOR), 1, color, 0);
 
-			GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mvpMatrix, 0);
+			GLES20.glUniformMatrix4fv(program.uniform(U_MVP_MATRIX), 1, false,
+					mvpMatrix, 0);
 
 			GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, vertexCount);
+			GLRenderer.getProfiler().countDraw(vertexCount / 3);
 
-			GLES20.glDisableVertexAttribArray(mPositionHandle);
+			gl.glDisableVertexAttribArray(positionHandle);
 		}
 	}
 }
@@ -0,0 +1,711 @@
+package com.bobamason.openglply;
+
+import android.opengl.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import android.content.*;
+import android.os.*;
+import android.util.*;
+
+/**
+ * The shareable part of a model: the parsed geometry, its buffer objects, the
+ * program and the texture. Nothing in it changes once it has loaded, so any
+ * number of MeshInstances can draw it; each instance only adds a transform
+ * and a light strength.
+ *
+ * MeshLoadJob loads the geometry, MeshLevels holds and draws it and
+ * InstanceDrawer draws many instances of it in few calls.
+ */
+public class Mesh {
+	private ShaderProgram program;
+
+	private volatile boolean loaded = false;
+
+	private volatile Exception loadFailure;
+
+	private Context context;
+
+	private float[] minVals = { 0f, 0f, 0f };
+
+	private float[] maxVals = { 0f, 0f, 0f };
+
+	private static int loadMode = new PLYLoader().getMode();
+
+	private static int loadPriority = ModelLoader.PRIORITY_NORMAL;
+
+	// drawing from buffer objects by offset needs the GLES20 overloads added
+	// in gingerbread
+	private static int geometryMode = Build.VERSION.SDK_INT >= 9 ? PLYModel.GEOMETRY_BUFFER_OBJECTS
+			: PLYModel.GEOMETRY_CLIENT_ARRAYS;
+
+	private static int vertexFormat = VertexQuantizer.FORMAT_FLOAT;
+
+	private static boolean vertexCacheOptimized = true;
+
+	private static boolean lodEnabled = true;
+
+	private String filename;
+
+	private final ArrayList<PLYModel.LoadStatusListener> listeners = new ArrayList<PLYModel.LoadStatusListener>();
+
+	private final ModelLoader.Request<MeshData[][]> load;
+
+	/** The load this mesh asked for or joined. */
+	private final MeshLoadJob loadJob;
+
+	private final LoadMetrics metrics;
+
+	private boolean started;
+
+	private boolean hasTexture;
+
+	private boolean uintIndices;
+
+	private boolean compactVertices;
+
+	private boolean bufferObjects;
+
+	/** The levels and their bounds, set once the mesh is loaded. */
+	private MeshLevels geometry;
+
+	// made on the first instanced draw, most meshes never need it; the
+	// registry rebuilds its program with the context like the other one
+	private InstanceDrawer instancer;
+
+	private GLApi gl = GLRenderer.getGL();
+
+	private FrameProfiler profiler = GLRenderer.getProfiler();
+
+	/** CPU time of the draws of this mesh in drawFrame. */
+	private long drawNanos;
+
+	private int drawFrame = -1;
+
+	private int texID;
+
+	/** Triangles of level 0 for picking, built after loading. */
+	private volatile Future<TriangleBvh> bvh;
+
+	private boolean bvhLogged;
+
+	private int mTextureDataHandle;
+
+	/** Context generation the program and texture were made in. */
+	private int surfaceGeneration = -1;
+
+	// scratch space shared by all instances, only touched on the GL thread
+	private float[] mvMatrix = new float[16];
+
+	private float[] mvpMatrix = new float[16];
+
+	private float[] drawModelMatrix = new float[16];
+
+	// instances drawn and culled since the last resetCounters
+	private static int drawnCount;
+
+	private static int culledCount;
+
+	public Mesh(Context ctx, String filename,
+			PLYModel.LoadStatusListener listener) {
+		this(ctx, filename, 0, listener);
+	}
+
+	/** A texID of 0 draws with vertex colors instead of a texture. */
+	public Mesh(Context ctx, String filename, int texID,
+			PLYModel.LoadStatusListener listener) {
+		context = ctx;
+		hasTexture = texID != 0;
+		this.texID = texID;
+		compactVertices = vertexFormat == VertexQuantizer.FORMAT_COMPACT;
+		bufferObjects = geometryMode == PLYModel.GEOMETRY_BUFFER_OBJECTS;
+		onSurfaceCreated();
+		this.filename = filename;
+		MeshLoadJob job = new MeshLoadJob(ctx, filename, loadMode, uintIndices,
+				compactVertices, vertexCacheOptimized, lodEnabled);
+		load = ModelLoader.get().submit(job.key, loadPriority, job,
+				new ModelLoader.Callback<MeshData[][]>() {
+					@Override
+					public void loaded(MeshData[][] result) {
+						onLoaded(result);
+					}
+
+					@Override
+					public void failed(Exception e) {
+						onFailed(e);
+					}
+				});
+		// a mesh that joined a load in flight shares its metrics
+		loadJob = (MeshLoadJob) load.getWork();
+		metrics = loadJob.metrics;
+		started = true;
+		if (listener != null) {
+			listeners.add(listener);
+			if (listener instanceof PLYModel.LoadProgressListener)
+				loadJob.addProgressMesh(this);
+			listener.started();
+		}
+	}
+
+	/**
+	 * Makes the GL objects of the mesh in the current context. Call from
+	 * GLSurfaceView.Renderer.onSurfaceCreated when the context was recreated;
+	 * buffer objects are uploaded again on the next draw. Calls after the
+	 * first in the same context do nothing, so every user of a shared mesh may
+	 * make it.
+	 */
+	public void onSurfaceCreated() {
+		int generation = GLRenderer.getContextGeneration();
+		if (surfaceGeneration == generation)
+			return;
+		surfaceGeneration = generation;
+		program = MeshShaders.getProgram(hasTexture, compactVertices);
+
+		GLRenderer.checkGLError("Mesh load shaders");
+
+		if (hasTexture) {
+			mTextureDataHandle = GLRenderer.loadTexture(context, texID);
+
+			GLRenderer.checkGLError("Mesh load texture");
+		}
+
+		uintIndices = GLRenderer.hasExtension("GL_OES_element_index_uint");
+	}
+
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/** Whether the load failed; the mesh is then never drawn. */
+	public boolean isFailed() {
+		return loadFailure != null;
+	}
+
+	/** Why the load failed, or null if it did not. */
+	public Exception getLoadFailure() {
+		return loadFailure;
+	}
+
+	/**
+	 * Draws every instance of the mesh with a program linked elsewhere. It
+	 * must use the attribute and uniform names of the built in shaders and is
+	 * not rebuilt with the context. Instanced draws keep using the built in
+	 * program. MeshInstance.setProgram overrides it for one instance.
+	 */
+	public void setProgram(int p) {
+		program = wrapProgram(p);
+	}
+
+	ShaderProgram wrapProgram(int p) {
+		return MeshShaders.wrap(p, hasTexture);
+	}
+
+	void draw(MeshInstance instance, float[] viewMatrix, float[] lightPos) {
+		float[] projectionMatrix = instance.getProjectionMatrix();
+		computeMatrices(viewMatrix, projectionMatrix, instance.getModelMatrix());
+		if (!isVisible(mvpMatrix))
+			return;
+		int level = selectLevel(instance, mvMatrix, 0, projectionMatrix);
+		drawWithMatrices(mvMatrix, 0, mvpMatrix, 0, lightPos,
+				instance.getLightStrength(), level, instance.getProgram());
+	}
+
+	/** Records a packet whose arg is the level of detail to draw. */
+	void enqueue(RenderQueue queue, MeshInstance instance,
+			float[] viewMatrix, RenderQueue.Submitter submitter) {
+		float[] projectionMatrix = instance.getProjectionMatrix();
+		computeMatrices(viewMatrix, projectionMatrix, instance.getModelMatrix());
+		if (!isVisible(mvpMatrix))
+			return;
+		int level = selectLevel(instance, mvMatrix, 0, projectionMatrix);
+		enqueueWithMatrices(queue, mvMatrix, 0, mvpMatrix, 0, submitter, level,
+				instance.getProgram());
+	}
+
+	/**
+	 * Records a packet with matrices that already include the position
+	 * transform, as getPositionMatrix gives it. A null p records it with the
+	 * program of the mesh.
+	 */
+	void enqueueWithMatrices(RenderQueue queue, float[] mv, int mvOffset,
+			float[] mvp, int mvpOffset, RenderQueue.Submitter submitter,
+			int level, ShaderProgram p) {
+		if (p == null)
+			p = program;
+		queue.add(RenderQueue.PASS_OPAQUE, p.getProgram(),
+				hasTexture ? mTextureDataHandle : 0,
+				geometry.getDepth(mv, mvOffset), mv, mvOffset, mvp,
+				mvpOffset, submitter, level);
+	}
+
+	/**
+	 * The matrix that takes stored positions to model space, or null if they
+	 * are stored in model space. Set once the mesh is loaded.
+	 */
+	float[] getPositionMatrix() {
+		return geometry == null ? null : geometry.getPositionMatrix();
+	}
+
+	/**
+	 * Finds the closest triangle that the ray from origin along direction
+	 * hits, both in world coordinates, with modelMatrix placing the mesh.
+	 * Returns false if there is none or the hierarchy is still being built.
+	 */
+	boolean pick(float[] modelMatrix, float[] origin, float[] direction,
+			TriangleBvh.Hit hit) {
+		TriangleBvh tree = getBvh();
+		if (tree == null)
+			return false;
+		float[] m = hit.inverse;
+		if (!Matrix.invertM(m, 0, modelMatrix, 0))
+			return false;
+		float[] ray = hit.ray;
+		VecMath.transformPoint(m, 0, origin, 0, ray, 0);
+		VecMath.transformVector(m, 0, direction, 0, ray, 3);
+		return tree.intersect(ray[0], ray[1], ray[2], ray[3], ray[4], ray[5],
+				Float.POSITIVE_INFINITY, hit);
+	}
+
+	/**
+	 * The hierarchy of the triangles of level 0, or null while it is being
+	 * built. Triangles are numbered across the parts of the level.
+	 */
+	public TriangleBvh getBvh() {
+		Future<TriangleBvh> future = bvh;
+		if (future == null || !future.isDone() || future.isCancelled())
+			return null;
+		try {
+			TriangleBvh tree = future.get();
+			if (!bvhLogged) {
+				bvhLogged = true;
+				Log.d("Mesh", filename + " " + tree);
+			}
+			return tree;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			if (!bvhLogged) {
+				bvhLogged = true;
+				e.printStackTrace();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Tests the bounds against the frustum of the model-view-projection
+	 * matrix mvp, which takes stored coordinates to clip space, and counts the
+	 * instance as drawn or culled.
+	 */
+	private boolean isVisible(float[] mvp) {
+		boolean visible = inFrustum(mvp, 0);
+		countInstance(visible);
+		return visible;
+	}
+
+	/** Tests the bounds against the frustum of mvp without counting. */
+	boolean inFrustum(float[] mvp, int offset) {
+		return geometry.inFrustum(mvp, offset);
+	}
+
+	static void countInstance(boolean drawn) {
+		if (drawn)
+			drawnCount++;
+		else
+			culledCount++;
+	}
+
+	/** Instances drawn since the last resetCounters, over all meshes. */
+	public static int getDrawnCount() {
+		return drawnCount;
+	}
+
+	/** Instances skipped as outside the frustum since the last resetCounters. */
+	public static int getCulledCount() {
+		return culledCount;
+	}
+
+	/** Called at the start of each frame by the renderer. */
+	public static void resetCounters() {
+		drawnCount = 0;
+		culledCount = 0;
+	}
+
+	/**
+	 * Picks the level of detail from how much of the screen the bounds cover,
+	 * starting from the level the instance was drawn with last.
+	 */
+	int selectLevel(MeshInstance instance, float[] mv, int mvOffset,
+			float[] projectionMatrix) {
+		return geometry.selectLevel(instance, mv, mvOffset, projectionMatrix);
+	}
+
+	public int getLevelCount() {
+		return geometry == null ? 0 : geometry.getLevelCount();
+	}
+
+	/** Triangles drawn at a level of detail. */
+	public int getTriangles(int level) {
+		return geometry.getTriangles(level);
+	}
+
+	/**
+	 * Draws the first count instances right away, each at its own level of
+	 * detail and as many per draw call as the batch of each part holds.
+	 * Instances outside the frustum are skipped. The instances must all draw
+	 * this mesh and share its projection.
+	 */
+	public void drawInstances(MeshInstance[] instances, int count,
+			float[] viewMatrix, float[] projectionMatrix, float[] lightPos) {
+		if (!loaded || count <= 0)
+			return;
+
+		long start = profiler.start();
+		if (instancer == null)
+			instancer = new InstanceDrawer(this, geometry, hasTexture,
+					compactVertices, bufferObjects);
+		instancer.draw(instances, count, viewMatrix, projectionMatrix,
+				lightPos);
+		addDrawTime(start);
+	}
+
+	private void addDrawTime(long start) {
+		if (start == 0L)
+			return;
+		int frame = profiler.getFrame();
+		if (frame != drawFrame) {
+			drawFrame = frame;
+			drawNanos = 0;
+		}
+		drawNanos += FrameProfiler.elapsed(start);
+	}
+
+	/**
+	 * CPU time spent drawing this mesh, over all its instances, in the last
+	 * frame it was drawn in while the profiler was enabled.
+	 */
+	public long getDrawNanos() {
+		return drawNanos;
+	}
+
+	private void computeMatrices(float[] viewMatrix, float[] projectionMatrix,
+			float[] modelMatrix) {
+		Matrix.multiplyMM(mvMatrix, 0, viewMatrix, 0,
+				getDrawModelMatrix(modelMatrix), 0);
+		Matrix.multiplyMM(mvpMatrix, 0, projectionMatrix, 0, mvMatrix, 0);
+	}
+
+	void useProgram(ShaderProgram p, float[] lightPos) {
+		p.use(gl);
+		if (GLRenderer.CHECK_GL_ERRORS)
+			GLRenderer.checkGLError("Mesh use program");
+
+		gl.glEnable(GLApi.GL_CULL_FACE);
+		gl.glEnable(GLApi.GL_DEPTH_TEST);
+
+		if (hasTexture) {
+			gl.glActiveTexture(GLApi.GL_TEXTURE0);
+
+			gl.glBindTexture(GLApi.GL_TEXTURE_2D, mTextureDataHandle);
+
+			GLES20.glUniform1i(p.uniform(MeshShaders.U_TEXTURE), 0);
+		}
+
+		GLES20.glUniform3f(p.uniform(MeshShaders.U_LIGHT_POS), lightPos[0],
+				lightPos[1], lightPos[2]);
+	}
+
+	/** Draws with p, or with the program of the mesh if p is null. */
+	void drawWithMatrices(float[] mv, int mvOffset, float[] mvp,
+			int mvpOffset, float[] lightPos, float lightStrength, int level,
+			ShaderProgram p) {
+		long start = profiler.start();
+		if (p == null)
+			p = program;
+		useProgram(p, lightPos);
+		GLES20.glUniform1f(p.uniform(MeshShaders.U_LIGHT_STRENGTH),
+				lightStrength);
+		GLES20.glUniformMatrix4fv(p.uniform(MeshShaders.U_MV_MATRIX), 1,
+				false, mv, mvOffset);
+		GLES20.glUniformMatrix4fv(p.uniform(MeshShaders.U_MVP_MATRIX), 1,
+				false, mvp, mvpOffset);
+
+		geometry.draw(p, level, p.attribute(MeshShaders.A_SURFACE),
+				hasTexture ? VertexLayout.TEXCOORD : VertexLayout.COLOR);
+
+		if (GLRenderer.CHECK_GL_ERRORS)
+			GLRenderer.checkGLError("Draw Mesh");
+		addDrawTime(start);
+	}
+
+	/** The model matrix with the decode of quantized positions folded in. */
+	float[] getDrawModelMatrix(float[] modelMatrix) {
+		float[] positionMatrix = geometry.getPositionMatrix();
+		if (positionMatrix == null)
+			return modelMatrix;
+		Matrix.multiplyMM(drawModelMatrix, 0, modelMatrix, 0, positionMatrix, 0);
+		return drawModelMatrix;
+	}
+
+	public float getWidth() {
+		if (loaded)
+			return maxVals[0] - minVals[0];
+		else
+			return 0;
+	}
+
+	public float getHeight() {
+		if (loaded)
+			return maxVals[1] - minVals[1];
+		else
+			return 0;
+	}
+
+	public float getDepth() {
+		if (loaded)
+			return maxVals[2] - minVals[2];
+		else
+			return 0;
+	}
+
+	public float getLargestDimen() {
+		return Math.max(getWidth(), Math.max(getHeight(), getDepth()));
+	}
+
+	/**
+	 * Writes the center of the bounding sphere in model coordinates to center
+	 * and returns its radius, 0 until the mesh is loaded.
+	 */
+	public float getBoundingSphere(float[] center) {
+		if (!loaded) {
+			center[0] = center[1] = center[2] = 0f;
+			return 0f;
+		}
+		return geometry.getParts(0)[0].bounds.getSphere(center);
+	}
+
+	public void getCenter(float[] vec4) {
+		if (vec4.length != 4)
+			throw new IllegalArgumentException("array must have lenght of 3");
+		if (loaded) {
+			vec4[0] = (maxVals[0] + minVals[0]) / 2f;
+			vec4[1] = (maxVals[1] + minVals[1]) / 2f;
+			vec4[2] = (maxVals[2] + minVals[2]) / 2f;
+			vec4[3] = 1f;
+		} else {
+			vec4[0] = 0f;
+			vec4[1] = 0f;
+			vec4[2] = 0f;
+			vec4[3] = 1f;
+		}
+	}
+
+	/** Takes the geometry of a finished load, on the GL thread. */
+	private void onLoaded(MeshData[][] result) {
+		long start = System.nanoTime();
+		geometry = new MeshLevels(result, bufferObjects, metrics);
+		metrics.addNanos(LoadMetrics.PHASE_UPLOAD, System.nanoTime() - start);
+		bvh = TriangleBvh.buildLater(result[0]);
+		Bounds b = result[0][0].bounds;
+		if (!b.isEmpty()) {
+			minVals = b.min;
+			maxVals = b.max;
+		}
+
+		PLYModel.LoadStatusListener[] l;
+		synchronized (this) {
+			loaded = true;
+			l = listeners.toArray(new PLYModel.LoadStatusListener[listeners
+					.size()]);
+		}
+		Log.d("Mesh", "loaded = " + String.valueOf(loaded) + " "
+				+ filename);
+		Log.d("Mesh", metrics.toString());
+
+		for (int i = 0; i < l.length; i++)
+			l[i].completed();
+	}
+
+	/** Takes the failure of a load, on the GL thread. */
+	private void onFailed(Exception e) {
+		PLYModel.LoadStatusListener[] l;
+		synchronized (this) {
+			loadFailure = e;
+			l = listeners.toArray(new PLYModel.LoadStatusListener[listeners
+					.size()]);
+		}
+		Log.e("Mesh", filename + " failed to load", e);
+		Log.d("Mesh", metrics.toString());
+
+		for (int i = 0; i < l.length; i++)
+			l[i].failed(e);
+	}
+
+	void dispatchProgress(float fraction) {
+		PLYModel.LoadStatusListener[] l;
+		synchronized (this) {
+			l = listeners.toArray(new PLYModel.LoadStatusListener[listeners
+					.size()]);
+		}
+		for (int i = 0; i < l.length; i++) {
+			if (l[i] instanceof PLYModel.LoadProgressListener)
+				((PLYModel.LoadProgressListener) l[i]).progress(fraction);
+		}
+	}
+
+	/**
+	 * Selects PLYLoader.MODE_STREAMING or MODE_PARALLEL for meshes created
+	 * after this call.
+	 */
+	public static void setLoadMode(int mode) {
+		loadMode = mode;
+	}
+
+	/**
+	 * Selects PLYModel.GEOMETRY_BUFFER_OBJECTS or GEOMETRY_CLIENT_ARRAYS for
+	 * meshes created after this call.
+	 */
+	public static void setGeometryMode(int mode) {
+		geometryMode = mode;
+	}
+
+	/**
+	 * Sets the ModelLoader priority of the loads of meshes created after this
+	 * call; a load that is joined takes the highest priority asked for.
+	 */
+	public static void setLoadPriority(int priority) {
+		loadPriority = priority;
+	}
+
+	/**
+	 * Selects VertexQuantizer.FORMAT_FLOAT or FORMAT_COMPACT for meshes created
+	 * after this call. The load log reports the error the compact format
+	 * introduces for each asset.
+	 */
+	public static void setVertexFormat(int format) {
+		vertexFormat = format;
+	}
+
+	/**
+	 * Enables or disables building levels of detail for meshes created after
+	 * this call. Each draw then picks a level from the size of the mesh on
+	 * screen.
+	 */
+	public static void setLodEnabled(boolean enabled) {
+		lodEnabled = enabled;
+	}
+
+	/**
+	 * Enables or disables reordering triangles and vertices for the vertex
+	 * caches, for meshes created after this call. The load log reports the
+	 * gain for each asset.
+	 */
+	public static void setVertexCacheOptimized(boolean optimized) {
+		vertexCacheOptimized = optimized;
+	}
+
+	/**
+	 * Enables or disables the on-disk cache of parsed meshes for meshes loaded
+	 * after this call.
+	 */
+	public static void setDiskCacheEnabled(boolean enabled) {
+		MeshLoadJob.setDiskCacheEnabled(enabled);
+	}
+
+	/**
+	 * Deletes the buffer objects and texture of the mesh and drops its
+	 * vertices. It can not be drawn afterwards, by any of its instances. Call
+	 * from the GL thread; meshes from a MeshCache are released by the cache.
+	 */
+	public void release() {
+		int generation = GLRenderer.getContextGeneration();
+		if (geometry != null)
+			geometry.release(generation);
+		if (instancer != null)
+			instancer.release(generation);
+		if (hasTexture && surfaceGeneration == generation)
+			gl.glDeleteTextures(1, new int[] { mTextureDataHandle }, 0);
+		surfaceGeneration = -1;
+		geometry = null;
+		instancer = null;
+		loaded = false;
+		load.cancel(true);
+		if (bvh != null)
+			bvh.cancel(false);
+		bvh = null;
+	}
+
+	public long getDirectBytes() {
+		long bytes = 0;
+		if (geometry != null)
+			bytes += geometry.getDirectBytes();
+		if (instancer != null)
+			bytes += instancer.getDirectBytes();
+		return bytes;
+	}
+
+	/** Bytes of buffer objects uploaded in the current context. */
+	public long getBufferBytes() {
+		int generation = GLRenderer.getContextGeneration();
+		long bytes = 0;
+		if (geometry != null)
+			bytes += geometry.getBufferBytes(generation);
+		if (instancer != null)
+			bytes += instancer.getBufferBytes(generation);
+		return bytes;
+	}
+
+	/**
+	 * Adds a listener that is told about the load of this mesh. A listener
+	 * added after the load started is told so right away, and one added after
+	 * it completed or failed gets both calls right away.
+	 */
+	public void addLoadStatusListener(PLYModel.LoadStatusListener listener) {
+		boolean wasStarted, wasLoaded;
+		Exception failure;
+		synchronized (this) {
+			listeners.add(listener);
+			wasStarted = started;
+			wasLoaded = loaded;
+			failure = loadFailure;
+		}
+		if (listener instanceof PLYModel.LoadProgressListener)
+			loadJob.addProgressMesh(this);
+		if (wasStarted)
+			listener.started();
+		if (wasLoaded)
+			listener.completed();
+		if (failure != null)
+			listener.failed(failure);
+	}
+
+	/**
+	 * Timings and sizes of the load of this mesh, filled in while it loads.
+	 * The upload time grows as levels are first drawn.
+	 */
+	public LoadMetrics getLoadMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Done once the mesh is ready to draw, or when its load failed or was
+	 * cancelled by release.
+	 */
+	public Future<?> getLoadFuture() {
+		return load;
+	}
+
+	public synchronized void removeLoadStatusListener(
+			PLYModel.LoadStatusListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * What a mesh made now would look like besides its file and texture, for
+	 * telling cached meshes apart.
+	 */
+	static String settingsKey() {
+		return vertexFormat + "," + geometryMode + ","
+				+ vertexCacheOptimized + "," + lodEnabled;
+	}
+}
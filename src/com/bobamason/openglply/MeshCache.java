@@ -0,0 +1,188 @@
+package com.bobamason.openglply;
+
+import android.content.*;
+
+import java.util.*;
+
+/**
+ * Hands out one shared Mesh per asset, texture and mesh settings, so every
+ * model of the same asset is parsed and uploaded once. Asking for an asset
+ * that is still loading joins that load. Meshes are reference counted;
+ * meshes nobody holds stay cached, so switching back to a scene is nearly
+ * free, until the cached meshes exceed the byte budgets. Then the least
+ * recently used unheld ones are released, which deletes their buffer objects
+ * right away.
+ *
+ * Meshes are made and released with GL calls, so only use from the GL
+ * thread.
+ */
+public class MeshCache {
+	private static final MeshCache instance = new MeshCache();
+
+	// iterates from the least recently used entry
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	private final HashMap<Mesh, Entry> byMesh = new HashMap<Mesh, Entry>();
+
+	private long cpuBudget = 16 * 1024 * 1024;
+
+	private long gpuBudget = 16 * 1024 * 1024;
+
+	private int hits;
+
+	private int misses;
+
+	private int evictions;
+
+	private MeshCache() {
+	}
+
+	public static MeshCache get() {
+		return instance;
+	}
+
+	/**
+	 * Returns the mesh for the asset and holds a reference to it until
+	 * release(mesh) is called. The listener, which may be null, is told about
+	 * the load even if the mesh was already loading or loaded.
+	 */
+	public Mesh acquire(Context ctx, String filename, int texID,
+			PLYModel.LoadStatusListener listener) {
+		String key = filename + '\0' + texID + '\0' + Mesh.settingsKey();
+		Entry entry = entries.get(key);
+		if (entry != null && entry.refs == 0 && entry.mesh.isFailed()) {
+			// nobody holds the failed load any more, so the asset is tried
+			// again
+			entries.remove(key);
+			byMesh.remove(entry.mesh);
+			entry = null;
+		}
+		if (entry != null) {
+			hits++;
+			entry.refs++;
+			// a mesh cached across a lost context needs its program and
+			// texture again
+			entry.mesh.onSurfaceCreated();
+			if (listener != null)
+				entry.mesh.addLoadStatusListener(listener);
+			return entry.mesh;
+		}
+
+		misses++;
+		// the cache outlives activities, so it must not hold on to one
+		Mesh mesh = new Mesh(ctx.getApplicationContext(), filename, texID,
+				listener);
+		entry = new Entry(mesh);
+		entries.put(key, entry);
+		byMesh.put(mesh, entry);
+		trim();
+		return mesh;
+	}
+
+	/**
+	 * Drops a reference taken by acquire. The mesh stays cached until the
+	 * budgets need its bytes.
+	 */
+	public void release(Mesh mesh) {
+		Entry entry = byMesh.get(mesh);
+		if (entry == null || entry.refs == 0)
+			throw new IllegalStateException("mesh is not held");
+		entry.refs--;
+		trim();
+	}
+
+	/**
+	 * Sets the bytes of vertex and index data on the java side, and of buffer
+	 * objects on the GL side, that cached meshes may keep before unheld ones
+	 * are released. Meshes in use are never released, so the totals can be
+	 * over the budgets while they are held.
+	 */
+	public void setBudget(long cpuBytes, long gpuBytes) {
+		cpuBudget = cpuBytes;
+		gpuBudget = gpuBytes;
+		trim();
+	}
+
+	/** Releases every mesh nobody holds. */
+	public void trimAll() {
+		evict(0L, 0L);
+	}
+
+	private void trim() {
+		evict(cpuBudget, gpuBudget);
+	}
+
+	private void evict(long cpuLimit, long gpuLimit) {
+		long cpu = 0;
+		long gpu = 0;
+		for (Entry entry : entries.values()) {
+			cpu += entry.mesh.getDirectBytes();
+			gpu += entry.mesh.getBufferBytes();
+		}
+		Iterator<Entry> it = entries.values().iterator();
+		while ((cpu > cpuLimit || gpu > gpuLimit) && it.hasNext()) {
+			Entry entry = it.next();
+			// a mesh still loading would be finished behind our back
+			if (entry.refs > 0
+					|| (!entry.mesh.isLoaded() && !entry.mesh.isFailed()))
+				continue;
+			cpu -= entry.mesh.getDirectBytes();
+			gpu -= entry.mesh.getBufferBytes();
+			entry.mesh.release();
+			it.remove();
+			byMesh.remove(entry.mesh);
+			evictions++;
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/** acquire calls that found the mesh cached. */
+	public int getHits() {
+		return hits;
+	}
+
+	/** acquire calls that had to load the mesh. */
+	public int getMisses() {
+		return misses;
+	}
+
+	/** Meshes released to stay inside the budgets. */
+	public int getEvictions() {
+		return evictions;
+	}
+
+	public long getDirectBytes() {
+		long bytes = 0;
+		for (Entry entry : entries.values())
+			bytes += entry.mesh.getDirectBytes();
+		return bytes;
+	}
+
+	public long getBufferBytes() {
+		long bytes = 0;
+		for (Entry entry : entries.values())
+			bytes += entry.mesh.getBufferBytes();
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return "meshes " + size() + ", hits " + hits + ", misses " + misses
+				+ ", evictions " + evictions + ", direct bytes "
+				+ getDirectBytes() + ", buffer bytes " + getBufferBytes();
+	}
+
+	private static class Entry {
+		final Mesh mesh;
+
+		int refs = 1;
+
+		Entry(Mesh mesh) {
+			this.mesh = mesh;
+		}
+	}
+}
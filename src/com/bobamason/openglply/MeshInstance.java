@@ -0,0 +1,187 @@
+package com.bobamason.openglply;
+
+import android.opengl.*;
+
+/**
+ * One placement of a shared Mesh: a model matrix, a light strength and
+ * optionally a program of its own. The mesh keeps the geometry, program and
+ * texture and the scratch matrices used while drawing, so an instance stays a
+ * few dozen floats however big the mesh is.
+ */
+public class MeshInstance {
+	private final Mesh mesh;
+
+	private final float[] modelMatrix = new float[16];
+
+	private float[] projectionMatrix = new float[16];
+
+	private float lightStrength = 1f;
+
+	private Vector3 currentTrans = new Vector3();
+
+	/** Light position taken when the instance was last enqueued. */
+	private final float[] lightPos = new float[3];
+
+	private final float[] center = new float[4];
+
+	/** Level of detail of the last draw, where the next one starts from. */
+	private int lodLevel;
+
+	/** Program that replaces the one of the mesh, or null. */
+	private ShaderProgram program;
+
+	public MeshInstance(Mesh mesh) {
+		this.mesh = mesh;
+		setIdentity();
+	}
+
+	public Mesh getMesh() {
+		return mesh;
+	}
+
+	public void setProjectionMatrix(float[] pMatrix) {
+		projectionMatrix = pMatrix;
+	}
+
+	/**
+	 * Draws this instance with a program linked elsewhere, leaving other
+	 * instances of the mesh alone; 0 goes back to the program of the mesh.
+	 * It must use the attribute and uniform names of the built in shaders
+	 * and is not rebuilt with the context.
+	 */
+	public void setProgram(int p) {
+		program = p == 0 ? null : mesh.wrapProgram(p);
+	}
+
+	ShaderProgram getProgram() {
+		return program;
+	}
+
+	public void draw(float[] viewMatrix, float[] lightPos) {
+		if (!mesh.isLoaded())
+			return;
+
+		mesh.draw(this, viewMatrix, lightPos);
+	}
+
+	/**
+	 * Records the draw into queue instead of drawing now. The matrices and
+	 * light position are taken at this point.
+	 */
+	public void enqueue(RenderQueue queue, float[] viewMatrix, float[] lightPos) {
+		if (!mesh.isLoaded())
+			return;
+
+		this.lightPos[0] = lightPos[0];
+		this.lightPos[1] = lightPos[1];
+		this.lightPos[2] = lightPos[2];
+		mesh.enqueue(queue, this, viewMatrix, submitter);
+	}
+
+	private final RenderQueue.Submitter submitter = new RenderQueue.Submitter() {
+		@Override
+		public void submitPacket(float[] matrices, int offset, int arg) {
+			if (mesh.isLoaded())
+				mesh.drawWithMatrices(matrices, offset, matrices, offset + 16,
+						lightPos, lightStrength, arg, program);
+		}
+	};
+
+	/**
+	 * Finds the closest triangle of the mesh that the ray from origin along
+	 * direction hits, both in world coordinates and taken through the current
+	 * model matrix. Call from the thread that moves the instance. hit.t is in
+	 * units of direction.
+	 */
+	public boolean pick(float[] origin, float[] direction, TriangleBvh.Hit hit) {
+		return mesh.isLoaded() && mesh.pick(modelMatrix, origin, direction, hit);
+	}
+
+	/**
+	 * Draws with matrices that a SceneGraph keeps, which include the
+	 * position transform of the mesh.
+	 */
+	void drawWithMatrices(float[] mv, int mvOffset, float[] mvp,
+			int mvpOffset, float[] lightPos, int level) {
+		mesh.drawWithMatrices(mv, mvOffset, mvp, mvpOffset, lightPos,
+				lightStrength, level, program);
+	}
+
+	void enqueueWithMatrices(RenderQueue queue, float[] mv, int mvOffset,
+			float[] mvp, int mvpOffset, float[] lightPos, int level) {
+		this.lightPos[0] = lightPos[0];
+		this.lightPos[1] = lightPos[1];
+		this.lightPos[2] = lightPos[2];
+		mesh.enqueueWithMatrices(queue, mv, mvOffset, mvp, mvpOffset,
+				submitter, level, program);
+	}
+
+	float[] getModelMatrix() {
+		return modelMatrix;
+	}
+
+	float[] getProjectionMatrix() {
+		return projectionMatrix;
+	}
+
+	int getLodLevel() {
+		return lodLevel;
+	}
+
+	void setLodLevel(int level) {
+		lodLevel = level;
+	}
+
+	public float getLightStrength() {
+		return lightStrength;
+	}
+
+	public void setLightStrength(float strength) {
+		lightStrength = strength;
+	}
+
+	public void setIdentity() {
+		currentTrans.set(0f, 0f, 0f);
+		Matrix.setIdentityM(modelMatrix, 0);
+	}
+
+	public void translate(float x, float y, float z) {
+		currentTrans.add(x, y, z);
+		Matrix.translateM(modelMatrix, 0, x, y, z);
+	}
+
+	public void translate(Vector3 v) {
+		currentTrans.add(v);
+		Matrix.translateM(modelMatrix, 0, v.x, v.y, v.z);
+	}
+
+	public void rotateEuler(float z, float x, float y) {
+		Matrix.rotateM(modelMatrix, 0, z, 0f, 0f, 1f);
+		Matrix.rotateM(modelMatrix, 0, x, 1f, 0f, 0f);
+		Matrix.rotateM(modelMatrix, 0, y, 0f, 1f, 0f);
+	}
+
+	public void rotateAxis(float a, float x, float y, float z) {
+		Matrix.rotateM(modelMatrix, 0, a, x, y, z);
+	}
+
+	public void scale(float s) {
+		Matrix.scaleM(modelMatrix, 0, s, s, s);
+	}
+
+	public void scale(float sx, float sy, float sz) {
+		Matrix.scaleM(modelMatrix, 0, sx, sy, sz);
+	}
+
+	public Vector3 getCenterVec() {
+		return getCenterVec(new Vector3());
+	}
+
+	/** Writes the center to out and returns it. */
+	public Vector3 getCenterVec(Vector3 out) {
+		if (!mesh.isLoaded())
+			return out.set(0f, 0f, 0f);
+		mesh.getCenter(center);
+		return out.set(center[0], center[1], center[2]).add(currentTrans);
+	}
+}
@@ -0,0 +1,246 @@
+package com.bobamason.openglply;
+
+/**
+ * The levels of detail of a loaded Mesh, each split into parts, with their
+ * buffer objects and the bounds in the coordinates the vertices are stored
+ * in. Picks the level an instance is drawn at and draws the parts of a
+ * level from buffer objects or client arrays. Only use from the GL thread.
+ */
+class MeshLevels {
+	/** The parts of each level of detail, level 0 being the full mesh. */
+	private final MeshData[][] levels;
+
+	private final boolean bufferObjects;
+
+	private final LoadMetrics metrics;
+
+	private GpuMesh[][] gpuLevels;
+
+	private GLApi gl = GLRenderer.getGL();
+
+	private FrameProfiler profiler = GLRenderer.getProfiler();
+
+	private float[] positionMatrix;
+
+	/** Center of the bounds in the coordinates the vertices are stored in. */
+	private float[] drawCenter = new float[3];
+
+	/** Half the size of the bounds along each axis, in the same units. */
+	private float[] drawHalfExtent = new float[3];
+
+	/** Bounding sphere in the same units. */
+	private float[] drawSphereCenter = new float[3];
+
+	private float drawRadius;
+
+	private float[] planes = new float[Frustum.PLANE_FLOATS];
+
+	MeshLevels(MeshData[][] levels, boolean bufferObjects, LoadMetrics metrics) {
+		this.levels = levels;
+		this.bufferObjects = bufferObjects;
+		this.metrics = metrics;
+		MeshData[] parts = levels[0];
+		if (bufferObjects) {
+			gpuLevels = new GpuMesh[levels.length][];
+			for (int l = 0; l < levels.length; l++)
+				gpuLevels[l] = GpuMesh.of(levels[l]);
+		}
+		if (parts[0].hasPositionTransform()) {
+			positionMatrix = new float[16];
+			parts[0].getPositionMatrix(positionMatrix, 0);
+		}
+		// bounds are in model coordinates, the draw tests use the stored
+		// ones
+		Bounds b = parts[0].bounds;
+		float scale = parts[0].positionScale;
+		float[] offset = parts[0].positionOffset;
+		b.getCenter(drawCenter);
+		drawRadius = b.getSphere(drawSphereCenter) / scale;
+		for (int i = 0; i < 3; i++) {
+			drawCenter[i] = (drawCenter[i] - offset[i]) / scale;
+			drawSphereCenter[i] = (drawSphereCenter[i] - offset[i]) / scale;
+		}
+		drawHalfExtent[0] = b.getWidth() / 2f / scale;
+		drawHalfExtent[1] = b.getHeight() / 2f / scale;
+		drawHalfExtent[2] = b.getDepth() / 2f / scale;
+	}
+
+	int getLevelCount() {
+		return levels.length;
+	}
+
+	MeshData[] getParts(int level) {
+		return levels[level];
+	}
+
+	/** Triangles drawn at a level of detail. */
+	int getTriangles(int level) {
+		int triangles = 0;
+		for (int i = 0; i < levels[level].length; i++)
+			triangles += levels[level][i].indexCount / 3;
+		return triangles;
+	}
+
+	/**
+	 * The matrix that takes stored positions to model space, or null if they
+	 * are stored in model space.
+	 */
+	float[] getPositionMatrix() {
+		return positionMatrix;
+	}
+
+	/** Tests the bounds against the frustum of mvp. */
+	boolean inFrustum(float[] mvp, int offset) {
+		Frustum.extractPlanes(mvp, offset, planes);
+		return Frustum.intersectsSphere(planes, drawSphereCenter, drawRadius)
+				&& Frustum.intersectsBox(planes, drawCenter, drawHalfExtent);
+	}
+
+	/** Eye space depth of the center of the bounds, for sorting draws. */
+	float getDepth(float[] mv, int mvOffset) {
+		return -(mv[mvOffset + 2] * drawCenter[0] + mv[mvOffset + 6]
+				* drawCenter[1] + mv[mvOffset + 10] * drawCenter[2]
+				+ mv[mvOffset + 14]);
+	}
+
+	/**
+	 * Picks the level of detail from how much of the screen the bounds cover,
+	 * starting from the level the instance was drawn with last.
+	 */
+	int selectLevel(MeshInstance instance, float[] mv, int mvOffset,
+			float[] projectionMatrix) {
+		if (levels.length == 1)
+			return 0;
+		float size = LodChain.screenSize(mv, mvOffset, projectionMatrix,
+				drawSphereCenter, drawRadius);
+		int level = LodChain.select(size, instance.getLodLevel(),
+				levels.length);
+		instance.setLodLevel(level);
+		return level;
+	}
+
+	/** Draws the parts of a level with the program in use. */
+	void draw(ShaderProgram program, int level, int surfaceHandle,
+			int surfaceSemantic) {
+		int generation = GLRenderer.getContextGeneration();
+		int positionHandle = program.attribute(MeshShaders.A_POSITION);
+		int normalHandle = program.attribute(MeshShaders.A_NORMAL);
+		if (!bufferObjects)
+			GpuMesh.unbind(gl);
+		MeshData[] parts = levels[level];
+		for (int i = 0; i < parts.length; i++) {
+			MeshData part = parts[i];
+			if (bufferObjects) {
+				GpuMesh mesh = gpuLevels[level][i];
+				upload(mesh, generation);
+				mesh.bind(gl);
+				bindAttribute(mesh, positionHandle, VertexLayout.POSITION);
+				bindAttribute(mesh, normalHandle, VertexLayout.NORMAL);
+				bindAttribute(mesh, surfaceHandle, surfaceSemantic);
+				mesh.draw(gl);
+			} else {
+				bindAttribute(part, positionHandle, VertexLayout.POSITION);
+				bindAttribute(part, normalHandle, VertexLayout.NORMAL);
+				bindAttribute(part, surfaceHandle, surfaceSemantic);
+				gl.glDrawElements(GLApi.GL_TRIANGLES, part.indexCount,
+						part.indexType, part.indices);
+			}
+			profiler.countDraw(part.indexCount / 3);
+		}
+		disableAttributes(positionHandle, normalHandle, surfaceHandle);
+	}
+
+	/** Uploads mesh if it is not yet, timing it into the load metrics. */
+	void upload(GpuMesh mesh, int generation) {
+		if (mesh.isUploaded(generation))
+			return;
+		long start = System.nanoTime();
+		mesh.upload(gl, generation, GLApi.GL_STATIC_DRAW);
+		metrics.addNanos(LoadMetrics.PHASE_UPLOAD, System.nanoTime() - start);
+	}
+
+	void disableAttributes(int positionHandle, int normalHandle,
+			int surfaceHandle) {
+		// the shader compiler drops attributes it does not need
+		if (positionHandle >= 0)
+			gl.glDisableVertexAttribArray(positionHandle);
+		if (normalHandle >= 0)
+			gl.glDisableVertexAttribArray(normalHandle);
+		if (surfaceHandle >= 0)
+			gl.glDisableVertexAttribArray(surfaceHandle);
+	}
+
+	void bindAttribute(GpuMesh mesh, int handle, int semantic) {
+		if (handle < 0)
+			return;
+		VertexLayout.Attribute a = mesh.data.layout.get(semantic);
+		if (a == null)
+			bindConstant(handle, semantic);
+		else
+			mesh.bindAttribute(gl, handle, a);
+	}
+
+	void bindAttribute(MeshData part, int handle, int semantic) {
+		if (handle < 0)
+			return;
+		VertexLayout.Attribute a = part.layout.get(semantic);
+		if (a == null) {
+			bindConstant(handle, semantic);
+			return;
+		}
+		part.vertices.position(a.offset);
+		gl.glVertexAttribPointer(handle, a.size, a.type, a.normalized,
+				part.layout.getStride(), part.vertices);
+		gl.glEnableVertexAttribArray(handle);
+	}
+
+	private void bindConstant(int handle, int semantic) {
+		// the file did not have this property, feed a constant instead
+		gl.glDisableVertexAttribArray(handle);
+		if (semantic == VertexLayout.NORMAL)
+			gl.glVertexAttrib4f(handle, 0f, 0f, 1f, 0f);
+		else
+			gl.glVertexAttrib4f(handle, 1f, 1f, 1f, 1f);
+	}
+
+	/**
+	 * Deletes the buffer objects if they were made in this context
+	 * generation.
+	 */
+	void release(int generation) {
+		release(gl, gpuLevels, generation);
+		gpuLevels = null;
+	}
+
+	static void release(GLApi gl, GpuMesh[][] meshes, int generation) {
+		for (int l = 0; meshes != null && l < meshes.length; l++) {
+			for (int i = 0; meshes[l] != null && i < meshes[l].length; i++)
+				meshes[l][i].release(gl, generation);
+		}
+	}
+
+	long getDirectBytes() {
+		long bytes = 0;
+		for (int l = 0; l < levels.length; l++) {
+			for (int i = 0; i < levels[l].length; i++)
+				bytes += levels[l][i].getDirectBytes();
+		}
+		return bytes;
+	}
+
+	/** Bytes of buffer objects uploaded in the context generation. */
+	long getBufferBytes(int generation) {
+		return getBufferBytes(gpuLevels, generation);
+	}
+
+	static long getBufferBytes(GpuMesh[][] meshes, int generation) {
+		long bytes = 0;
+		for (int l = 0; meshes != null && l < meshes.length; l++) {
+			for (int i = 0; meshes[l] != null && i < meshes[l].length; i++) {
+				if (meshes[l][i].isUploaded(generation))
+					bytes += meshes[l][i].getBufferBytes();
+			}
+		}
+		return bytes;
+	}
+}
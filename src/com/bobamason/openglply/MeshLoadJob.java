@@ -0,0 +1,264 @@
+package com.bobamason.openglply;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import android.content.*;
+import android.util.*;
+
+/**
+ * Parses and prepares the levels of a Mesh on a ModelLoader thread, or maps
+ * them from the disk cache. Meshes whose geometry would come out the same
+ * share one job, with its metrics and progress.
+ */
+class MeshLoadJob implements Callable<MeshData[][]>,
+		LoadMetrics.ProgressListener {
+	private static boolean diskCacheEnabled = true;
+
+	private static MeshDiskCache diskCache;
+
+	final String key;
+
+	final LoadMetrics metrics;
+
+	private final Context context;
+
+	private final String filename;
+
+	private final int loadMode;
+
+	private final boolean uintIndices;
+
+	private final boolean compactVertices;
+
+	private final boolean optimizeVertexCache;
+
+	private final boolean buildLods;
+
+	/** Meshes with listeners that want progress, guarded by itself. */
+	private final ArrayList<Mesh> progressMeshes = new ArrayList<Mesh>();
+
+	MeshLoadJob(Context context, String filename, int loadMode,
+			boolean uintIndices, boolean compactVertices,
+			boolean optimizeVertexCache, boolean buildLods) {
+		this.context = context;
+		this.filename = filename;
+		this.loadMode = loadMode;
+		this.uintIndices = uintIndices;
+		this.compactVertices = compactVertices;
+		this.optimizeVertexCache = optimizeVertexCache;
+		this.buildLods = buildLods;
+		key = filename + '\0' + flags();
+		metrics = new LoadMetrics(filename);
+	}
+
+	/** The settings that change the geometry, as the disk cache has them. */
+	private int flags() {
+		return (uintIndices ? 1 : 0) | (compactVertices ? 2 : 0)
+				| (optimizeVertexCache ? 4 : 0) | (buildLods ? 8 : 0);
+	}
+
+	void addProgressMesh(Mesh mesh) {
+		synchronized (progressMeshes) {
+			if (!progressMeshes.contains(mesh))
+				progressMeshes.add(mesh);
+		}
+		metrics.setProgressListener(this);
+	}
+
+	@Override
+	public void progress(LoadMetrics metrics, final float fraction) {
+		final Mesh[] meshes;
+		synchronized (progressMeshes) {
+			meshes = progressMeshes
+					.toArray(new Mesh[progressMeshes.size()]);
+		}
+		ModelLoader.get().runOnGLThread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < meshes.length; i++)
+					meshes[i].dispatchProgress(fraction);
+			}
+		});
+	}
+
+	@Override
+	public MeshData[][] call() throws IOException {
+		LoadMetricsRegistry.started(metrics);
+		boolean failed = true;
+		try {
+			MeshData[][] levels = loadModel();
+			failed = false;
+			return levels;
+		} catch (IOException e) {
+			metrics.setFailure(e);
+			throw e;
+		} catch (RuntimeException e) {
+			metrics.setFailure(e);
+			throw e;
+		} finally {
+			LoadMetricsRegistry.finished(metrics, failed);
+		}
+	}
+
+	private MeshData[][] loadModel() throws IOException {
+		InputStream stream = null;
+		MeshData[][] levels;
+
+		try {
+			stream = new BufferedInputStream(context.getAssets().open(
+					filename));
+			// an asset stream reports the full length of the asset
+			metrics.setTotalBytes(stream.available());
+			MeshDiskCache cache = getDiskCache(context);
+			MeshDiskCache.Key key = null;
+			if (cache != null) {
+				key = new MeshDiskCache.Key(filename, stream.available(),
+						getPackageStamp(context), flags());
+				levels = loadLevels(cache, key);
+				if (levels != null) {
+					Log.d("Mesh", filename + " mapped from mesh cache, "
+							+ levels.length + " levels");
+					metrics.setFromCache(true);
+					metrics.setCounts(MeshSplitter.countVertices(levels[0]),
+							countTriangles(levels[0]));
+					metrics.setBufferBytes(getDirectBytes(levels));
+					metrics.setProgress(1f);
+					return levels;
+				}
+			}
+
+			MeshData mesh = new PLYLoader(loadMode).load(stream, metrics);
+			Log.d("Mesh", "vertex count from file: " + mesh.vertexCount);
+			Log.d("Mesh", "index count from file: " + mesh.indexCount);
+
+			long start = System.nanoTime();
+			MeshData[] lods = buildLods ? LodChain.getDefault().build(mesh)
+					: new MeshData[] { mesh };
+			levels = new MeshData[lods.length][];
+			long lodBytes = 0;
+			for (int l = 0; l < lods.length; l++)
+				lodBytes += lods[l].getDirectBytes();
+			metrics.setBufferBytes(lodBytes);
+			for (int l = 0; l < lods.length; l++) {
+				MeshData level = lods[l];
+				String name = filename + (l > 0 ? " level " + l : "");
+				if (l > 0)
+					Log.d("Mesh", name + " " + level.indexCount / 3
+							+ " triangles");
+
+				if (optimizeVertexCache) {
+					VertexCacheOptimizer.Report report = new VertexCacheOptimizer.Report();
+					level = VertexCacheOptimizer.optimize(level, report);
+					Log.d("Mesh", name + " " + report);
+				}
+
+				if (compactVertices) {
+					VertexQuantizer.Report report = new VertexQuantizer.Report();
+					level = VertexQuantizer.quantize(level, report);
+					Log.d("Mesh", name + " " + report);
+				}
+
+				MeshData[] parts = MeshSplitter.prepare(level, uintIndices);
+				if (parts.length > 1)
+					Log.d("Mesh", name + " split into " + parts.length
+							+ " submeshes, "
+							+ MeshSplitter.countVertices(parts) + " vertices");
+				levels[l] = parts;
+				// the unprocessed level is dropped once its parts are made
+				lodBytes += getDirectBytes(new MeshData[][] { parts })
+						- lods[l].getDirectBytes();
+				metrics.setBufferBytes(lodBytes);
+				metrics.setProgress(LoadMetrics.READ_SHARE
+						+ (1f - LoadMetrics.READ_SHARE) * (l + 1)
+						/ lods.length * 0.9f);
+			}
+
+			if (cache != null) {
+				try {
+					for (int l = 0; l < levels.length; l++)
+						cache.store(levelKey(key, l), levels[l]);
+				} catch (IOException e) {
+					// the model is loaded, it is just parsed again next time
+					e.printStackTrace();
+				}
+			}
+			metrics.addNanos(LoadMetrics.PHASE_POST_PROCESS,
+					System.nanoTime() - start);
+			metrics.setProgress(1f);
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		return levels;
+	}
+
+	private static long getDirectBytes(MeshData[][] parts) {
+		long bytes = 0;
+		for (int l = 0; l < parts.length; l++) {
+			for (int i = 0; i < parts[l].length; i++)
+				bytes += parts[l][i].getDirectBytes();
+		}
+		return bytes;
+	}
+
+	private static int countTriangles(MeshData[] parts) {
+		int triangles = 0;
+		for (int i = 0; i < parts.length; i++)
+			triangles += parts[i].indexCount / 3;
+		return triangles;
+	}
+
+	/**
+	 * Levels after the first are cached in files of their own, found by
+	 * trying one level after the other.
+	 */
+	private static MeshData[][] loadLevels(MeshDiskCache cache,
+			MeshDiskCache.Key key) {
+		ArrayList<MeshData[]> found = new ArrayList<MeshData[]>();
+		MeshData[] parts;
+		while ((parts = cache.load(levelKey(key, found.size()))) != null)
+			found.add(parts);
+		if (found.isEmpty())
+			return null;
+		return found.toArray(new MeshData[found.size()][]);
+	}
+
+	private static MeshDiskCache.Key levelKey(MeshDiskCache.Key key, int level) {
+		if (level == 0)
+			return key;
+		return new MeshDiskCache.Key(key.name + "#lod" + level,
+				key.sourceSize, key.sourceStamp, key.flags);
+	}
+
+	private static synchronized MeshDiskCache getDiskCache(Context context) {
+		if (!diskCacheEnabled)
+			return null;
+		if (diskCache == null)
+			diskCache = new MeshDiskCache(new File(context.getCacheDir(),
+					"meshes"));
+		return diskCache;
+	}
+
+	/**
+	 * Assets can only change when the apk does, so the apk's modification
+	 * time tells whether a cached mesh may be stale.
+	 */
+	private static long getPackageStamp(Context context) {
+		return new File(context.getApplicationInfo().sourceDir).lastModified();
+	}
+
+	/**
+	 * Enables or disables the on-disk cache of parsed meshes for loads that
+	 * start after this call.
+	 */
+	static synchronized void setDiskCacheEnabled(boolean enabled) {
+		diskCacheEnabled = enabled;
+	}
+}
@@ -0,0 +1,228 @@
+package com.bobamason.openglply;
+
+/**
+ * The built in programs meshes draw with: vertex colors or a texture, lit by
+ * one point light, with normals either plain or octahedral encoded, and an
+ * instanced variant of each. Programs come from the ShaderRegistry, so they
+ * are shared by every mesh that needs the same one and rebuilt with the
+ * context.
+ */
+final class MeshShaders {
+	// compact vertices store normals octahedral encoded in two components
+	private static final String normalDecode = "#ifdef OCT_NORMALS             \n"
+			+ "attribute vec2 a_Normal;       \n"
+			+ "vec3 decodeNormal()            \n"
+			+ "{                              \n"
+			+ "   vec3 n = vec3(a_Normal, 1.0 - abs(a_Normal.x) - abs(a_Normal.y));\n"
+			+ "   if (n.z < 0.0) {            \n"
+			+ "      vec2 s = vec2(n.x >= 0.0 ? 1.0 : -1.0, n.y >= 0.0 ? 1.0 : -1.0);\n"
+			+ "      n.xy = (1.0 - abs(n.yx)) * s;\n"
+			+ "   }                           \n"
+			+ "   return n;                   \n"
+			+ "}                              \n"
+			+ "#else                          \n"
+			+ "attribute vec3 a_Normal;       \n"
+			+ "vec3 decodeNormal()            \n"
+			+ "{                              \n"
+			+ "   return a_Normal;            \n"
+			+ "}                              \n"
+			+ "#endif                         \n";
+
+	// instanced draws pick rows of the model-view matrix and the light
+	// strength of their instance out of u_Instances, 4 vectors per instance
+	private static final String vertexTransform = "#ifdef INSTANCED               \n"
+			+ "uniform mat4 u_PMatrix;        \n"
+			+ "uniform vec4 u_Instances[MAX_INSTANCES * 4];\n"
+			+ "attribute float a_Instance;    \n"
+			+ "varying float v_LightStrength; \n"
+			+ "vec3 toEye(vec4 v)             \n"
+			+ "{                              \n"
+			+ "   int i = int(a_Instance) * 4;\n"
+			+ "   return vec3(dot(u_Instances[i], v), dot(u_Instances[i + 1], v), dot(u_Instances[i + 2], v));\n"
+			+ "}                              \n"
+			+ "vec4 toClip(vec4 p)            \n"
+			+ "{                              \n"
+			+ "   v_LightStrength = u_Instances[int(a_Instance) * 4 + 3].x;\n"
+			+ "   return u_PMatrix * vec4(toEye(p), 1.0);\n"
+			+ "}                              \n"
+			+ "#else                          \n"
+			+ "uniform mat4 u_MVPMatrix;      \n"
+			+ "uniform mat4 u_MVMatrix;       \n"
+			+ "vec3 toEye(vec4 v)             \n"
+			+ "{                              \n"
+			+ "   return vec3(u_MVMatrix * v);\n"
+			+ "}                              \n"
+			+ "vec4 toClip(vec4 p)            \n"
+			+ "{                              \n"
+			+ "   return u_MVPMatrix * p;     \n"
+			+ "}                              \n"
+			+ "#endif                         \n";
+
+	private static final String fragmentLightStrength = "#ifdef INSTANCED               \n"
+			+ "varying float v_LightStrength; \n"
+			+ "#define LIGHT_STRENGTH v_LightStrength\n"
+			+ "#else                          \n"
+			+ "uniform float u_LightStrength; \n"
+			+ "#define LIGHT_STRENGTH u_LightStrength\n"
+			+ "#endif                         \n";
+
+	private static final String vertexShaderVertexColor = vertexTransform
+
+			+ "attribute vec4 a_Position;     \n"
+			+ normalDecode
+			+ "attribute vec3 a_Color;       \n"
+
+			+ "varying vec3 v_Position;       \n"
+			+ "varying vec3 v_Color;          \n"
+			+ "varying vec3 v_Normal;         \n"
+			+ "void main()                                                \n"
+			+ "{                                                          \n"
+
+			+ "   v_Position = toEye(a_Position);             \n"
+			+ "   v_Color = a_Color;             \n"
+
+			+ "   v_Normal = toEye(vec4(decodeNormal(), 0.0));      \n"
+			+ "   gl_Position = toClip(a_Position);                 \n"
+			+ "}                                                          \n";
+
+	private static final String fragmentShaderVertexColor = "precision mediump float;       \n"
+
+			+ "uniform vec3 u_LightPos;       \n"
+			+ fragmentLightStrength
+			+ "varying vec3 v_Position;		\n"
+			+ "varying vec3 v_Color;          \n"
+			+ "varying vec3 v_Normal;         \n"
+
+			+ "void main()                    \n"
+			+ "{                              \n"
+			+ "   float distance = length(u_LightPos - v_Position) / LIGHT_STRENGTH;                   \n"
+			+ "   vec3 lightVector = normalize(u_LightPos - v_Position);             \n"
+
+			+ "   vec3 normal = v_Normal / length(v_Normal);             \n"
+
+			+ "   float diffuse = max(dot(normal, lightVector), 0.1);              \n"
+			+ "   diffuse = diffuse * (1.0 / (1.0 + (0.25 * distance * distance)));    \n"
+			+ "   gl_FragColor = vec4(v_Color, 1.0) * diffuse * 0.95 + vec4(v_Color, 1.0) * 0.05;                                  \n"
+			+ "}";
+
+	private static final String vertexShaderTexture = vertexTransform
+
+			+ "attribute vec4 a_Position;     \n"
+			+ normalDecode
+			+ "attribute vec2 a_TexCoordinate;  \n"
+
+			+ "varying vec3 v_Position;       \n"
+			+ "varying vec3 v_Normal;         \n"
+			+ "varying vec2 v_TexCoordinate;    \n"
+
+			+ "void main()                                                \n"
+			+ "{                                                          \n"
+
+			+ "   v_Position = toEye(a_Position);             \n"
+			+ "   v_TexCoordinate = a_TexCoordinate; 					   \n"
+			+ "   v_Normal = toEye(vec4(decodeNormal(), 0.0));      \n"
+			+ "   gl_Position = toClip(a_Position);                 \n"
+			+ "}                                                          \n";
+
+	private static final String fragmentShaderTexture = "precision mediump float;       \n"
+
+			+ "uniform vec3 u_LightPos;       \n"
+			+ fragmentLightStrength
+			+ "uniform sampler2D u_Texture;   \n"
+
+			+ "varying vec3 v_Position;		\n"
+			+ "varying vec3 v_Normal;         \n"
+			+ "varying vec2 v_TexCoordinate;    \n"
+
+			+ "void main()                    \n"
+			+ "{                              \n"
+			+ "   float distance = length(u_LightPos - v_Position) / LIGHT_STRENGTH;                   \n"
+			+ "   vec3 lightVector = normalize(u_LightPos - v_Position);             \n"
+
+			+ "   vec3 normal = v_Normal / length(v_Normal);             \n"
+
+			+ "   float diffuse = max(dot(normal, lightVector), 0.1);              \n"
+			+ "   diffuse = diffuse * (1.0 / (1.0 + (0.25 * distance * distance)));    \n"
+			+ "   gl_FragColor = diffuse * texture2D(u_Texture, v_TexCoordinate);                                  \n"
+			+ "}";
+
+	// locations are looked up by these indices into the declared names
+	static final int A_POSITION = 0;
+
+	static final int A_NORMAL = 1;
+
+	static final int A_SURFACE = 2;
+
+	static final int A_INSTANCE = 3;
+
+	private static final String[] COLOR_ATTRIBUTES = { "a_Position",
+			"a_Normal", "a_Color", "a_Instance" };
+
+	private static final String[] TEXTURE_ATTRIBUTES = { "a_Position",
+			"a_Normal", "a_TexCoordinate", "a_Instance" };
+
+	static final int U_MVP_MATRIX = 0;
+
+	static final int U_MV_MATRIX = 1;
+
+	static final int U_LIGHT_POS = 2;
+
+	static final int U_LIGHT_STRENGTH = 3;
+
+	static final int U_TEXTURE = 4;
+
+	private static final String[] UNIFORMS = { "u_MVPMatrix", "u_MVMatrix",
+			"u_LightPos", "u_LightStrength", "u_Texture" };
+
+	// the instanced program declares the projection and the instance array
+	// where the other has its two matrices
+	static final int U_P_MATRIX = 0;
+
+	static final int U_INSTANCES = 1;
+
+	private static final String[] INSTANCED_UNIFORMS = { "u_PMatrix",
+			"u_Instances", "u_LightPos", "u_LightStrength", "u_Texture" };
+
+	private MeshShaders() {
+	}
+
+	private static String defines(boolean compactVertices) {
+		return compactVertices ? "#define OCT_NORMALS\n" : "";
+	}
+
+	private static String[] attributes(boolean texture) {
+		return texture ? TEXTURE_ATTRIBUTES : COLOR_ATTRIBUTES;
+	}
+
+	/** Wraps a program linked elsewhere that uses the built in names. */
+	static ShaderProgram wrap(int program, boolean texture) {
+		return ShaderProgram.wrap(program, attributes(texture), UNIFORMS);
+	}
+
+	static ShaderProgram getProgram(boolean texture, boolean compactVertices) {
+		return ShaderRegistry.get().getProgram(
+				defines(compactVertices)
+						+ (texture ? vertexShaderTexture
+								: vertexShaderVertexColor),
+				texture ? fragmentShaderTexture : fragmentShaderVertexColor,
+				attributes(texture), UNIFORMS);
+	}
+
+	/**
+	 * The program of instanced draws, which takes the projection and an
+	 * array of InstanceBatch.MAX_INSTANCES instances instead of the matrices.
+	 */
+	static ShaderProgram getInstancedProgram(boolean texture,
+			boolean compactVertices) {
+		String defines = defines(compactVertices) + "#define INSTANCED\n"
+				+ "#define MAX_INSTANCES " + InstanceBatch.MAX_INSTANCES + "\n";
+		return ShaderRegistry.get().getProgram(
+				defines
+						+ (texture ? vertexShaderTexture
+								: vertexShaderVertexColor),
+				defines
+						+ (texture ? fragmentShaderTexture
+								: fragmentShaderVertexColor),
+				attributes(texture), INSTANCED_UNIFORMS);
+	}
+}
@@ -0,0 +1,283 @@
+package com.bobamason.openglply;
+
+import android.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Loads models on a pool with a thread per core, taking the queued request
+ * of the highest priority first. Requests for the same key while one is in
+ * flight join it instead of loading again, and the work is only cancelled
+ * once every request that joined it is.
+ *
+ * Results are handed to the GL thread through a lock-free queue that the
+ * renderer drains at the start of each frame, so callbacks run there and
+ * may make GL calls. A request's future is done after its callback ran.
+ */
+public class ModelLoader {
+	public static final int PRIORITY_LOW = -10;
+
+	public static final int PRIORITY_NORMAL = 0;
+
+	public static final int PRIORITY_HIGH = 10;
+
+	private static ModelLoader instance;
+
+	private final ThreadPoolExecutor executor;
+
+	private final HashMap<String, Job<?>> inFlight = new HashMap<String, Job<?>>();
+
+	private final ConcurrentLinkedQueue<Runnable> glTasks = new ConcurrentLinkedQueue<Runnable>();
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	/** Told about the result of a request, on the GL thread. */
+	public interface Callback<T> {
+		void loaded(T result);
+
+		void failed(Exception e);
+	}
+
+	public ModelLoader(int threads) {
+		threads = Math.max(1, threads);
+		executor = new ThreadPoolExecutor(threads, threads, 0L,
+				TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private int count = 0;
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "ModelLoader-" + (count++));
+						t.setDaemon(true);
+						// keep the render thread ahead of loading
+						t.setPriority(Thread.NORM_PRIORITY - 1);
+						return t;
+					}
+				});
+	}
+
+	public static synchronized ModelLoader get() {
+		if (instance == null)
+			instance = new ModelLoader(Runtime.getRuntime()
+					.availableProcessors());
+		return instance;
+	}
+
+	/**
+	 * Queues work under key, or joins the request for key that is in flight,
+	 * raising its priority if this one is higher and it has not started. The
+	 * callback, which may be null, is called on the GL thread.
+	 */
+	public <T> Request<T> submit(String key, int priority, Callable<T> work,
+			Callback<T> callback) {
+		Request<T> request;
+		Job<T> job;
+		boolean queue = false;
+		synchronized (inFlight) {
+			@SuppressWarnings("unchecked")
+			Job<T> running = (Job<T>) inFlight.get(key);
+			job = running;
+			if (job == null) {
+				job = new Job<T>(key, priority, work);
+				inFlight.put(key, job);
+				queue = true;
+			} else if (priority > job.priority && executor.remove(job)) {
+				// requeued so the queue sees the new order
+				job.priority = priority;
+				queue = true;
+			}
+			request = new Request<T>(job, callback);
+			job.requests.add(request);
+		}
+		if (queue)
+			executor.execute(job);
+		return request;
+	}
+
+	/** Runs task on the GL thread at the start of the next frame. */
+	public void runOnGLThread(Runnable task) {
+		glTasks.offer(task);
+	}
+
+	/**
+	 * Runs the results and tasks handed to the GL thread. Call from the GL
+	 * thread, at the start of GLSurfaceView.Renderer.onDrawFrame. A task that
+	 * throws is logged and the rest still run, so one bad callback can not
+	 * stop the render thread.
+	 */
+	public int drainGLQueue() {
+		int n = 0;
+		Runnable task;
+		while ((task = glTasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				Log.e("ModelLoader", "GL thread task failed", e);
+			}
+			n++;
+		}
+		return n;
+	}
+
+	/** Requests that are queued or loading. */
+	public int getInFlightCount() {
+		synchronized (inFlight) {
+			return inFlight.size();
+		}
+	}
+
+	private void finished(Job<?> job) {
+		Request<?>[] requests;
+		synchronized (inFlight) {
+			if (inFlight.get(job.key) == job)
+				inFlight.remove(job.key);
+			requests = job.requests.toArray(new Request<?>[job.requests
+					.size()]);
+			job.requests.clear();
+		}
+		for (int i = 0; i < requests.length; i++)
+			runOnGLThread(requests[i]);
+	}
+
+	private void cancel(Request<?> request, boolean mayInterruptIfRunning) {
+		Job<?> job = request.job;
+		synchronized (inFlight) {
+			if (!job.requests.remove(request) || !job.requests.isEmpty())
+				return;
+			if (inFlight.get(job.key) == job)
+				inFlight.remove(job.key);
+		}
+		executor.remove(job);
+		job.cancel(mayInterruptIfRunning);
+	}
+
+	private class Job<T> extends FutureTask<T> implements Comparable<Job<?>> {
+		final String key;
+
+		final Callable<T> work;
+
+		volatile int priority;
+
+		final long order = sequence.getAndIncrement();
+
+		/** The requests that joined, guarded by inFlight. */
+		final ArrayList<Request<T>> requests = new ArrayList<Request<T>>();
+
+		Job(String key, int priority, Callable<T> work) {
+			super(work);
+			this.key = key;
+			this.priority = priority;
+			this.work = work;
+		}
+
+		@Override
+		protected void done() {
+			if (!isCancelled())
+				finished(this);
+		}
+
+		@Override
+		public int compareTo(Job<?> other) {
+			if (priority != other.priority)
+				return priority > other.priority ? -1 : 1;
+			return order < other.order ? -1 : (order > other.order ? 1 : 0);
+		}
+	}
+
+	/**
+	 * One caller's share of a load. It is a Runnable only so that it can be
+	 * queued to the GL thread.
+	 */
+	public class Request<T> implements Future<T>, Runnable {
+		private final Job<T> job;
+
+		private final Callback<T> callback;
+
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private volatile boolean cancelled;
+
+		Request(Job<T> job, Callback<T> callback) {
+			this.job = job;
+			this.callback = callback;
+		}
+
+		/**
+		 * The work that loads the result, which was passed to submit by the
+		 * first request for the key.
+		 */
+		public Callable<T> getWork() {
+			return job.work;
+		}
+
+		public String getKey() {
+			return job.key;
+		}
+
+		@Override
+		public void run() {
+			if (cancelled)
+				return;
+			try {
+				if (callback != null) {
+					T result;
+					try {
+						result = job.get();
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						callback.failed(cause instanceof Exception
+								? (Exception) cause : e);
+						return;
+					} catch (InterruptedException e) {
+						throw new IllegalStateException(e);
+					}
+					callback.loaded(result);
+				}
+			} finally {
+				done.countDown();
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (isDone())
+				return false;
+			cancelled = true;
+			ModelLoader.this.cancel(this, mayInterruptIfRunning);
+			done.countDown();
+			return true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		@Override
+		public T get() throws InterruptedException, ExecutionException {
+			done.await();
+			return result();
+		}
+
+		@Override
+		public T get(long timeout, TimeUnit unit) throws InterruptedException,
+				ExecutionException, TimeoutException {
+			if (!done.await(timeout, unit))
+				throw new TimeoutException();
+			return result();
+		}
+
+		private T result() throws InterruptedException, ExecutionException {
+			if (cancelled)
+				throw new CancellationException();
+			return job.get();
+		}
+	}
+}
@@ -0,0 +1,377 @@
+package com.bobamason.openglply;
+
+/**
+ * A hierarchy of nodes with local transforms kept as translation, rotation
+ * quaternion and scale. All node state lives in flat arrays indexed by node,
+ * and a node can only be added after its parent, so update() walks the
+ * arrays once in order and always finds a parent's world matrix ready.
+ *
+ * A node's world matrix is only rebuilt when its transform or an ancestor's
+ * changed, and its model-view and model-view-projection matrices, visibility
+ * and level of detail only when its world matrix or the camera changed. A
+ * scene that holds still costs a comparison of the camera per frame and a
+ * flag test per node.
+ *
+ * Nodes may carry a MeshInstance. The graph owns its model matrix from then
+ * on and copies the world matrix into it, so picking keeps working. All
+ * methods must be called on the GL thread.
+ */
+public class SceneGraph {
+	private static final int FLOATS = 16;
+
+	private int count;
+
+	private int[] parents;
+
+	private float[] translations;
+
+	/** x, y, z, w of each rotation. */
+	private float[] rotations;
+
+	private float[] scales;
+
+	private float[] worlds;
+
+	/** View and mesh position transform applied, ready for drawing. */
+	private float[] mvs;
+
+	private float[] mvps;
+
+	private boolean[] localDirty;
+
+	private boolean[] worldChanged;
+
+	private boolean[] visible;
+
+	/** Whether the matrices were made after the mesh had loaded. */
+	private boolean[] matricesLoaded;
+
+	private int[] lodLevels;
+
+	private MeshInstance[] instances;
+
+	private final float[] view = new float[FLOATS];
+
+	private final float[] projection = new float[FLOATS];
+
+	private boolean cameraChanged = true;
+
+	private final float[] local = new float[FLOATS];
+
+	private final float[] drawWorld = new float[FLOATS];
+
+	private int worldUpdates;
+
+	private int matrixUpdates;
+
+	public SceneGraph() {
+		this(64);
+	}
+
+	public SceneGraph(int capacity) {
+		allocate(Math.max(1, capacity));
+	}
+
+	private void allocate(int capacity) {
+		int[] oldParents = parents;
+		float[] oldTranslations = translations, oldRotations = rotations, oldScales = scales;
+		float[] oldWorlds = worlds, oldMvs = mvs, oldMvps = mvps;
+		boolean[] oldLocalDirty = localDirty, oldWorldChanged = worldChanged;
+		boolean[] oldVisible = visible, oldMatricesLoaded = matricesLoaded;
+		int[] oldLodLevels = lodLevels;
+		MeshInstance[] oldInstances = instances;
+
+		parents = new int[capacity];
+		translations = new float[capacity * 3];
+		rotations = new float[capacity * 4];
+		scales = new float[capacity * 3];
+		worlds = new float[capacity * FLOATS];
+		mvs = new float[capacity * FLOATS];
+		mvps = new float[capacity * FLOATS];
+		localDirty = new boolean[capacity];
+		worldChanged = new boolean[capacity];
+		visible = new boolean[capacity];
+		matricesLoaded = new boolean[capacity];
+		lodLevels = new int[capacity];
+		instances = new MeshInstance[capacity];
+
+		if (oldParents != null) {
+			System.arraycopy(oldParents, 0, parents, 0, count);
+			System.arraycopy(oldTranslations, 0, translations, 0, count * 3);
+			System.arraycopy(oldRotations, 0, rotations, 0, count * 4);
+			System.arraycopy(oldScales, 0, scales, 0, count * 3);
+			System.arraycopy(oldWorlds, 0, worlds, 0, count * FLOATS);
+			System.arraycopy(oldMvs, 0, mvs, 0, count * FLOATS);
+			System.arraycopy(oldMvps, 0, mvps, 0, count * FLOATS);
+			System.arraycopy(oldLocalDirty, 0, localDirty, 0, count);
+			System.arraycopy(oldWorldChanged, 0, worldChanged, 0, count);
+			System.arraycopy(oldVisible, 0, visible, 0, count);
+			System.arraycopy(oldMatricesLoaded, 0, matricesLoaded, 0, count);
+			System.arraycopy(oldLodLevels, 0, lodLevels, 0, count);
+			System.arraycopy(oldInstances, 0, instances, 0, count);
+		}
+	}
+
+	/**
+	 * Adds a node with an identity transform under parent, or at the top for
+	 * -1, and returns it.
+	 */
+	public int addNode(int parent) {
+		return addNode(parent, null);
+	}
+
+	public int addNode(int parent, MeshInstance instance) {
+		if (parent < -1 || parent >= count)
+			throw new IllegalArgumentException("no node " + parent);
+		if (count == parents.length)
+			allocate(count * 2);
+		int node = count++;
+		parents[node] = parent;
+		translations[node * 3] = translations[node * 3 + 1] = translations[node * 3 + 2] = 0f;
+		rotations[node * 4] = rotations[node * 4 + 1] = rotations[node * 4 + 2] = 0f;
+		rotations[node * 4 + 3] = 1f;
+		scales[node * 3] = scales[node * 3 + 1] = scales[node * 3 + 2] = 1f;
+		localDirty[node] = true;
+		instances[node] = instance;
+		return node;
+	}
+
+	public int getNodeCount() {
+		return count;
+	}
+
+	public int getParent(int node) {
+		return parents[node];
+	}
+
+	public MeshInstance getInstance(int node) {
+		return instances[node];
+	}
+
+	public void setInstance(int node, MeshInstance instance) {
+		instances[node] = instance;
+		localDirty[node] = true;
+	}
+
+	public void setTranslation(int node, float x, float y, float z) {
+		int i = node * 3;
+		translations[i] = x;
+		translations[i + 1] = y;
+		translations[i + 2] = z;
+		localDirty[node] = true;
+	}
+
+	/** Sets the rotation to a unit quaternion. */
+	public void setRotation(int node, float x, float y, float z, float w) {
+		int i = node * 4;
+		rotations[i] = x;
+		rotations[i + 1] = y;
+		rotations[i + 2] = z;
+		rotations[i + 3] = w;
+		localDirty[node] = true;
+	}
+
+	/** Sets the rotation to angle degrees about the axis x, y, z. */
+	public void setRotationAxis(int node, float angle, float x, float y,
+			float z) {
+		float length = (float) Math.sqrt(x * x + y * y + z * z);
+		if (length == 0f) {
+			setRotation(node, 0f, 0f, 0f, 1f);
+			return;
+		}
+		double half = Math.toRadians(angle) / 2.0;
+		float s = (float) Math.sin(half) / length;
+		setRotation(node, x * s, y * s, z * s, (float) Math.cos(half));
+	}
+
+	/**
+	 * Sets the rotation that MeshInstance.rotateEuler applies: z degrees
+	 * about z, then x about x, then y about y, each in the frame of the one
+	 * before.
+	 */
+	public void setRotationEuler(int node, float z, float x, float y) {
+		double hz = Math.toRadians(z) / 2.0, hx = Math.toRadians(x) / 2.0, hy = Math
+				.toRadians(y) / 2.0;
+		float sz = (float) Math.sin(hz), cz = (float) Math.cos(hz);
+		float sx = (float) Math.sin(hx), cx = (float) Math.cos(hx);
+		float sy = (float) Math.sin(hy), cy = (float) Math.cos(hy);
+		// qz * qx
+		float ax = cz * sx, ay = sz * sx, az = sz * cx, aw = cz * cx;
+		// (qz * qx) * qy
+		setRotation(node, ax * cy - az * sy, aw * sy + ay * cy, az * cy + ax
+				* sy, aw * cy - ay * sy);
+	}
+
+	public void setScale(int node, float s) {
+		setScale(node, s, s, s);
+	}
+
+	public void setScale(int node, float sx, float sy, float sz) {
+		int i = node * 3;
+		scales[i] = sx;
+		scales[i + 1] = sy;
+		scales[i + 2] = sz;
+		localDirty[node] = true;
+	}
+
+	/** Copies the world matrix of node as of the last update. */
+	public void getWorldMatrix(int node, float[] out, int offset) {
+		System.arraycopy(worlds, node * FLOATS, out, offset, FLOATS);
+	}
+
+	/**
+	 * Brings world matrices up to date and, for nodes with a loaded mesh, the
+	 * drawing matrices, visibility and level of detail for the camera given
+	 * by the view and projection matrices.
+	 */
+	public void update(float[] viewMatrix, float[] projectionMatrix) {
+		for (int i = 0; i < FLOATS; i++) {
+			if (view[i] != viewMatrix[i] || projection[i] != projectionMatrix[i]) {
+				System.arraycopy(viewMatrix, 0, view, 0, FLOATS);
+				System.arraycopy(projectionMatrix, 0, projection, 0, FLOATS);
+				cameraChanged = true;
+				break;
+			}
+		}
+
+		worldUpdates = 0;
+		matrixUpdates = 0;
+		for (int node = 0; node < count; node++) {
+			int parent = parents[node];
+			boolean changed = localDirty[node]
+					|| (parent >= 0 && worldChanged[parent]);
+			worldChanged[node] = changed;
+			if (changed) {
+				localDirty[node] = false;
+				composeLocal(node);
+				int w = node * FLOATS;
+				if (parent < 0)
+					System.arraycopy(local, 0, worlds, w, FLOATS);
+				else
+					multiplyAffine(worlds, w, worlds, parent * FLOATS, local, 0);
+				if (instances[node] != null)
+					System.arraycopy(worlds, w, instances[node]
+							.getModelMatrix(), 0, FLOATS);
+				worldUpdates++;
+			}
+
+			MeshInstance instance = instances[node];
+			if (instance == null)
+				continue;
+			Mesh mesh = instance.getMesh();
+			boolean loaded = mesh.isLoaded();
+			if (loaded
+					&& (changed || cameraChanged || !matricesLoaded[node]))
+				updateMatrices(node, mesh, instance);
+			matricesLoaded[node] = loaded;
+		}
+		cameraChanged = false;
+	}
+
+	private void updateMatrices(int node, Mesh mesh, MeshInstance instance) {
+		int m = node * FLOATS;
+		float[] position = mesh.getPositionMatrix();
+		if (position != null) {
+			multiplyAffine(drawWorld, 0, worlds, m, position, 0);
+			multiply(mvs, m, view, 0, drawWorld, 0);
+		} else {
+			multiply(mvs, m, view, 0, worlds, m);
+		}
+		multiply(mvps, m, projection, 0, mvs, m);
+		visible[node] = mesh.inFrustum(mvps, m);
+		if (visible[node])
+			lodLevels[node] = mesh.selectLevel(instance, mvs, m, projection);
+		matrixUpdates++;
+	}
+
+	/** Draws the visible nodes that carry a loaded mesh right away. */
+	public void draw(float[] lightPos) {
+		for (int node = 0; node < count; node++) {
+			MeshInstance instance = instances[node];
+			if (instance == null || !matricesLoaded[node]
+					|| !instance.getMesh().isLoaded())
+				continue;
+			Mesh.countInstance(visible[node]);
+			if (visible[node])
+				instance.drawWithMatrices(mvs, node * FLOATS, mvps, node
+						* FLOATS, lightPos, lodLevels[node]);
+		}
+	}
+
+	/** Records the visible nodes that carry a loaded mesh into queue. */
+	public void enqueue(RenderQueue queue, float[] lightPos) {
+		for (int node = 0; node < count; node++) {
+			MeshInstance instance = instances[node];
+			if (instance == null || !matricesLoaded[node]
+					|| !instance.getMesh().isLoaded())
+				continue;
+			Mesh.countInstance(visible[node]);
+			if (visible[node])
+				instance.enqueueWithMatrices(queue, mvs, node * FLOATS, mvps,
+						node * FLOATS, lightPos, lodLevels[node]);
+		}
+	}
+
+	/** World matrices rebuilt by the last update. */
+	public int getWorldUpdates() {
+		return worldUpdates;
+	}
+
+	/** Drawing matrices rebuilt by the last update. */
+	public int getMatrixUpdates() {
+		return matrixUpdates;
+	}
+
+	/** Writes translation * rotation * scale of node to local. */
+	private void composeLocal(int node) {
+		int r = node * 4, t = node * 3;
+		float x = rotations[r], y = rotations[r + 1], z = rotations[r + 2], w = rotations[r + 3];
+		float sx = scales[t], sy = scales[t + 1], sz = scales[t + 2];
+		float xx = x * x, yy = y * y, zz = z * z;
+		float xy = x * y, xz = x * z, yz = y * z;
+		float wx = w * x, wy = w * y, wz = w * z;
+		float[] m = local;
+		m[0] = (1f - 2f * (yy + zz)) * sx;
+		m[1] = 2f * (xy + wz) * sx;
+		m[2] = 2f * (xz - wy) * sx;
+		m[3] = 0f;
+		m[4] = 2f * (xy - wz) * sy;
+		m[5] = (1f - 2f * (xx + zz)) * sy;
+		m[6] = 2f * (yz + wx) * sy;
+		m[7] = 0f;
+		m[8] = 2f * (xz + wy) * sz;
+		m[9] = 2f * (yz - wx) * sz;
+		m[10] = (1f - 2f * (xx + yy)) * sz;
+		m[11] = 0f;
+		m[12] = translations[t];
+		m[13] = translations[t + 1];
+		m[14] = translations[t + 2];
+		m[15] = 1f;
+	}
+
+	/** out = a * b for column major matrices; out may not overlap a or b. */
+	private static void multiply(float[] out, int o, float[] a, int ao,
+			float[] b, int bo) {
+		for (int c = 0; c < 4; c++) {
+			float b0 = b[bo + c * 4], b1 = b[bo + c * 4 + 1], b2 = b[bo + c
+					* 4 + 2], b3 = b[bo + c * 4 + 3];
+			for (int r = 0; r < 4; r++)
+				out[o + c * 4 + r] = a[ao + r] * b0 + a[ao + 4 + r] * b1
+						+ a[ao + 8 + r] * b2 + a[ao + 12 + r] * b3;
+		}
+	}
+
+	/** multiply for matrices whose last row is 0, 0, 0, 1. */
+	private static void multiplyAffine(float[] out, int o, float[] a, int ao,
+			float[] b, int bo) {
+		for (int c = 0; c < 4; c++) {
+			float b0 = b[bo + c * 4], b1 = b[bo + c * 4 + 1], b2 = b[bo + c
+					* 4 + 2];
+			float b3 = c == 3 ? 1f : 0f;
+			for (int r = 0; r < 3; r++)
+				out[o + c * 4 + r] = a[ao + r] * b0 + a[ao + 4 + r] * b1
+						+ a[ao + 8 + r] * b2 + a[ao + 12 + r] * b3;
+			out[o + c * 4 + 3] = b3;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package com.bobamason.openglply;
+
+import android.opengl.*;
+import android.util.*;
+
+/**
+ * A linked program and the locations of the attributes and uniforms it was
+ * declared with. Locations are looked up once after linking and read by index
+ * when drawing, so no draw has to look a name up. Programs that came from a
+ * ShaderRegistry are rebuilt, and their locations refreshed, whenever the
+ * context is recreated; the arrays are refilled in place so indices held by
+ * callers stay valid.
+ */
+public class ShaderProgram {
+	private final String vertexSource;
+
+	private final String fragmentSource;
+
+	private final String[] attributeNames;
+
+	private final String[] uniformNames;
+
+	private final int[] attributes;
+
+	private final int[] uniforms;
+
+	private int program;
+
+	ShaderProgram(String vertexSource, String fragmentSource,
+			String[] attributeNames, String[] uniformNames) {
+		this.vertexSource = vertexSource;
+		this.fragmentSource = fragmentSource;
+		this.attributeNames = attributeNames;
+		this.uniformNames = uniformNames;
+		attributes = new int[attributeNames.length];
+		uniforms = new int[uniformNames.length];
+	}
+
+	/**
+	 * Wraps a program linked elsewhere. It is not rebuilt with the context;
+	 * whoever linked it has to do that.
+	 */
+	public static ShaderProgram wrap(int program, String[] attributeNames,
+			String[] uniformNames) {
+		ShaderProgram p = new ShaderProgram(null, null, attributeNames,
+				uniformNames);
+		p.program = program;
+		p.resolveLocations();
+		return p;
+	}
+
+	/** Compiles and links the sources in the current context. */
+	void build() {
+		int vertexShader = GLRenderer.loadGLShader(GLES20.GL_VERTEX_SHADER,
+				vertexSource);
+		int fragmentShader = GLRenderer.loadGLShader(
+				GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+
+		program = GLES20.glCreateProgram();
+		GLES20.glAttachShader(program, vertexShader);
+		GLES20.glAttachShader(program, fragmentShader);
+		GLES20.glLinkProgram(program);
+		// the shaders are freed with the program
+		GLES20.glDeleteShader(vertexShader);
+		GLES20.glDeleteShader(fragmentShader);
+
+		final int[] linkStatus = new int[1];
+		GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+		if (linkStatus[0] == 0) {
+			Log.e("ShaderProgram",
+					"Error linking program: "
+							+ GLES20.glGetProgramInfoLog(program));
+			GLES20.glDeleteProgram(program);
+			program = 0;
+			throw new RuntimeException("Error linking program.");
+		}
+		resolveLocations();
+	}
+
+	private void resolveLocations() {
+		for (int i = 0; i < attributes.length; i++)
+			attributes[i] = GLES20.glGetAttribLocation(program,
+					attributeNames[i]);
+		for (int i = 0; i < uniforms.length; i++)
+			uniforms[i] = GLES20.glGetUniformLocation(program, uniformNames[i]);
+	}
+
+	void delete() {
+		if (program != 0)
+			GLES20.glDeleteProgram(program);
+		program = 0;
+	}
+
+	public void use(GLApi gl) {
+		gl.glUseProgram(program);
+	}
+
+	public int getProgram() {
+		return program;
+	}
+
+	/**
+	 * Location of the i-th declared attribute, or -1 if the program does not
+	 * use it.
+	 */
+	public int attribute(int i) {
+		return attributes[i];
+	}
+
+	/**
+	 * Location of the i-th declared uniform, or -1 if the program does not
+	 * use it.
+	 */
+	public int uniform(int i) {
+		return uniforms[i];
+	}
+}
@@ -0,0 +1,60 @@
+package com.bobamason.openglply;
+
+import java.util.*;
+
+/**
+ * Compiles every distinct pair of shader sources once and hands the same
+ * ShaderProgram to everyone who asks for it. Programs are built in the
+ * current context when first requested and rebuilt by onSurfaceCreated.
+ * Only use from the GL thread.
+ */
+public class ShaderRegistry {
+	private static final ShaderRegistry instance = new ShaderRegistry();
+
+	private final HashMap<String, ShaderProgram> programs = new HashMap<String, ShaderProgram>();
+
+	private ShaderRegistry() {
+	}
+
+	public static ShaderRegistry get() {
+		return instance;
+	}
+
+	/**
+	 * Returns the program for the sources, building it if needed. Programs
+	 * with the same sources must be declared with the same names.
+	 */
+	public ShaderProgram getProgram(String vertexSource,
+			String fragmentSource, String[] attributeNames,
+			String[] uniformNames) {
+		String key = vertexSource + '\0' + fragmentSource;
+		ShaderProgram program = programs.get(key);
+		if (program == null) {
+			program = new ShaderProgram(vertexSource, fragmentSource,
+					attributeNames, uniformNames);
+			program.build();
+			programs.put(key, program);
+		}
+		return program;
+	}
+
+	/**
+	 * Rebuilds every program after the context was recreated. The old program
+	 * names died with the old context and are not deleted.
+	 */
+	public void onSurfaceCreated() {
+		for (ShaderProgram program : programs.values())
+			program.build();
+	}
+
+	/** Deletes every program in the current context and forgets them. */
+	public void clear() {
+		for (ShaderProgram program : programs.values())
+			program.delete();
+		programs.clear();
+	}
+
+	public int size() {
+		return programs.size();
+	}
+}